@@ -0,0 +1,351 @@
+package bearmaps.proj2ab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A KD-tree of geographic points, x being the longitude and y the latitude in degrees,
+ * built in one pass and stored in flat arrays. Distances are great-circle distances, as
+ * with Point.distance.
+ *
+ * The tree is built by splitting the points at their median, on longitude at even depths
+ * and latitude at odd ones, so it is balanced whatever the order of the points. It needs
+ * no pointers: the node of the points in positions [lo, hi) is the one at their middle,
+ * (lo + hi) / 2, and its children hold the positions before and after it. The coordinates
+ * are kept in tree order in primitive arrays, next to the cosine of each latitude, so a
+ * search walks contiguous memory and computes one haversine per candidate at most.
+ *
+ * Searches are iterative, with a per-thread stack, and allocate nothing. A candidate is
+ * first checked on latitude alone, which bounds its distance from below, and a subtree is
+ * skipped when the distance across its splitting line already exceeds the best found, so
+ * the results are exactly those of a linear scan. Trees are immutable and safe to share.
+ *
+ * The k nearest points are found the same way, keeping the best k in a bounded max-heap
+ * whose root bounds the search once it is full. Radius queries bound it by the radius.
+ */
+public final class FlatKDTree implements IndexedPointSet {
+    /** The most positions a search stack can hold: two per level, for 2^31 points. */
+    private static final int MAX_STACK = 64;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] cosYs;
+    /** The index in the input of the point at each position. */
+    private final int[] ids;
+
+    /** Per-thread search stacks of lo, hi and depth, and of lower bounds on distance. */
+    private static final ThreadLocal<int[]> RANGES =
+            ThreadLocal.withInitial(() -> new int[3 * MAX_STACK]);
+    private static final ThreadLocal<double[]> BOUNDS =
+            ThreadLocal.withInitial(() -> new double[MAX_STACK]);
+
+    /** Builds the tree of POINTS. */
+    public FlatKDTree(List<Point> points) {
+        this(xsOf(points), ysOf(points));
+    }
+
+    /** Builds the tree of the points XS[i], YS[i]. The arrays are not kept. */
+    public FlatKDTree(double[] xs, double[] ys) {
+        this(xs, ys, build(xs, ys));
+    }
+
+    /** Creates the tree of the input points XS, YS, given the input index at each position. */
+    private FlatKDTree(double[] xs, double[] ys, int[] ids) {
+        int n = ids.length;
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.cosYs = new double[n];
+        this.ids = ids;
+        for (int i = 0; i < n; i++) {
+            this.xs[i] = xs[ids[i]];
+            this.ys[i] = ys[ids[i]];
+            this.cosYs[i] = Math.cos(Math.toRadians(this.ys[i]));
+        }
+    }
+
+    /**
+     * Returns the tree of the points XS[i], YS[i] whose positions were given by ORDER, the
+     * order() of a tree of the same points. Lets a saved tree be restored without building
+     * it again.
+     */
+    public static FlatKDTree restore(double[] xs, double[] ys, int[] order) {
+        if (order.length != xs.length || order.length != ys.length) {
+            throw new IllegalArgumentException("The order does not match the points.");
+        }
+        return new FlatKDTree(xs, ys, order.clone());
+    }
+
+    private static double[] xsOf(List<Point> points) {
+        double[] xs = new double[points.size()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = points.get(i).getX();
+        }
+        return xs;
+    }
+
+    private static double[] ysOf(List<Point> points) {
+        double[] ys = new double[points.size()];
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] = points.get(i).getY();
+        }
+        return ys;
+    }
+
+    /** Returns the input index of the point at each position of the tree of XS, YS. */
+    private static int[] build(double[] xs, double[] ys) {
+        int n = xs.length;
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        int[] stack = new int[3 * MAX_STACK];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n;
+        stack[top++] = 0;
+        while (top > 0) {
+            int depth = stack[--top];
+            int hi = stack[--top];
+            int lo = stack[--top];
+            if (hi - lo < 2) {
+                continue;
+            }
+            int mid = (lo + hi) >>> 1;
+            select(ids, lo, hi - 1, mid, depth % 2 == 0 ? xs : ys);
+            stack[top++] = lo;
+            stack[top++] = mid;
+            stack[top++] = depth + 1;
+            stack[top++] = mid + 1;
+            stack[top++] = hi;
+            stack[top++] = depth + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * Reorders IDS[LO..HI] so that the point at K is the one that would be there were they
+     * sorted by KEYS, with none greater before it and none smaller after it.
+     */
+    private static void select(int[] ids, int lo, int hi, int k, double[] keys) {
+        while (lo < hi) {
+            double pivot = keys[ids[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[ids[i]] < pivot) {
+                    i += 1;
+                }
+                while (keys[ids[j]] > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    int swap = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = swap;
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the input index of the point at each position of the tree, which restore
+     * takes to rebuild the tree without sorting the points again.
+     */
+    public int[] order() {
+        return ids.clone();
+    }
+
+    @Override
+    public Point nearest(double x, double y) {
+        int i = nearestPosition(x, y);
+        return i < 0 ? null : new Point(xs[i], ys[i]);
+    }
+
+    @Override
+    public int nearestIndex(double x, double y) {
+        int i = nearestPosition(x, y);
+        return i < 0 ? -1 : ids[i];
+    }
+
+    /** Returns the position of the point nearest to X, Y, or -1 if there are none. */
+    private int nearestPosition(double x, double y) {
+        int n = ids.length;
+        if (n == 0) {
+            return -1;
+        }
+        double cosY = Math.cos(Math.toRadians(y));
+        int best = -1;
+        /* The haversine of the best distance so far, and the central angle it spans. */
+        double bestA = Double.POSITIVE_INFINITY;
+        double bestAngle = Double.POSITIVE_INFINITY;
+
+        int[] ranges = RANGES.get();
+        double[] bounds = BOUNDS.get();
+        ranges[0] = 0;
+        ranges[1] = n;
+        ranges[2] = 0;
+        bounds[0] = 0;
+        int top = 1;
+        while (top > 0) {
+            top -= 1;
+            if (bounds[top] > bestAngle) {
+                continue;
+            }
+            int lo = ranges[3 * top];
+            int hi = ranges[3 * top + 1];
+            int depth = ranges[3 * top + 2];
+            if (lo >= hi) {
+                continue;
+            }
+            int mid = (lo + hi) >>> 1;
+
+            /* The latitude difference alone is a lower bound on the central angle. */
+            if (Math.abs(Math.toRadians(y - ys[mid])) <= bestAngle) {
+                double a = GreatCircle.haversine(xs[mid], ys[mid], cosYs[mid], x, y, cosY);
+                if (a < bestA || a == bestA && ids[mid] > ids[best]) {
+                    best = mid;
+                    bestA = a;
+                    bestAngle = GreatCircle.angle(a);
+                }
+            }
+
+            /* Visit the side of the split the query is on first, the other side only if
+             * the distance across the split line could still beat the best. */
+            boolean onX = depth % 2 == 0;
+            double offset = onX ? x - xs[mid] : y - ys[mid];
+            double across = onX ? GreatCircle.acrossMeridian(Math.toRadians(offset), cosY)
+                    : Math.abs(Math.toRadians(offset));
+            int nearLo = offset < 0 ? lo : mid + 1;
+            int nearHi = offset < 0 ? mid : hi;
+            int farLo = offset < 0 ? mid + 1 : lo;
+            int farHi = offset < 0 ? hi : mid;
+            top = push(ranges, bounds, top, farLo, farHi, depth + 1, across);
+            top = push(ranges, bounds, top, nearLo, nearHi, depth + 1, 0);
+        }
+        return best;
+    }
+
+    @Override
+    public List<Point> kNearest(double x, double y, int k) {
+        return points(search(x, y, k, Double.POSITIVE_INFINITY));
+    }
+
+    @Override
+    public List<Point> withinRadius(double x, double y, double miles) {
+        return points(search(x, y, ids.length, miles));
+    }
+
+    /**
+     * Returns the input indices of the K points nearest to X, Y, nearest first, or of all
+     * the points if there are fewer than K. Points at the same distance are in the reverse
+     * of their input order, as with nearestIndex.
+     */
+    public int[] kNearestIndices(double x, double y, int k) {
+        return indices(search(x, y, k, Double.POSITIVE_INFINITY));
+    }
+
+    /**
+     * Returns the input indices of the points at most MILES from X, Y, nearest first, in
+     * the same order as kNearestIndices.
+     */
+    public int[] withinRadiusIndices(double x, double y, double miles) {
+        return indices(search(x, y, ids.length, miles));
+    }
+
+    private int[] indices(int[] positions) {
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = ids[positions[i]];
+        }
+        return positions;
+    }
+
+    private List<Point> points(int[] positions) {
+        List<Point> points = new ArrayList<>(positions.length);
+        for (int i : positions) {
+            points.add(new Point(xs[i], ys[i]));
+        }
+        return points;
+    }
+
+    /**
+     * Returns the positions of the K points nearest to X, Y, nearest first, leaving out
+     * those more than MILES away.
+     */
+    private int[] search(double x, double y, int k, double miles) {
+        k = Math.min(k, ids.length);
+        if (k <= 0 || !(miles >= 0)) {
+            return new int[0];
+        }
+        double cosY = Math.cos(Math.toRadians(y));
+        /* A lower bound beyond the radius rules a subtree out; the slack only keeps rounding
+         * from pruning points right on the circle, which the exact check below settles. */
+        double radiusAngle = GreatCircle.angleOfMiles(miles) * (1 + 1e-12);
+        NearestHeap best = new NearestHeap(k);
+        double bestAngle = radiusAngle;
+
+        int[] ranges = RANGES.get();
+        double[] bounds = BOUNDS.get();
+        ranges[0] = 0;
+        ranges[1] = ids.length;
+        ranges[2] = 0;
+        bounds[0] = 0;
+        int top = 1;
+        while (top > 0) {
+            top -= 1;
+            if (bounds[top] > bestAngle) {
+                continue;
+            }
+            int lo = ranges[3 * top];
+            int hi = ranges[3 * top + 1];
+            int depth = ranges[3 * top + 2];
+            int mid = (lo + hi) >>> 1;
+
+            if (Math.abs(Math.toRadians(y - ys[mid])) <= bestAngle) {
+                double a = GreatCircle.haversine(xs[mid], ys[mid], cosYs[mid], x, y, cosY);
+                boolean inRadius = miles == Double.POSITIVE_INFINITY
+                        || GreatCircle.miles(a) <= miles;
+                if (inRadius && best.offer(mid, ids[mid], a) && best.isFull()) {
+                    bestAngle = Math.min(radiusAngle, GreatCircle.angle(best.bound()));
+                }
+            }
+
+            boolean onX = depth % 2 == 0;
+            double offset = onX ? x - xs[mid] : y - ys[mid];
+            double across = onX ? GreatCircle.acrossMeridian(Math.toRadians(offset), cosY)
+                    : Math.abs(Math.toRadians(offset));
+            int nearLo = offset < 0 ? lo : mid + 1;
+            int nearHi = offset < 0 ? mid : hi;
+            int farLo = offset < 0 ? mid + 1 : lo;
+            int farHi = offset < 0 ? hi : mid;
+            top = push(ranges, bounds, top, farLo, farHi, depth + 1, across);
+            top = push(ranges, bounds, top, nearLo, nearHi, depth + 1, 0);
+        }
+        return best.drain();
+    }
+
+    private static int push(int[] ranges, double[] bounds, int top, int lo, int hi, int depth,
+                            double bound) {
+        if (lo < hi) {
+            ranges[3 * top] = lo;
+            ranges[3 * top + 1] = hi;
+            ranges[3 * top + 2] = depth;
+            bounds[top] = bound;
+            return top + 1;
+        }
+        return top;
+    }
+}
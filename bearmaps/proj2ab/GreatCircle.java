@@ -0,0 +1,56 @@
+package bearmaps.proj2ab;
+
+/**
+ * Great-circle arithmetic shared by the spatial point sets, with x the longitude and y the
+ * latitude in degrees, computed exactly as Point.distance does so that their answers
+ * match a linear scan.
+ *
+ * Searches compare haversines, a = sin^2(dLat / 2) + cos y1 cos y2 sin^2(dLon / 2), which
+ * grow with distance, and bound what is left to search by central angles in radians.
+ */
+final class GreatCircle {
+    /** The radius of the Earth in miles, as Point.distance takes it. */
+    static final double EARTH_RADIUS_MILES = 3963;
+
+    private GreatCircle() {
+    }
+
+    /**
+     * Returns the haversine of the distance between X1, Y1 and X2, Y2, given the cosines
+     * of their latitudes.
+     */
+    static double haversine(double x1, double y1, double cosY1, double x2, double y2,
+                            double cosY2) {
+        double sinLat = Math.sin(Math.toRadians(y2 - y1) / 2.0);
+        double sinLon = Math.sin(Math.toRadians(x2 - x1) / 2.0);
+        return sinLat * sinLat + cosY1 * cosY2 * sinLon * sinLon;
+    }
+
+    /** Returns the central angle whose haversine is A. */
+    static double angle(double a) {
+        return 2 * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+
+    /** Returns the distance in miles whose haversine is A, as Point.distance computes it. */
+    static double miles(double a) {
+        return EARTH_RADIUS_MILES * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /** Returns the central angle of a distance of MILES. */
+    static double angleOfMiles(double miles) {
+        return miles / EARTH_RADIUS_MILES;
+    }
+
+    /**
+     * Returns a lower bound on the central angle from a point at latitude whose cosine is
+     * COS_Y to any point on the meridian D_LON radians of longitude away: the angle to the
+     * nearest point of that meridian, asin(cos y sin dLon), or a right angle beyond it.
+     */
+    static double acrossMeridian(double dLon, double cosY) {
+        double d = Math.abs(dLon);
+        if (d >= Math.PI / 2) {
+            return 0;
+        }
+        return Math.asin(Math.min(1, cosY * Math.sin(d)));
+    }
+}
@@ -0,0 +1,131 @@
+package bearmaps.proj2ab;
+
+/**
+ * The geometry of a uniform grid of cells over a box, shared by the grid indexes
+ * GridPointSet and SegmentGrid: the cell a point falls in, the rings of cells around a
+ * cell, and how far a point is from the cells outside the rings searched so far.
+ *
+ * Cells are numbered row by row, cell (column, row) being row * columns() + column. Ring 0
+ * around a cell is the cell itself, and ring r the cells r columns or rows away from it, so
+ * a search that visits rings 0, 1, 2 and so on visits every cell once. Rings are walked
+ * without allocating:
+ * <pre>
+ *     for (int r = cells.firstRow(row, ring); r <= cells.lastRow(row, ring); r++) {
+ *         for (int c = cells.firstColumn(column, row, ring, r);
+ *              c <= cells.lastColumn(column, ring);
+ *              c = cells.nextColumn(column, row, ring, r, c)) {
+ *             visit(cells.cell(c, r));
+ *         }
+ *     }
+ * </pre>
+ */
+public final class GridCells {
+    private final double minX;
+    private final double minY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int columns;
+    private final int rows;
+
+    /**
+     * Cuts the box from MIN_X, MIN_Y to MAX_X, MAX_Y into COLUMNS by ROWS cells. The cells
+     * are widened a little so that the largest coordinates fall in the last cell.
+     */
+    public GridCells(double minX, double minY, double maxX, double maxY, int columns,
+                     int rows) {
+        this.minX = minX;
+        this.minY = minY;
+        this.columns = columns;
+        this.rows = rows;
+        this.cellWidth = Math.max((maxX - minX) / columns * (1 + 1e-9), 1e-12);
+        this.cellHeight = Math.max((maxY - minY) / rows * (1 + 1e-9), 1e-12);
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /** Returns the number of cells. */
+    public int size() {
+        return columns * rows;
+    }
+
+    /** Returns the column X falls in, the first or last for points outside the box. */
+    public int column(double x) {
+        return (int) Math.max(0, Math.min(columns - 1, Math.floor((x - minX) / cellWidth)));
+    }
+
+    /** Returns the row Y falls in, the first or last for points outside the box. */
+    public int row(double y) {
+        return (int) Math.max(0, Math.min(rows - 1, Math.floor((y - minY) / cellHeight)));
+    }
+
+    /** Returns the number of the cell at COLUMN and ROW. */
+    public int cell(int column, int row) {
+        return row * columns + column;
+    }
+
+    /* The rings of cells around the cell at COLUMN and ROW. */
+
+    public int firstRow(int row, int ring) {
+        return Math.max(0, row - ring);
+    }
+
+    public int lastRow(int row, int ring) {
+        return Math.min(rows - 1, row + ring);
+    }
+
+    public int lastColumn(int column, int ring) {
+        return Math.min(columns - 1, column + ring);
+    }
+
+    /** Returns the first column of row R that is in RING. */
+    public int firstColumn(int column, int row, int ring, int r) {
+        int c = Math.max(0, column - ring);
+        return isInner(column, row, ring, r, c) ? column + ring : c;
+    }
+
+    /** Returns the column of row R in RING after C. */
+    public int nextColumn(int column, int row, int ring, int r, int c) {
+        /* Skip the cells of the rings already searched. */
+        return isInner(column, row, ring, r, c + 1) ? column + ring : c + 1;
+    }
+
+    /** Returns whether the cell at C and R lies inside RING rather than on it. */
+    private static boolean isInner(int column, int row, int ring, int r, int c) {
+        return r > row - ring && r < row + ring && c > column - ring && c < column + ring;
+    }
+
+    /**
+     * Returns how far, in x, X is from the nearer of the left and right sides of the rings
+     * before RING around COLUMN that have cells beyond them, or positive infinity if
+     * neither has. Together with yGap, this bounds how near any point of the cells outside
+     * those rings can be.
+     */
+    public double xGap(int ring, int column, double x) {
+        double gap = Double.POSITIVE_INFINITY;
+        if (column - ring + 1 > 0) {
+            gap = Math.min(gap, Math.max(0, x - (minX + (column - ring + 1) * cellWidth)));
+        }
+        if (column + ring - 1 < columns - 1) {
+            gap = Math.min(gap, Math.max(0, minX + (column + ring) * cellWidth - x));
+        }
+        return gap;
+    }
+
+    /** Returns how far, in y, Y is from the cells outside the rings before RING; see xGap. */
+    public double yGap(int ring, int row, double y) {
+        double gap = Double.POSITIVE_INFINITY;
+        if (row - ring + 1 > 0) {
+            gap = Math.min(gap, Math.max(0, y - (minY + (row - ring + 1) * cellHeight)));
+        }
+        if (row + ring - 1 < rows - 1) {
+            gap = Math.min(gap, Math.max(0, minY + (row + ring) * cellHeight - y));
+        }
+        return gap;
+    }
+}
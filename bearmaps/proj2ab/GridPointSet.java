@@ -0,0 +1,248 @@
+package bearmaps.proj2ab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A uniform grid of geographic points, x being the longitude and y the latitude in
+ * degrees. Distances are great-circle distances, as with Point.distance.
+ *
+ * The bounding box of the points is cut into cells of about POINTS_PER_CELL points each,
+ * about as wide as they are high on the ground, and the points are sorted by cell with a
+ * counting sort, so the grid builds in linear time. The coordinates are kept in cell
+ * order in primitive arrays, next to the cosine of each latitude, and the points of cell
+ * c are those at positions cellStarts[c] up to cellStarts[c + 1].
+ *
+ * A query searches the cell of the point, then rings of cells around it, until the
+ * nearest side of the rings searched is farther than the best found, so the results
+ * are exactly those of a linear scan. Where points are dense and evenly spread, as in
+ * a city, that is a few cells. Nearest searches allocate nothing. Grids are immutable
+ * and safe to share.
+ */
+public final class GridPointSet implements IndexedPointSet {
+    private static final int POINTS_PER_CELL = 4;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] cosYs;
+    /** The index in the input of the point at each position. */
+    private final int[] ids;
+
+    private final GridCells cells;
+    private final int[] cellStarts;
+
+    /** Builds the grid of POINTS. */
+    public GridPointSet(List<Point> points) {
+        this(xsOf(points), ysOf(points));
+    }
+
+    /** Builds the grid of the points XS[i], YS[i]. The arrays are not kept. */
+    public GridPointSet(double[] xs, double[] ys) {
+        int n = xs.length;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        if (n == 0) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+
+        /* Choose the shape of the grid so that its cells are about square on the ground. */
+        int cells = Math.max(1, n / POINTS_PER_CELL);
+        double width = (maxX - minX) * Math.cos(Math.toRadians((minY + maxY) / 2));
+        double height = maxY - minY;
+        int columns;
+        if (width <= 0) {
+            columns = 1;
+        } else if (height <= 0) {
+            columns = cells;
+        } else {
+            columns = (int) Math.max(1, Math.min(cells, Math.round(Math.sqrt(cells * width
+                    / height))));
+        }
+        int rows = Math.max(1, (cells + columns - 1) / columns);
+        this.cells = new GridCells(minX, minY, maxX, maxY, columns, rows);
+
+        /* Count the points of each cell, then place them in a second pass. */
+        int[] cellOf = new int[n];
+        int[] starts = new int[this.cells.size() + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = this.cells.cell(this.cells.column(xs[i]), this.cells.row(ys[i]));
+            starts[cellOf[i] + 1] += 1;
+        }
+        for (int c = 0; c + 1 < starts.length; c++) {
+            starts[c + 1] += starts[c];
+        }
+        int[] next = starts.clone();
+        this.ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[next[cellOf[i]]++] = i;
+        }
+        this.cellStarts = starts;
+
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.cosYs = new double[n];
+        for (int p = 0; p < n; p++) {
+            this.xs[p] = xs[ids[p]];
+            this.ys[p] = ys[ids[p]];
+            this.cosYs[p] = Math.cos(Math.toRadians(this.ys[p]));
+        }
+    }
+
+    private static double[] xsOf(List<Point> points) {
+        double[] xs = new double[points.size()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = points.get(i).getX();
+        }
+        return xs;
+    }
+
+    private static double[] ysOf(List<Point> points) {
+        double[] ys = new double[points.size()];
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] = points.get(i).getY();
+        }
+        return ys;
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public Point nearest(double x, double y) {
+        int i = nearestPosition(x, y);
+        return i < 0 ? null : new Point(xs[i], ys[i]);
+    }
+
+    @Override
+    public int nearestIndex(double x, double y) {
+        int i = nearestPosition(x, y);
+        return i < 0 ? -1 : ids[i];
+    }
+
+    /** Returns the position of the point nearest to X, Y, or -1 if there are none. */
+    private int nearestPosition(double x, double y) {
+        if (ids.length == 0) {
+            return -1;
+        }
+        return searchCells(x, y, null, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public List<Point> kNearest(double x, double y, int k) {
+        return points(search(x, y, k, Double.POSITIVE_INFINITY));
+    }
+
+    @Override
+    public List<Point> withinRadius(double x, double y, double miles) {
+        return points(search(x, y, ids.length, miles));
+    }
+
+    private List<Point> points(int[] positions) {
+        List<Point> points = new ArrayList<>(positions.length);
+        for (int p : positions) {
+            points.add(new Point(xs[p], ys[p]));
+        }
+        return points;
+    }
+
+    /**
+     * Returns the positions of the K points nearest to X, Y, nearest first, leaving out
+     * those more than MILES away.
+     */
+    private int[] search(double x, double y, int k, double miles) {
+        k = Math.min(k, ids.length);
+        if (k <= 0 || !(miles >= 0)) {
+            return new int[0];
+        }
+        NearestHeap best = new NearestHeap(k);
+        searchCells(x, y, best, miles);
+        return best.drain();
+    }
+
+    /**
+     * Searches the cells around X, Y ring by ring for the nearest points. Without a HEAP,
+     * returns the position of the point nearest to X, Y. With one, offers HEAP each point
+     * within MILES that could be among the nearest it holds, and returns -1.
+     */
+    private int searchCells(double x, double y, NearestHeap heap, double miles) {
+        double cosY = Math.cos(Math.toRadians(y));
+        int column = cells.column(x);
+        int row = cells.row(y);
+        /* The slack only keeps rounding from cutting off points right on the circle,
+         * which the exact check below settles. */
+        double radiusAngle = heap == null
+                ? Double.POSITIVE_INFINITY : GreatCircle.angleOfMiles(miles) * (1 + 1e-12);
+        int best = -1;
+        /* The haversine of the best distance so far, and the central angle it spans. */
+        double bestA = Double.POSITIVE_INFINITY;
+        double bestAngle = radiusAngle;
+        for (int ring = 0; ring == 0 || searchRing(ring, column, row, x, y, cosY, bestAngle);
+             ring++) {
+            for (int r = cells.firstRow(row, ring); r <= cells.lastRow(row, ring); r++) {
+                for (int c = cells.firstColumn(column, row, ring, r);
+                     c <= cells.lastColumn(column, ring);
+                     c = cells.nextColumn(column, row, ring, r, c)) {
+                    int cell = cells.cell(c, r);
+                    for (int p = cellStarts[cell]; p < cellStarts[cell + 1]; p++) {
+                        /* The latitude difference alone is a lower bound on the angle. */
+                        if (Math.abs(Math.toRadians(y - ys[p])) > bestAngle) {
+                            continue;
+                        }
+                        double a = GreatCircle.haversine(xs[p], ys[p], cosYs[p], x, y, cosY);
+                        if (heap == null) {
+                            if (a < bestA || a == bestA && ids[p] > ids[best]) {
+                                best = p;
+                                bestA = a;
+                                bestAngle = GreatCircle.angle(a);
+                            }
+                        } else if ((miles == Double.POSITIVE_INFINITY
+                                || GreatCircle.miles(a) <= miles)
+                                && heap.offer(p, ids[p], a) && heap.isFull()) {
+                            bestAngle = Math.min(radiusAngle, GreatCircle.angle(heap.bound()));
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns whether RING still has to be searched: whether there are cells left and
+     * the nearest of them could hold a point within BEST_ANGLE.
+     */
+    private boolean searchRing(int ring, int column, int row, double x, double y,
+                               double cosY, double bestAngle) {
+        double bound = ringBound(ring, column, row, x, y, cosY);
+        return bound != Double.POSITIVE_INFINITY && bound <= bestAngle;
+    }
+
+    /**
+     * Returns a lower bound on the central angle from X, Y, whose latitude has cosine
+     * COS_Y, to any point outside the rings of cells before RING around the cell at COLUMN
+     * and ROW. Such points lie beyond a side of the box of those rings, so the nearest side
+     * with cells beyond it bounds them. Returns positive infinity once no cells are left.
+     */
+    private double ringBound(int ring, int column, int row, double x, double y, double cosY) {
+        double xGap = cells.xGap(ring, column, x);
+        double yGap = cells.yGap(ring, row, y);
+        if (xGap == Double.POSITIVE_INFINITY) {
+            return Math.toRadians(yGap);
+        }
+        return Math.min(GreatCircle.acrossMeridian(Math.toRadians(xGap), cosY),
+                Math.toRadians(yGap));
+    }
+}
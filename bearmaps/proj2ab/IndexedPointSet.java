@@ -0,0 +1,16 @@
+package bearmaps.proj2ab;
+
+/**
+ * A PointSet over a fixed list of points that can also tell which of them is nearest,
+ * so that callers can keep data about each point in arrays of their own.
+ */
+public interface IndexedPointSet extends PointSet {
+    /** Returns the number of points. */
+    int size();
+
+    /**
+     * Returns the index in the input of the point nearest to X, Y, or -1 if there are no
+     * points. Of points at the same distance, the one latest in the input is returned.
+     */
+    int nearestIndex(double x, double y);
+}
@@ -1,4 +1,7 @@
-package bearmaps;
+package bearmaps.proj2ab;
+
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public class NaivePointSet implements PointSet {
@@ -23,4 +26,41 @@ public class NaivePointSet implements PointSet {
         return closest;
     }
 
+    /** Sorts every point by distance and keeps the first K. */
+    @Override
+    public List<Point> kNearest(double x, double y, int k) {
+        List<Point> sorted = byDistance(this.points, x, y);
+        return new ArrayList<>(sorted.subList(0, Math.min(Math.max(k, 0), sorted.size())));
+    }
+
+    /** Keeps the points within MILES, then sorts them by distance. */
+    @Override
+    public List<Point> withinRadius(double x, double y, double miles) {
+        Point goal = new Point(x,y);
+        List<Point> within = new ArrayList<>();
+        for (Point actual: this.points) {
+            if (Point.distance(actual, goal) <= miles) {
+                within.add(actual);
+            }
+        }
+        return byDistance(within, x, y);
+    }
+
+    /**
+     * Returns POINTS sorted by distance from X, Y. Of points at the same distance, the one
+     * later in POINTS comes first.
+     */
+    private static List<Point> byDistance(List<Point> points, double x, double y) {
+        Point goal = new Point(x,y);
+        List<Integer> order = new ArrayList<>();
+        for (int i = points.size() - 1; i >= 0; i--) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingDouble(i -> Point.distance(points.get(i), goal)));
+        List<Point> sorted = new ArrayList<>();
+        for (int i : order) {
+            sorted.add(points.get(i));
+        }
+        return sorted;
+    }
 }
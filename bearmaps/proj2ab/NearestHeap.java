@@ -0,0 +1,111 @@
+package bearmaps.proj2ab;
+
+import java.util.Arrays;
+
+/**
+ * The best candidates of a k-nearest search: a max-heap of at most k items, the worst at
+ * the root, so that once it is full its root bounds the rest of the search.
+ *
+ * Items are ordered by key, the haversine of their distance, and items with the same key
+ * by rank, the higher first. The heap is stored in parallel primitive arrays that grow as
+ * needed up to k.
+ */
+final class NearestHeap {
+    private final int capacity;
+    private int[] items;
+    private int[] ranks;
+    private double[] keys;
+    private int size;
+
+    NearestHeap(int capacity) {
+        this.capacity = capacity;
+        int initial = Math.max(1, Math.min(capacity, 64));
+        items = new int[initial];
+        ranks = new int[initial];
+        keys = new double[initial];
+    }
+
+    /** Returns whether the heap holds as many items as it can. */
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Returns the key of the worst item, or positive infinity if the heap is not full. */
+    double bound() {
+        return size == capacity && size > 0 ? keys[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Adds ITEM of the given RANK and KEY if the heap has room or it beats the worst
+     * item, which it then replaces. Returns whether it was added.
+     */
+    boolean offer(int item, int rank, double key) {
+        if (size < capacity) {
+            if (size == items.length) {
+                int grown = Math.min(capacity, 2 * size);
+                items = Arrays.copyOf(items, grown);
+                ranks = Arrays.copyOf(ranks, grown);
+                keys = Arrays.copyOf(keys, grown);
+            }
+            int i = size;
+            size += 1;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(keys[parent], ranks[parent], key, rank)) {
+                    break;
+                }
+                set(i, items[parent], ranks[parent], keys[parent]);
+                i = parent;
+            }
+            set(i, item, rank, key);
+            return true;
+        }
+        if (size > 0 && before(key, rank, keys[0], ranks[0])) {
+            siftDown(item, rank, key);
+            return true;
+        }
+        return false;
+    }
+
+    /** Empties the heap, returning its items best first. */
+    int[] drain() {
+        int[] result = new int[size];
+        while (size > 0) {
+            size -= 1;
+            result[size] = items[0];
+            siftDown(items[size], ranks[size], keys[size]);
+        }
+        return result;
+    }
+
+    /** Returns whether an item of KEY and RANK ranks before one of OTHER_KEY and OTHER_RANK. */
+    private static boolean before(double key, int rank, double otherKey, int otherRank) {
+        return key < otherKey || key == otherKey && rank > otherRank;
+    }
+
+    /** Replaces the root with ITEM and restores the heap order. */
+    private void siftDown(int item, int rank, double key) {
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size
+                    && before(keys[child], ranks[child], keys[child + 1], ranks[child + 1])) {
+                child += 1;
+            }
+            if (!before(key, rank, keys[child], ranks[child])) {
+                break;
+            }
+            set(i, items[child], ranks[child], keys[child]);
+            i = child;
+        }
+        if (size > 0) {
+            set(i, item, rank, key);
+        }
+    }
+
+    private void set(int i, int item, int rank, double key) {
+        items[i] = item;
+        ranks[i] = rank;
+        keys[i] = key;
+    }
+}
@@ -1,5 +1,16 @@
 package bearmaps.proj2ab;
 
+import java.util.List;
+
 public interface PointSet {
     Point nearest(double x, double y);
+
+    /**
+     * Returns the K points nearest to X, Y, nearest first, or all of them if there are
+     * fewer than K.
+     */
+    List<Point> kNearest(double x, double y, int k);
+
+    /** Returns the points at most MILES from X, Y, nearest first. */
+    List<Point> withinRadius(double x, double y, double miles);
 }
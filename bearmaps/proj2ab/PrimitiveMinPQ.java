@@ -0,0 +1,105 @@
+package bearmaps.proj2ab;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary min-heap of int items with double priorities, stored in two parallel
+ * primitive arrays so that adding and removing never allocates once the heap
+ * has grown to its working size.
+ *
+ * Unlike ExtrinsicMinPQ there is no changePriority: an item may be added
+ * several times, and callers skip stale copies when they are removed. This
+ * "lazy deletion" is the usual trade-off for graph searches, where it is
+ * cheaper than tracking each item's position in the heap.
+ */
+public class PrimitiveMinPQ {
+    private int[] items;
+    private double[] priorities;
+    private int size;
+
+    public PrimitiveMinPQ() {
+        this(64);
+    }
+
+    public PrimitiveMinPQ(int capacity) {
+        items = new int[Math.max(capacity, 2)];
+        priorities = new double[Math.max(capacity, 2)];
+        size = 0;
+    }
+
+    /** Adds ITEM with the given PRIORITY. Duplicate items are allowed. */
+    public void add(int item, double priority) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            priorities = Arrays.copyOf(priorities, size * 2);
+        }
+        int i = size;
+        size += 1;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            items[i] = items[parent];
+            priorities[i] = priorities[parent];
+            i = parent;
+        }
+        items[i] = item;
+        priorities[i] = priority;
+    }
+
+    /** Returns the item with the smallest priority. */
+    public int peek() {
+        if (size == 0) {
+            throw new NoSuchElementException("PQ is empty.");
+        }
+        return items[0];
+    }
+
+    /** Returns the smallest priority, or positive infinity if the PQ is empty. */
+    public double peekPriority() {
+        return size == 0 ? Double.POSITIVE_INFINITY : priorities[0];
+    }
+
+    /** Removes and returns the item with the smallest priority. */
+    public int removeSmallest() {
+        if (size == 0) {
+            throw new NoSuchElementException("PQ is empty.");
+        }
+        int smallest = items[0];
+        size -= 1;
+        int item = items[size];
+        double priority = priorities[size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+                child += 1;
+            }
+            if (priority <= priorities[child]) {
+                break;
+            }
+            items[i] = items[child];
+            priorities[i] = priorities[child];
+            i = child;
+        }
+        items[i] = item;
+        priorities[i] = priority;
+        return smallest;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Removes every item but keeps the backing arrays for reuse. */
+    public void clear() {
+        size = 0;
+    }
+}
@@ -1,5 +1,6 @@
 package bearmaps.proj2ab;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -15,6 +16,8 @@ public class WeirdPointSet implements PointSet {
 
     private illiilli iillilil;
     private illiilli ilililil = iillilil;
+    /** Answers kNearest and withinRadius by a linear scan, in the input order. */
+    private final NaivePointSet scan;
 
     private class illiilli {
         private Point illililil;
@@ -33,6 +36,7 @@ public class WeirdPointSet implements PointSet {
     }
 
     public WeirdPointSet(List<Point> iliillili) {
+        scan = new NaivePointSet(new ArrayList<>(iliillili));
         Collections.shuffle(iliillili);
         for (Point p : iliillili) {
             iillilil = add(p, iillilil, ILILLLIILLI);
@@ -103,6 +107,16 @@ public class WeirdPointSet implements PointSet {
         return illilill.illililil;
     }
 
+    @Override
+    public List<Point> kNearest(double x, double y, int k) {
+        return scan.kNearest(x, y, k);
+    }
+
+    @Override
+    public List<Point> withinRadius(double x, double y, double miles) {
+        return scan.withinRadius(x, y, miles);
+    }
+
     private illiilli illllililll(illiilli illilll, Point ililillli, illiilli iillilli) {
         illiilli illilllil = iillilli;
 
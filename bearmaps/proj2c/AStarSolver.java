@@ -0,0 +1,214 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A* search over the dense vertex indices of a StreetMapGraph, using the
+ * graph's estimatedDistance to the goal as the heuristic.
+ *
+ * The search runs in the constructor. Distances, parents and the fringe live
+ * in the calling thread's SearchWorkspace, so a query allocates nothing but
+ * its result list. If the search is still running after TIMEOUT seconds it
+ * gives up and reports SolverOutcome.TIMEOUT.
+ *
+ * A search can also run between two points snapped onto roads. Each snap is then a
+ * virtual vertex, numbered after the graph's, that splits its segment in two, so the
+ * route can leave the start and reach the goal by whichever end of their roads is better.
+ */
+public class AStarSolver implements ShortestPathsSolver<Long> {
+    /** How many vertices to settle between two checks of the deadline. */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private SolverOutcome outcome;
+    private List<Long> solution = new ArrayList<>();
+    private double solutionWeight = 0;
+    private int numStatesExplored = 0;
+    private double explorationTime;
+
+    public AStarSolver(StreetMapGraph g, long start, long end, double timeout) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + (long) (timeout * 1e9);
+
+        int source = g.indexOf(start);
+        int target = g.indexOf(end);
+        SearchWorkspace ws = SearchWorkspace.forward(g.vertexCount());
+        PrimitiveMinPQ fringe = ws.fringe();
+
+        ws.reach(source, 0, -1);
+        fringe.add(source, g.estimatedDistance(source, target));
+        outcome = SolverOutcome.UNSOLVABLE;
+
+        while (!fringe.isEmpty()) {
+            int v = fringe.removeSmallest();
+            if (ws.isSettled(v)) {
+                continue;
+            }
+            if (v == target) {
+                outcome = SolverOutcome.SOLVED;
+                break;
+            }
+            ws.settle(v);
+            numStatesExplored += 1;
+            if (numStatesExplored % DEADLINE_CHECK_INTERVAL == 0
+                    && System.nanoTime() > deadline) {
+                outcome = SolverOutcome.TIMEOUT;
+                break;
+            }
+
+            double distance = ws.distance(v);
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                double candidate = distance + g.edgeWeight(e);
+                if (candidate < ws.distance(w)) {
+                    ws.reach(w, candidate, v);
+                    fringe.add(w, candidate + g.estimatedDistance(w, target));
+                }
+            }
+        }
+
+        if (outcome == SolverOutcome.SOLVED) {
+            solutionWeight = ws.distance(target);
+            for (int v = target; v != -1; v = ws.parent(v)) {
+                solution.add(g.idAt(v));
+            }
+            Collections.reverse(solution);
+        }
+        explorationTime = (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Searches from the point START to the point END, both snapped onto segments. The
+     * solution lists the vertices between them, or only the end of the start's segment
+     * nearer to it if the route stays on that segment; its weight includes the parts of
+     * the snapped segments travelled.
+     */
+    public AStarSolver(StreetMapGraph g, EdgeSnap start, EdgeSnap end, double timeout) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + (long) (timeout * 1e9);
+
+        int source = g.vertexCount();
+        int target = source + 1;
+        SearchWorkspace ws = SearchWorkspace.forward(g.vertexCount() + 2);
+        PrimitiveMinPQ fringe = ws.fringe();
+
+        ws.reach(source, 0, -1);
+        fringe.add(source, 0);
+        outcome = SolverOutcome.UNSOLVABLE;
+
+        while (!fringe.isEmpty()) {
+            int v = fringe.removeSmallest();
+            if (ws.isSettled(v)) {
+                continue;
+            }
+            if (v == target) {
+                outcome = SolverOutcome.SOLVED;
+                break;
+            }
+            ws.settle(v);
+            numStatesExplored += 1;
+            if (numStatesExplored % DEADLINE_CHECK_INTERVAL == 0
+                    && System.nanoTime() > deadline) {
+                outcome = SolverOutcome.TIMEOUT;
+                break;
+            }
+
+            double distance = ws.distance(v);
+            if (v == source) {
+                /* Leave the start's segment by either end, or follow it to the goal. */
+                if (start.forward()) {
+                    relax(g, ws, v, start.target(), start.toTarget(), end, target);
+                }
+                if (start.backward()) {
+                    relax(g, ws, v, start.source(), start.toSource(), end, target);
+                }
+                if (start.sameSegment(end)) {
+                    double along = end.toSource() - start.toSource();
+                    if (along >= 0 ? start.forward() : start.backward()) {
+                        relax(g, ws, v, target, Math.abs(along), end, target);
+                    }
+                }
+                continue;
+            }
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                relax(g, ws, v, g.edgeTarget(e), distance + g.edgeWeight(e), end, target);
+            }
+            /* Enter the goal's segment from either end. */
+            if (v == end.source() && end.forward()) {
+                relax(g, ws, v, target, distance + end.toSource(), end, target);
+            }
+            if (v == end.target() && end.backward()) {
+                relax(g, ws, v, target, distance + end.toTarget(), end, target);
+            }
+        }
+
+        if (outcome == SolverOutcome.SOLVED) {
+            solutionWeight = ws.distance(target);
+            for (int v = ws.parent(target); v != source; v = ws.parent(v)) {
+                solution.add(g.idAt(v));
+            }
+            Collections.reverse(solution);
+            if (solution.isEmpty()) {
+                solution.add(g.idAt(start.nearerVertex()));
+            }
+        }
+        explorationTime = (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Records that W, a vertex or the virtual GOAL, can be reached with CANDIDATE through
+     * V if that is shorter than its best known distance, and adds it to the fringe.
+     */
+    private static void relax(StreetMapGraph g, SearchWorkspace ws, int v, int w,
+                              double candidate, EdgeSnap end, int goal) {
+        if (candidate < ws.distance(w)) {
+            ws.reach(w, candidate, v);
+            ws.fringe().add(w, candidate + (w == goal ? 0 : estimatedDistance(g, w, end)));
+        }
+    }
+
+    /**
+     * Returns the estimated distance from V to the point END: the shorter of the estimates
+     * through the ends of its segment that lead onto it. Each is consistent, and so is
+     * the smaller of the two.
+     */
+    private static double estimatedDistance(StreetMapGraph g, int v, EdgeSnap end) {
+        double estimate = Double.POSITIVE_INFINITY;
+        if (end.forward()) {
+            estimate = g.estimatedDistance(v, end.source()) + end.toSource();
+        }
+        if (end.backward()) {
+            estimate = Math.min(estimate, g.estimatedDistance(v, end.target()) + end.toTarget());
+        }
+        return estimate;
+    }
+
+    @Override
+    public SolverOutcome outcome() {
+        return outcome;
+    }
+
+    @Override
+    public List<Long> solution() {
+        return solution;
+    }
+
+    @Override
+    public double solutionWeight() {
+        return solutionWeight;
+    }
+
+    @Override
+    public int numStatesExplored() {
+        return numStatesExplored;
+    }
+
+    @Override
+    public double explorationTime() {
+        return explorationTime;
+    }
+}
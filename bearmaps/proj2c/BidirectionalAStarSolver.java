@@ -0,0 +1,180 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bidirectional A* over the dense vertex indices of a StreetMapGraph. One search
+ * runs forward from the start over outgoing edges while the other runs backward
+ * from the goal over incoming edges, and the two meet in the middle.
+ *
+ * Both searches use the average potential
+ * p(v) = (h(v, goal) - h(start, v)) / 2, forward keys being d(start, v) + p(v)
+ * and backward keys d(v, goal) - p(v). Because p is consistent for both
+ * directions, the search may stop as soon as the two smallest keys add up to at
+ * least the best path found so far. In addition, a vertex is not expanded if
+ * the other search has already settled it, or if its distance plus the plain
+ * heuristic already rules out beating the best path, which keeps the two
+ * searches from overlapping much once they have met.
+ */
+public class BidirectionalAStarSolver implements ShortestPathsSolver<Long> {
+    /** How many vertices to settle between two checks of the deadline. */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final StreetMapGraph g;
+    private final int source;
+    private final int target;
+
+    private SolverOutcome outcome;
+    private List<Long> solution = new ArrayList<>();
+    private double solutionWeight = 0;
+    private int numStatesExplored = 0;
+    private double explorationTime;
+
+    private double best = Double.POSITIVE_INFINITY;
+    private int meeting = -1;
+
+    public BidirectionalAStarSolver(StreetMapGraph g, long start, long end, double timeout) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + (long) (timeout * 1e9);
+
+        this.g = g;
+        source = g.indexOf(start);
+        target = g.indexOf(end);
+        SearchWorkspace forward = SearchWorkspace.forward(g.vertexCount());
+        SearchWorkspace backward = SearchWorkspace.backward(g.vertexCount());
+        PrimitiveMinPQ forwardFringe = forward.fringe();
+        PrimitiveMinPQ backwardFringe = backward.fringe();
+
+        forward.reach(source, 0, -1);
+        forwardFringe.add(source, potential(source));
+        backward.reach(target, 0, -1);
+        backwardFringe.add(target, -potential(target));
+        if (source == target) {
+            best = 0;
+            meeting = source;
+        }
+        outcome = SolverOutcome.UNSOLVABLE;
+
+        while (!forwardFringe.isEmpty() && !backwardFringe.isEmpty()) {
+            double forwardTop = forwardFringe.peekPriority();
+            double backwardTop = backwardFringe.peekPriority();
+            if (forwardTop + backwardTop >= best) {
+                break;
+            }
+            if (forwardTop <= backwardTop) {
+                int v = forwardFringe.removeSmallest();
+                if (forward.isSettled(v) || isPruned(v, forward.distance(v)
+                        + g.estimatedDistance(v, target), backward)) {
+                    continue;
+                }
+                forward.settle(v);
+                expandForward(v, forward, backward);
+            } else {
+                int v = backwardFringe.removeSmallest();
+                if (backward.isSettled(v) || isPruned(v, backward.distance(v)
+                        + g.estimatedDistance(source, v), forward)) {
+                    continue;
+                }
+                backward.settle(v);
+                expandBackward(v, forward, backward);
+            }
+            numStatesExplored += 1;
+            if (numStatesExplored % DEADLINE_CHECK_INTERVAL == 0
+                    && System.nanoTime() > deadline) {
+                outcome = SolverOutcome.TIMEOUT;
+                break;
+            }
+        }
+
+        if (outcome != SolverOutcome.TIMEOUT && meeting != -1) {
+            outcome = SolverOutcome.SOLVED;
+            solutionWeight = best;
+            for (int v = meeting; v != -1; v = forward.parent(v)) {
+                solution.add(g.idAt(v));
+            }
+            Collections.reverse(solution);
+            for (int v = backward.parent(meeting); v != -1; v = backward.parent(v)) {
+                solution.add(g.idAt(v));
+            }
+        }
+        explorationTime = (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Returns true if V need not be expanded: either no path through V can be shorter
+     * than the best one found so far, given the lower bound BOUND on such a path, or the
+     * OTHER search has already settled V, in which case the best path through V is
+     * already known.
+     */
+    private boolean isPruned(int v, double bound, SearchWorkspace other) {
+        return bound >= best || other.isSettled(v);
+    }
+
+    /** Returns the forward potential of V; the backward potential is its negation. */
+    private double potential(int v) {
+        return (g.estimatedDistance(v, target) - g.estimatedDistance(source, v)) / 2;
+    }
+
+    private void expandForward(int v, SearchWorkspace forward, SearchWorkspace backward) {
+        double distance = forward.distance(v);
+        for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+            int w = g.edgeTarget(e);
+            double candidate = distance + g.edgeWeight(e);
+            if (candidate < forward.distance(w)) {
+                forward.reach(w, candidate, v);
+                forward.fringe().add(w, candidate + potential(w));
+                updateBest(w, candidate + backward.distance(w));
+            }
+        }
+    }
+
+    private void expandBackward(int v, SearchWorkspace forward, SearchWorkspace backward) {
+        double distance = backward.distance(v);
+        for (int i = g.inEdgeStart(v); i < g.inEdgeEnd(v); i++) {
+            int u = g.inEdgeSource(i);
+            double candidate = distance + g.edgeWeight(g.inEdge(i));
+            if (candidate < backward.distance(u)) {
+                backward.reach(u, candidate, v);
+                backward.fringe().add(u, candidate - potential(u));
+                updateBest(u, candidate + forward.distance(u));
+            }
+        }
+    }
+
+    private void updateBest(int v, double pathWeight) {
+        if (pathWeight < best) {
+            best = pathWeight;
+            meeting = v;
+        }
+    }
+
+    @Override
+    public SolverOutcome outcome() {
+        return outcome;
+    }
+
+    @Override
+    public List<Long> solution() {
+        return solution;
+    }
+
+    @Override
+    public double solutionWeight() {
+        return solutionWeight;
+    }
+
+    @Override
+    public int numStatesExplored() {
+        return numStatesExplored;
+    }
+
+    @Override
+    public double explorationTime() {
+        return explorationTime;
+    }
+}
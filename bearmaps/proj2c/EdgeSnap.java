@@ -0,0 +1,86 @@
+package bearmaps.proj2c;
+
+/**
+ * A point snapped onto a road: the projection of a location onto the nearest segment of
+ * a StreetMapGraph, given by the segment's two vertices and how far along it the point is.
+ *
+ * A search can start or end at a snap as if it were a vertex splitting the segment in
+ * two, with an edge to each end for the part of the road between them. The part towards
+ * an end can only be travelled if the graph has an edge that way.
+ */
+public final class EdgeSnap {
+    private final int source;
+    private final int target;
+    private final double toSource;
+    private final double toTarget;
+    private final boolean forward;
+    private final boolean backward;
+    private final double lon;
+    private final double lat;
+
+    /**
+     * @param source The vertex at one end of the segment.
+     * @param target The vertex at the other end.
+     * @param toSource The distance along the segment from the point to SOURCE.
+     * @param toTarget The distance along the segment from the point to TARGET.
+     * @param forward Whether the graph has an edge from SOURCE to TARGET.
+     * @param backward Whether the graph has an edge from TARGET to SOURCE.
+     * @param lon The longitude of the point on the segment.
+     * @param lat The latitude of the point on the segment.
+     */
+    public EdgeSnap(int source, int target, double toSource, double toTarget, boolean forward,
+                    boolean backward, double lon, double lat) {
+        this.source = source;
+        this.target = target;
+        this.toSource = toSource;
+        this.toTarget = toTarget;
+        this.forward = forward;
+        this.backward = backward;
+        this.lon = lon;
+        this.lat = lat;
+    }
+
+    public int source() {
+        return source;
+    }
+
+    public int target() {
+        return target;
+    }
+
+    public double toSource() {
+        return toSource;
+    }
+
+    public double toTarget() {
+        return toTarget;
+    }
+
+    /** Returns whether the segment can be travelled from source to target. */
+    public boolean forward() {
+        return forward;
+    }
+
+    /** Returns whether the segment can be travelled from target to source. */
+    public boolean backward() {
+        return backward;
+    }
+
+    public double lon() {
+        return lon;
+    }
+
+    public double lat() {
+        return lat;
+    }
+
+    /** Returns the end of the segment nearer to the point, source on a tie. */
+    public int nearerVertex() {
+        return toSource <= toTarget ? source : target;
+    }
+
+    /** Returns whether this and OTHER lie on the same segment. */
+    public boolean sameSegment(EdgeSnap other) {
+        return source == other.source && target == other.target;
+    }
+}
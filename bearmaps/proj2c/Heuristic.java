@@ -0,0 +1,13 @@
+package bearmaps.proj2c;
+
+/**
+ * A lower bound on the length of the shortest path between two vertices of a
+ * graph, given by their dense indices. A* and bidirectional A* find shortest
+ * paths as long as the estimate never exceeds the true distance and is
+ * consistent, i.e. estimate(v, goal) <= weight(v, w) + estimate(w, goal) for
+ * every edge v -> w.
+ */
+public interface Heuristic {
+    /** Returns a lower bound on the length of any path from V to GOAL. */
+    double estimate(int v, int goal);
+}
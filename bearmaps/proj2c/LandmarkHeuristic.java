@@ -0,0 +1,253 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The ALT (A*, landmarks, triangle inequality) heuristic. A few landmark
+ * vertices are chosen, and the shortest distances from every landmark to every
+ * vertex and from every vertex to every landmark are precomputed. For a landmark
+ * L the triangle inequality gives two lower bounds on d(v, goal):
+ * <pre>
+ *     d(L, goal) - d(L, v)    and    d(v, L) - d(goal, L)
+ * </pre>
+ * The estimate is the largest of these bounds over all landmarks, and never less
+ * than the great-circle distance, which it improves on most when a landmark lies
+ * roughly behind v or beyond the goal.
+ *
+ * The distances are kept in two float tables of landmarkCount() entries per
+ * vertex, stored vertex by vertex so that one estimate reads two short runs of
+ * memory. Each distance is rounded down when stored, and the subtracted one is
+ * bumped up by one ulp when read, so that rounding never makes the bound exceed
+ * the true distance.
+ */
+public class LandmarkHeuristic implements Heuristic {
+    /** How landmarks are chosen. */
+    public enum Selection {
+        /** Each landmark is the vertex farthest from the landmarks chosen before it. */
+        FARTHEST,
+        /**
+         * Each landmark is placed in the region of a random shortest path tree whose
+         * distances the landmarks chosen before it estimate worst.
+         */
+        AVOID
+    }
+
+    private static final long SEED = 61;
+
+    private final StreetMapGraph g;
+    private final int count;
+    private final int[] landmarks;
+    /** fromLandmark[v * count + i] is the distance from landmark i to v. */
+    private final float[] fromLandmark;
+    /** toLandmark[v * count + i] is the distance from v to landmark i. */
+    private final float[] toLandmark;
+
+    /**
+     * Chooses COUNT landmarks of G and precomputes their distance tables.
+     * @param g The graph to estimate distances in.
+     * @param count The number of landmarks; more give better estimates but cost
+     *              8 * count bytes per vertex and slower estimates.
+     * @param selection How the landmarks are chosen.
+     */
+    public LandmarkHeuristic(StreetMapGraph g, int count, Selection selection) {
+        int n = g.vertexCount();
+        this.g = g;
+        this.count = Math.min(count, n);
+        landmarks = new int[this.count];
+        fromLandmark = new float[n * this.count];
+        toLandmark = new float[n * this.count];
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < this.count; i++) {
+            int landmark;
+            if (i == 0) {
+                landmark = farthest(dijkstra(random.nextInt(n), true).distance, 0);
+            } else if (selection == Selection.FARTHEST) {
+                landmark = farthest(null, i);
+            } else {
+                landmark = avoid(random.nextInt(n), i);
+            }
+            landmarks[i] = landmark;
+            store(dijkstra(landmark, true).distance, fromLandmark, i);
+            store(dijkstra(landmark, false).distance, toLandmark, i);
+        }
+    }
+
+    /** Returns the number of landmarks. */
+    public int landmarkCount() {
+        return count;
+    }
+
+    /** Returns the index of the Ith landmark. */
+    public int landmark(int i) {
+        return landmarks[i];
+    }
+
+    @Override
+    public double estimate(int v, int goal) {
+        return Math.max(g.greatCircleDistance(v, goal), landmarkEstimate(v, goal, count));
+    }
+
+    /** Returns the best landmark bound on d(v, goal) using only the first USED landmarks. */
+    private double landmarkEstimate(int v, int goal, int used) {
+        double best = 0;
+        int vBase = v * count;
+        int goalBase = goal * count;
+        for (int i = 0; i < used; i++) {
+            float fromToGoal = fromLandmark[goalBase + i];
+            float fromToV = fromLandmark[vBase + i];
+            if (fromToGoal < Float.POSITIVE_INFINITY && fromToV < Float.POSITIVE_INFINITY) {
+                best = Math.max(best, fromToGoal - (double) Math.nextUp(fromToV));
+            }
+            float vToLandmark = toLandmark[vBase + i];
+            float goalToLandmark = toLandmark[goalBase + i];
+            if (vToLandmark < Float.POSITIVE_INFINITY && goalToLandmark < Float.POSITIVE_INFINITY) {
+                best = Math.max(best, vToLandmark - (double) Math.nextUp(goalToLandmark));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the vertex farthest from the first USED landmarks, measured by the
+     * smallest distance from any of them. If DISTANCE is given, returns the vertex
+     * farthest by DISTANCE instead. Unreachable vertices are never chosen.
+     */
+    private int farthest(double[] distance, int used) {
+        int best = 0;
+        double bestDistance = -1;
+        for (int v = 0; v < g.vertexCount(); v++) {
+            double d;
+            if (distance != null) {
+                d = distance[v];
+            } else {
+                d = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < used; i++) {
+                    d = Math.min(d, fromLandmark[v * count + i]);
+                }
+            }
+            if (d < Double.POSITIVE_INFINITY && d > bestDistance) {
+                best = v;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks a landmark with the "avoid" rule. Each vertex of the shortest path tree
+     * rooted at ROOT is weighted by how far the first USED landmarks underestimate
+     * its distance from the root. Starting at the root, the walk repeatedly moves to
+     * the child whose subtree has the largest total weight, skipping subtrees that
+     * already contain a landmark, and the leaf it ends at becomes the landmark.
+     */
+    private int avoid(int root, int used) {
+        ShortestPathTree tree = dijkstra(root, true);
+        double[] size = new double[g.vertexCount()];
+        boolean[] covered = new boolean[g.vertexCount()];
+        for (int i = 0; i < used; i++) {
+            covered[landmarks[i]] = true;
+        }
+        for (int k = tree.settled - 1; k >= 0; k--) {
+            int v = tree.order[k];
+            if (covered[v]) {
+                size[v] = 0;
+            } else {
+                size[v] += tree.distance[v] - landmarkEstimate(root, v, used);
+            }
+            int parent = tree.parent[v];
+            if (parent != -1) {
+                size[parent] += size[v];
+                covered[parent] |= covered[v];
+            }
+        }
+
+        int[] heaviestChild = new int[g.vertexCount()];
+        Arrays.fill(heaviestChild, -1);
+        for (int k = 1; k < tree.settled; k++) {
+            int v = tree.order[k];
+            int parent = tree.parent[v];
+            if (size[v] > 0 && (heaviestChild[parent] == -1
+                    || size[v] > size[heaviestChild[parent]])) {
+                heaviestChild[parent] = v;
+            }
+        }
+        int v = root;
+        while (heaviestChild[v] != -1) {
+            v = heaviestChild[v];
+        }
+        return v;
+    }
+
+    /** Stores DISTANCE, rounded down to floats, as column I of TABLE. */
+    private void store(double[] distance, float[] table, int i) {
+        for (int v = 0; v < distance.length; v++) {
+            float rounded = (float) distance[v];
+            if (rounded > distance[v]) {
+                rounded = Math.nextDown(rounded);
+            }
+            table[v * count + i] = rounded;
+        }
+    }
+
+    /** The result of a full Dijkstra search: distances, parents and the settle order. */
+    private static class ShortestPathTree {
+        double[] distance;
+        int[] parent;
+        int[] order;
+        int settled;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from SOURCE over the whole graph, following edges
+     * forward if FORWARD is true and backward otherwise.
+     */
+    private ShortestPathTree dijkstra(int source, boolean forward) {
+        int n = g.vertexCount();
+        ShortestPathTree tree = new ShortestPathTree();
+        tree.distance = new double[n];
+        tree.parent = new int[n];
+        tree.order = new int[n];
+        Arrays.fill(tree.distance, Double.POSITIVE_INFINITY);
+        boolean[] settled = new boolean[n];
+        PrimitiveMinPQ fringe = new PrimitiveMinPQ();
+
+        tree.distance[source] = 0;
+        tree.parent[source] = -1;
+        fringe.add(source, 0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.removeSmallest();
+            if (settled[v]) {
+                continue;
+            }
+            settled[v] = true;
+            tree.order[tree.settled] = v;
+            tree.settled += 1;
+            double distance = tree.distance[v];
+            if (forward) {
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    relax(tree, fringe, v, g.edgeTarget(e), distance + g.edgeWeight(e));
+                }
+            } else {
+                for (int i = g.inEdgeStart(v); i < g.inEdgeEnd(v); i++) {
+                    relax(tree, fringe, v, g.inEdgeSource(i),
+                            distance + g.edgeWeight(g.inEdge(i)));
+                }
+            }
+        }
+        return tree;
+    }
+
+    private static void relax(ShortestPathTree tree, PrimitiveMinPQ fringe, int v, int w,
+                              double candidate) {
+        if (candidate < tree.distance[w]) {
+            tree.distance[w] = candidate;
+            tree.parent[w] = v;
+            fringe.add(w, candidate);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch space for searches over dense vertex indices: best known
+ * distances, parent pointers, settled flags and the fringe.
+ *
+ * Instead of clearing its arrays between queries, a workspace bumps a
+ * generation counter; an entry only counts as written if its stamp equals the
+ * current generation. Starting a new search is therefore O(1) and the arrays
+ * are allocated once per thread, not once per query.
+ *
+ * A workspace is not thread-safe. Use forward() and backward() to get the
+ * calling thread's instances; bidirectional searches need one of each.
+ */
+public final class SearchWorkspace {
+    private static final ThreadLocal<SearchWorkspace> FORWARD =
+            ThreadLocal.withInitial(SearchWorkspace::new);
+    private static final ThreadLocal<SearchWorkspace> BACKWARD =
+            ThreadLocal.withInitial(SearchWorkspace::new);
+
+    private double[] distances = new double[0];
+    private int[] parents = new int[0];
+    private int[] reachedStamps = new int[0];
+    private int[] settledStamps = new int[0];
+    private int generation = 0;
+
+    private final PrimitiveMinPQ fringe = new PrimitiveMinPQ();
+
+    private SearchWorkspace() {
+    }
+
+    /**
+     * Returns the calling thread's workspace for forward searches, reset for a
+     * graph with VERTEXCOUNT vertices.
+     */
+    public static SearchWorkspace forward(int vertexCount) {
+        SearchWorkspace workspace = FORWARD.get();
+        workspace.reset(vertexCount);
+        return workspace;
+    }
+
+    /**
+     * Returns the calling thread's workspace for backward searches, reset for a
+     * graph with VERTEXCOUNT vertices.
+     */
+    public static SearchWorkspace backward(int vertexCount) {
+        SearchWorkspace workspace = BACKWARD.get();
+        workspace.reset(vertexCount);
+        return workspace;
+    }
+
+    private void reset(int vertexCount) {
+        if (distances.length < vertexCount) {
+            distances = new double[vertexCount];
+            parents = new int[vertexCount];
+            reachedStamps = new int[vertexCount];
+            settledStamps = new int[vertexCount];
+            generation = 0;
+        }
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reachedStamps, 0);
+            Arrays.fill(settledStamps, 0);
+            generation = 1;
+        }
+        fringe.clear();
+    }
+
+    /** Returns the best known distance to V, or positive infinity if V hasn't been reached. */
+    public double distance(int v) {
+        return reachedStamps[v] == generation ? distances[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns the vertex V was reached from, or -1 if V is a source or hasn't been reached. */
+    public int parent(int v) {
+        return reachedStamps[v] == generation ? parents[v] : -1;
+    }
+
+    public boolean isReached(int v) {
+        return reachedStamps[v] == generation;
+    }
+
+    /** Records that V can be reached with the given DISTANCE through PARENT. */
+    public void reach(int v, double distance, int parent) {
+        reachedStamps[v] = generation;
+        distances[v] = distance;
+        parents[v] = parent;
+    }
+
+    public boolean isSettled(int v) {
+        return settledStamps[v] == generation;
+    }
+
+    public void settle(int v) {
+        settledStamps[v] = generation;
+    }
+
+    public PrimitiveMinPQ fringe() {
+        return fringe;
+    }
+}
@@ -0,0 +1,292 @@
+package bearmaps.proj2c.ch;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+import bearmaps.proj2c.SearchWorkspace;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.Arrays;
+
+/**
+ * Offline preprocessing that turns a StreetMapGraph into a ContractionHierarchy.
+ *
+ * Vertices are contracted one at a time, least important first. Contracting v
+ * removes it from the remaining graph; for every pair of remaining neighbors
+ * u -> v -> w whose shortest connection runs through v, a shortcut u -> w is
+ * added that remembers v as its middle vertex. A bounded Dijkstra search from u
+ * that avoids v (the witness search) decides whether a shortcut is needed.
+ *
+ * Importance is the edge difference (shortcuts added minus edges removed) plus
+ * the number of already contracted neighbors, which spreads contraction evenly
+ * over the map. Priorities are updated lazily: a vertex is only contracted if
+ * its recomputed priority is still the smallest in the queue.
+ *
+ * Preprocessing is single-threaded and may take a while on large graphs; save
+ * the result with ContractionHierarchy.write instead of rebuilding it.
+ */
+public class CHBuilder {
+    /** Witness searches give up after settling this many vertices. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private final StreetMapGraph g;
+    private final int n;
+
+    /* All edges, original and shortcut, of the graph being contracted. */
+    private int[] from;
+    private int[] to;
+    private double[] weight;
+    private int[] middle;
+    private int edgeCount = 0;
+
+    /* Edge ids leaving and entering each vertex. */
+    private final int[][] out;
+    private final int[] outSize;
+    private final int[][] in;
+    private final int[] inSize;
+
+    private final boolean[] contracted;
+    private final int[] contractedNeighbors;
+
+    public CHBuilder(StreetMapGraph g) {
+        this.g = g;
+        n = g.vertexCount();
+        from = new int[Math.max(g.edgeCount(), 16)];
+        to = new int[from.length];
+        weight = new double[from.length];
+        middle = new int[from.length];
+        out = new int[n][];
+        outSize = new int[n];
+        in = new int[n][];
+        inSize = new int[n];
+        for (int v = 0; v < n; v++) {
+            out[v] = new int[Math.max(g.outDegree(v), 1)];
+            in[v] = new int[Math.max(g.inEdgeEnd(v) - g.inEdgeStart(v), 1)];
+        }
+        contracted = new boolean[n];
+        contractedNeighbors = new int[n];
+
+        for (int v = 0; v < n; v++) {
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if (g.edgeTarget(e) != v) {
+                    addOrImprove(v, g.edgeTarget(e), g.edgeWeight(e), -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Contracts every vertex of the graph.
+     * @return The resulting hierarchy.
+     */
+    public ContractionHierarchy build() {
+        PrimitiveMinPQ queue = new PrimitiveMinPQ(n);
+        for (int v = 0; v < n; v++) {
+            queue.add(v, priority(v));
+        }
+
+        int[] ranks = new int[n];
+        int nextRank = 0;
+        while (!queue.isEmpty()) {
+            int v = queue.removeSmallest();
+            if (contracted[v]) {
+                continue;
+            }
+            double priority = priority(v);
+            if (!queue.isEmpty() && priority > queue.peekPriority()) {
+                queue.add(v, priority);
+                continue;
+            }
+            contract(v);
+            ranks[v] = nextRank;
+            nextRank += 1;
+        }
+        return freeze(ranks);
+    }
+
+    /** Returns how important V is; less important vertices are contracted first. */
+    private double priority(int v) {
+        int removed = 0;
+        for (int i = 0; i < inSize[v]; i++) {
+            removed += contracted[from[in[v][i]]] ? 0 : 1;
+        }
+        for (int i = 0; i < outSize[v]; i++) {
+            removed += contracted[to[out[v][i]]] ? 0 : 1;
+        }
+        return shortcuts(v, false) - removed + contractedNeighbors[v];
+    }
+
+    private void contract(int v) {
+        shortcuts(v, true);
+        contracted[v] = true;
+        for (int i = 0; i < inSize[v]; i++) {
+            contractedNeighbors[from[in[v][i]]] += 1;
+        }
+        for (int i = 0; i < outSize[v]; i++) {
+            contractedNeighbors[to[out[v][i]]] += 1;
+        }
+    }
+
+    /**
+     * Finds the shortcuts contracting V requires.
+     * @param v The vertex to contract.
+     * @param add Whether to add the shortcuts to the graph, or only count them.
+     * @return The number of shortcuts.
+     */
+    private int shortcuts(int v, boolean add) {
+        int count = 0;
+        for (int i = 0; i < inSize[v]; i++) {
+            int inEdge = in[v][i];
+            int u = from[inEdge];
+            if (contracted[u]) {
+                continue;
+            }
+
+            double maxOut = -1;
+            for (int j = 0; j < outSize[v]; j++) {
+                int w = to[out[v][j]];
+                if (!contracted[w] && w != u) {
+                    maxOut = Math.max(maxOut, weight[out[v][j]]);
+                }
+            }
+            if (maxOut < 0) {
+                continue;
+            }
+
+            SearchWorkspace witness = witnessSearch(u, v, weight[inEdge] + maxOut);
+            for (int j = 0; j < outSize[v]; j++) {
+                int outEdge = out[v][j];
+                int w = to[outEdge];
+                if (contracted[w] || w == u) {
+                    continue;
+                }
+                double via = weight[inEdge] + weight[outEdge];
+                if (witness.distance(w) > via) {
+                    count += 1;
+                    if (add) {
+                        addOrImprove(u, w, via, v);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from SOURCE over the vertices that are not yet
+     * contracted, skipping IGNORED, until every remaining vertex is farther
+     * than LIMIT or the settle limit is reached.
+     */
+    private SearchWorkspace witnessSearch(int source, int ignored, double limit) {
+        SearchWorkspace ws = SearchWorkspace.forward(n);
+        PrimitiveMinPQ fringe = ws.fringe();
+        ws.reach(source, 0, -1);
+        fringe.add(source, 0);
+        int settled = 0;
+        while (!fringe.isEmpty() && fringe.peekPriority() <= limit
+                && settled < WITNESS_SETTLE_LIMIT) {
+            int x = fringe.removeSmallest();
+            if (ws.isSettled(x)) {
+                continue;
+            }
+            ws.settle(x);
+            settled += 1;
+            double distance = ws.distance(x);
+            for (int i = 0; i < outSize[x]; i++) {
+                int e = out[x][i];
+                int y = to[e];
+                if (contracted[y] || y == ignored) {
+                    continue;
+                }
+                double candidate = distance + weight[e];
+                if (candidate < ws.distance(y)) {
+                    ws.reach(y, candidate, x);
+                    fringe.add(y, candidate);
+                }
+            }
+        }
+        return ws;
+    }
+
+    /**
+     * Adds the edge A -> B, or lowers the weight of the existing one. Keeping at
+     * most one edge per ordered pair is what lets unpacking look edges up by
+     * their endpoints.
+     */
+    private void addOrImprove(int a, int b, double edgeWeight, int edgeMiddle) {
+        for (int i = 0; i < outSize[a]; i++) {
+            int e = out[a][i];
+            if (to[e] == b) {
+                if (edgeWeight < weight[e]) {
+                    weight[e] = edgeWeight;
+                    middle[e] = edgeMiddle;
+                }
+                return;
+            }
+        }
+
+        if (edgeCount == from.length) {
+            int capacity = edgeCount * 2;
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            weight = Arrays.copyOf(weight, capacity);
+            middle = Arrays.copyOf(middle, capacity);
+        }
+        int e = edgeCount;
+        edgeCount += 1;
+        from[e] = a;
+        to[e] = b;
+        weight[e] = edgeWeight;
+        middle[e] = edgeMiddle;
+
+        if (outSize[a] == out[a].length) {
+            out[a] = Arrays.copyOf(out[a], outSize[a] * 2);
+        }
+        out[a][outSize[a]++] = e;
+        if (inSize[b] == in[b].length) {
+            in[b] = Arrays.copyOf(in[b], inSize[b] * 2);
+        }
+        in[b][inSize[b]++] = e;
+    }
+
+    /** Splits the edges into upward and downward CSR arrays by the ranks of their ends. */
+    private ContractionHierarchy freeze(int[] ranks) {
+        int[] upOffsets = new int[n + 1];
+        int[] downOffsets = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            if (ranks[from[e]] < ranks[to[e]]) {
+                upOffsets[from[e] + 1] += 1;
+            } else {
+                downOffsets[to[e] + 1] += 1;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            upOffsets[v + 1] += upOffsets[v];
+            downOffsets[v + 1] += downOffsets[v];
+        }
+
+        int[] upTargets = new int[upOffsets[n]];
+        double[] upWeights = new double[upOffsets[n]];
+        int[] upMiddles = new int[upOffsets[n]];
+        int[] downSources = new int[downOffsets[n]];
+        double[] downWeights = new double[downOffsets[n]];
+        int[] downMiddles = new int[downOffsets[n]];
+        int[] upNext = Arrays.copyOf(upOffsets, n);
+        int[] downNext = Arrays.copyOf(downOffsets, n);
+        for (int e = 0; e < edgeCount; e++) {
+            if (ranks[from[e]] < ranks[to[e]]) {
+                int slot = upNext[from[e]]++;
+                upTargets[slot] = to[e];
+                upWeights[slot] = weight[e];
+                upMiddles[slot] = middle[e];
+            } else {
+                int slot = downNext[to[e]]++;
+                downSources[slot] = from[e];
+                downWeights[slot] = weight[e];
+                downMiddles[slot] = middle[e];
+            }
+        }
+
+        return new ContractionHierarchy(ContractionHierarchy.fingerprint(g), ranks,
+                upOffsets, upTargets, upWeights, upMiddles,
+                downOffsets, downSources, downWeights, downMiddles);
+    }
+}
@@ -0,0 +1,185 @@
+package bearmaps.proj2c.ch;
+
+import bearmaps.proj2ab.PrimitiveMinPQ;
+import bearmaps.proj2c.SearchWorkspace;
+import bearmaps.proj2c.ShortestPathsSolver;
+import bearmaps.proj2c.SolverOutcome;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shortest path query on a ContractionHierarchy. A forward Dijkstra search from
+ * the start follows only up edges and a backward one from the goal only down
+ * edges, so both climb toward the highest-ranked vertices and meet near the top
+ * after settling a few hundred vertices, whatever the length of the route.
+ *
+ * The path found consists of hierarchy edges; shortcuts are unpacked through
+ * their middle vertices so that solution() lists the same original vertex ids
+ * as the other solvers.
+ */
+public class CHSolver implements ShortestPathsSolver<Long> {
+    /** How many vertices to settle between two checks of the deadline. */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final ContractionHierarchy ch;
+
+    private SolverOutcome outcome;
+    private List<Long> solution = new ArrayList<>();
+    private double solutionWeight = 0;
+    private int numStatesExplored = 0;
+    private double explorationTime;
+
+    public CHSolver(ContractionHierarchy ch, StreetMapGraph g, long start, long end,
+                    double timeout) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + (long) (timeout * 1e9);
+        this.ch = ch;
+
+        int source = g.indexOf(start);
+        int target = g.indexOf(end);
+        SearchWorkspace forward = SearchWorkspace.forward(ch.vertexCount());
+        SearchWorkspace backward = SearchWorkspace.backward(ch.vertexCount());
+        PrimitiveMinPQ forwardFringe = forward.fringe();
+        PrimitiveMinPQ backwardFringe = backward.fringe();
+
+        forward.reach(source, 0, -1);
+        forwardFringe.add(source, 0);
+        backward.reach(target, 0, -1);
+        backwardFringe.add(target, 0);
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        outcome = SolverOutcome.UNSOLVABLE;
+
+        while (forwardFringe.peekPriority() < best || backwardFringe.peekPriority() < best) {
+            double forwardTop = forwardFringe.peekPriority();
+            double backwardTop = backwardFringe.peekPriority();
+            boolean isForward = forwardTop < best
+                    && (forwardTop <= backwardTop || backwardTop >= best);
+            SearchWorkspace ws = isForward ? forward : backward;
+            SearchWorkspace other = isForward ? backward : forward;
+            int v = ws.fringe().removeSmallest();
+            if (ws.isSettled(v)) {
+                continue;
+            }
+            ws.settle(v);
+            numStatesExplored += 1;
+            if (numStatesExplored % DEADLINE_CHECK_INTERVAL == 0
+                    && System.nanoTime() > deadline) {
+                outcome = SolverOutcome.TIMEOUT;
+                break;
+            }
+
+            double distance = ws.distance(v);
+            if (distance + other.distance(v) < best) {
+                best = distance + other.distance(v);
+                meeting = v;
+            }
+            if (isForward) {
+                for (int e = ch.upStart(v); e < ch.upEnd(v); e++) {
+                    relax(ws, v, ch.upTarget(e), distance + ch.upWeight(e));
+                }
+            } else {
+                for (int e = ch.downStart(v); e < ch.downEnd(v); e++) {
+                    relax(ws, v, ch.downSource(e), distance + ch.downWeight(e));
+                }
+            }
+        }
+
+        if (outcome != SolverOutcome.TIMEOUT && meeting != -1) {
+            outcome = SolverOutcome.SOLVED;
+            solutionWeight = best;
+            unpack(g, hierarchyPath(forward, backward, meeting));
+        }
+        explorationTime = (System.nanoTime() - startTime) / 1e9;
+    }
+
+    private static void relax(SearchWorkspace ws, int v, int w, double candidate) {
+        if (candidate < ws.distance(w)) {
+            ws.reach(w, candidate, v);
+            ws.fringe().add(w, candidate);
+        }
+    }
+
+    /** Returns the vertices of the found path in the hierarchy, start to goal. */
+    private static List<Integer> hierarchyPath(SearchWorkspace forward, SearchWorkspace backward,
+                                               int meeting) {
+        List<Integer> path = new ArrayList<>();
+        for (int v = meeting; v != -1; v = forward.parent(v)) {
+            path.add(v);
+        }
+        Collections.reverse(path);
+        for (int v = backward.parent(meeting); v != -1; v = backward.parent(v)) {
+            path.add(v);
+        }
+        return path;
+    }
+
+    /**
+     * Replaces every shortcut of PATH by the original edges it stands for, and
+     * stores the resulting vertex ids in solution.
+     */
+    private void unpack(StreetMapGraph g, List<Integer> path) {
+        int[] stackFrom = new int[16];
+        int[] stackTo = new int[16];
+        solution.add(g.idAt(path.get(0)));
+        for (int i = 0; i + 1 < path.size(); i++) {
+            int size = 0;
+            stackFrom[size] = path.get(i);
+            stackTo[size] = path.get(i + 1);
+            size += 1;
+            while (size > 0) {
+                size -= 1;
+                int a = stackFrom[size];
+                int b = stackTo[size];
+                int m = ch.middle(a, b);
+                if (m == -2) {
+                    throw new IllegalStateException("No hierarchy edge from " + g.idAt(a)
+                            + " to " + g.idAt(b) + ".");
+                }
+                if (m == -1) {
+                    solution.add(g.idAt(b));
+                    continue;
+                }
+                if (size + 2 > stackFrom.length) {
+                    stackFrom = Arrays.copyOf(stackFrom, stackFrom.length * 2);
+                    stackTo = Arrays.copyOf(stackTo, stackTo.length * 2);
+                }
+                /* Push the second half first so that the first half is unpacked first. */
+                stackFrom[size] = m;
+                stackTo[size] = b;
+                stackFrom[size + 1] = a;
+                stackTo[size + 1] = m;
+                size += 2;
+            }
+        }
+    }
+
+    @Override
+    public SolverOutcome outcome() {
+        return outcome;
+    }
+
+    @Override
+    public List<Long> solution() {
+        return solution;
+    }
+
+    @Override
+    public double solutionWeight() {
+        return solutionWeight;
+    }
+
+    @Override
+    public int numStatesExplored() {
+        return numStatesExplored;
+    }
+
+    @Override
+    public double explorationTime() {
+        return explorationTime;
+    }
+}
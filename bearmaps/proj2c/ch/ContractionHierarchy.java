@@ -0,0 +1,224 @@
+package bearmaps.proj2c.ch;
+
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The result of contracting a StreetMapGraph: a rank for every vertex and the
+ * original edges plus shortcuts, split into two CSR adjacency structures.
+ *
+ * "Up" edges lead from a vertex to a higher-ranked vertex and are searched
+ * forward from the start. "Down" edges lead into a vertex from a higher-ranked
+ * one; they are stored at their lower endpoint so that the backward search from
+ * the goal can also climb upward. Every shortcut records the middle vertex it
+ * bypasses (or -1 for an original edge), which is what unpacking follows.
+ *
+ * A hierarchy can be written to and read back from a stream, so that it only
+ * has to be computed once per graph. Vertices are referred to by the dense
+ * indices of the graph, so a hierarchy remembers a fingerprint of the graph it
+ * was built for and refuses to load against a different one.
+ *
+ * Created with CHBuilder; queried with CHSolver.
+ */
+public class ContractionHierarchy {
+    private static final int MAGIC = 0x50434831; // "PCH1"
+    private static final int VERSION = 1;
+
+    private final long fingerprint;
+    private final int[] ranks;
+
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    private final int[] upMiddles;
+
+    private final int[] downOffsets;
+    private final int[] downSources;
+    private final double[] downWeights;
+    private final int[] downMiddles;
+
+    ContractionHierarchy(long fingerprint, int[] ranks,
+                         int[] upOffsets, int[] upTargets, double[] upWeights, int[] upMiddles,
+                         int[] downOffsets, int[] downSources, double[] downWeights,
+                         int[] downMiddles) {
+        this.fingerprint = fingerprint;
+        this.ranks = ranks;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+        this.downOffsets = downOffsets;
+        this.downSources = downSources;
+        this.downWeights = downWeights;
+        this.downMiddles = downMiddles;
+    }
+
+    public int vertexCount() {
+        return ranks.length;
+    }
+
+    /** Returns the number of edges in the hierarchy, shortcuts included. */
+    public int edgeCount() {
+        return upTargets.length + downSources.length;
+    }
+
+    /** Returns the position of the vertex at index V in the contraction order. */
+    public int rank(int v) {
+        return ranks[v];
+    }
+
+    int upStart(int v) {
+        return upOffsets[v];
+    }
+
+    int upEnd(int v) {
+        return upOffsets[v + 1];
+    }
+
+    int upTarget(int e) {
+        return upTargets[e];
+    }
+
+    double upWeight(int e) {
+        return upWeights[e];
+    }
+
+    int downStart(int v) {
+        return downOffsets[v];
+    }
+
+    int downEnd(int v) {
+        return downOffsets[v + 1];
+    }
+
+    int downSource(int e) {
+        return downSources[e];
+    }
+
+    double downWeight(int e) {
+        return downWeights[e];
+    }
+
+    /**
+     * Returns the vertex bypassed by the hierarchy edge from FROM to TO, -1 if the
+     * edge is an original edge of the graph, or -2 if there is no such edge.
+     */
+    int middle(int from, int to) {
+        if (ranks[from] < ranks[to]) {
+            for (int e = upOffsets[from]; e < upOffsets[from + 1]; e++) {
+                if (upTargets[e] == to) {
+                    return upMiddles[e];
+                }
+            }
+        } else {
+            for (int e = downOffsets[to]; e < downOffsets[to + 1]; e++) {
+                if (downSources[e] == from) {
+                    return downMiddles[e];
+                }
+            }
+        }
+        return -2;
+    }
+
+    /** Returns true if this hierarchy was built for graph G. */
+    public boolean matches(StreetMapGraph g) {
+        return fingerprint == fingerprint(g);
+    }
+
+    /**
+     * Returns a hash of the vertex ids and edges of G, used to tell whether a
+     * stored hierarchy still belongs to a graph.
+     */
+    static long fingerprint(StreetMapGraph g) {
+        long hash = 1125899906842597L;
+        for (int v = 0; v < g.vertexCount(); v++) {
+            hash = 31 * hash + g.idAt(v);
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                hash = 31 * hash + g.edgeTarget(e);
+                hash = 31 * hash + Double.doubleToLongBits(g.edgeWeight(e));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Writes this hierarchy to OUT in a compact binary format.
+     * @param out The stream to write to. It is flushed but not closed.
+     * @throws IOException If writing fails.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(fingerprint);
+        writeInts(data, ranks);
+        writeInts(data, upOffsets);
+        writeInts(data, upTargets);
+        writeDoubles(data, upWeights);
+        writeInts(data, upMiddles);
+        writeInts(data, downOffsets);
+        writeInts(data, downSources);
+        writeDoubles(data, downWeights);
+        writeInts(data, downMiddles);
+        data.flush();
+    }
+
+    /**
+     * Reads a hierarchy written by write, and checks that it belongs to G.
+     * @param in The stream to read from. It is not closed.
+     * @param g The graph the hierarchy is going to be queried against.
+     * @return The hierarchy.
+     * @throws IOException If reading fails, the data is not a hierarchy in the
+     * current format, or it was built for a different graph.
+     */
+    public static ContractionHierarchy read(InputStream in, StreetMapGraph g) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("Not a contraction hierarchy in the current format.");
+        }
+        long fingerprint = data.readLong();
+        if (fingerprint != fingerprint(g)) {
+            throw new IOException("Contraction hierarchy was built for a different graph.");
+        }
+        return new ContractionHierarchy(fingerprint, readInts(data),
+                readInts(data), readInts(data), readDoubles(data), readInts(data),
+                readInts(data), readInts(data), readDoubles(data), readInts(data));
+    }
+
+    private static void writeInts(DataOutputStream data, int[] values) throws IOException {
+        data.writeInt(values.length);
+        for (int value : values) {
+            data.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream data, double[] values) throws IOException {
+        data.writeInt(values.length);
+        for (double value : values) {
+            data.writeDouble(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream data) throws IOException {
+        int[] values = new int[data.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.readInt();
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(DataInputStream data) throws IOException {
+        double[] values = new double[data.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.readDouble();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,204 @@
+package bearmaps.proj2c.streetmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frozen compressed sparse row (CSR) storage for a street graph.
+ *
+ * Vertices are addressed by dense int indices in [0, vertexCount()), assigned in increasing
+ * order of their OSM id so that an id can be mapped back to its index with a binary search.
+ * The outgoing edges of vertex v occupy the slots [offsets[v], offsets[v + 1]) of the
+ * targets, weights, wayIds and highways arrays. Way names are interned once and referenced
+ * by id; highway tags are indices into StreetMapGraph's highway types.
+ *
+ * The incoming edges of v are indexed the same way by reverseOffsets: slot i in
+ * [reverseOffsets[v], reverseOffsets[v + 1]) holds the source vertex and the forward edge
+ * index of one edge into v, so backward searches share weights and names with the forward
+ * arrays.
+ *
+ * Instances are immutable once built and are safe to share between threads. They can be
+ * saved to and restored from a GraphSnapshot section, which MappedGraphStore can also
+ * read in place.
+ */
+final class CompactGraph implements GraphStore {
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    private final String[] names;
+
+    private final int[] offsets;
+    private final int[] targets;
+    private final float[] weights;
+    private final int[] wayIds;
+    private final int[] highways;
+    private final String[] wayNames;
+
+    private final int[] reverseOffsets;
+    private final int[] reverseSources;
+    private final int[] reverseEdges;
+
+    CompactGraph(long[] ids, double[] lons, double[] lats, String[] names,
+                 int[] offsets, int[] targets, float[] weights, int[] wayIds, int[] highways,
+                 String[] wayNames) {
+        this(ids, lons, lats, names, offsets, targets, weights, wayIds, highways, wayNames,
+                new int[ids.length + 1], new int[targets.length], new int[targets.length]);
+        buildReverseIndex();
+    }
+
+    private CompactGraph(long[] ids, double[] lons, double[] lats, String[] names,
+                         int[] offsets, int[] targets, float[] weights, int[] wayIds,
+                         int[] highways, String[] wayNames, int[] reverseOffsets,
+                         int[] reverseSources, int[] reverseEdges) {
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.names = names;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.wayIds = wayIds;
+        this.highways = highways;
+        this.wayNames = wayNames;
+        this.reverseOffsets = reverseOffsets;
+        this.reverseSources = reverseSources;
+        this.reverseEdges = reverseEdges;
+    }
+
+    /** Fills in the incoming edges of every vertex from the outgoing ones. */
+    private void buildReverseIndex() {
+        int n = ids.length;
+        for (int e = 0; e < targets.length; e++) {
+            reverseOffsets[targets[e] + 1] += 1;
+        }
+        for (int v = 0; v < n; v++) {
+            reverseOffsets[v + 1] += reverseOffsets[v];
+        }
+        int[] next = Arrays.copyOf(reverseOffsets, n);
+        for (int v = 0; v < n; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int slot = next[targets[e]]++;
+                reverseSources[slot] = v;
+                reverseEdges[slot] = e;
+            }
+        }
+    }
+
+    @Override
+    public void write(GraphSnapshot.Section.Builder section) throws IOException {
+        section.writeLongs(ids).writeDoubles(lons).writeDoubles(lats).writeStrings(names)
+                .writeInts(offsets).writeInts(targets).writeFloats(weights).writeInts(wayIds)
+                .writeInts(highways).writeStrings(wayNames).writeInts(reverseOffsets)
+                .writeInts(reverseSources).writeInts(reverseEdges);
+    }
+
+    /** Reads a graph written by write from SECTION onto the heap. */
+    static CompactGraph read(GraphSnapshot.Section section) {
+        return new CompactGraph(section.readLongs(), section.readDoubles(),
+                section.readDoubles(), section.readStrings(), section.readInts(),
+                section.readInts(), section.readFloats(), section.readInts(),
+                section.readInts(), section.readStrings(), section.readInts(),
+                section.readInts(), section.readInts());
+    }
+
+    @Override
+    public int vertexCount() {
+        return ids.length;
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /** Returns the index of the vertex with the given OSM id, or -1 if there is none. */
+    @Override
+    public int indexOf(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    @Override
+    public long id(int v) {
+        return ids[v];
+    }
+
+    @Override
+    public double lon(int v) {
+        return lons[v];
+    }
+
+    @Override
+    public double lat(int v) {
+        return lats[v];
+    }
+
+    @Override
+    public String name(int v) {
+        return names[v];
+    }
+
+    @Override
+    public int edgeStart(int v) {
+        return offsets[v];
+    }
+
+    @Override
+    public int edgeEnd(int v) {
+        return offsets[v + 1];
+    }
+
+    @Override
+    public int edgeTarget(int e) {
+        return targets[e];
+    }
+
+    @Override
+    public float edgeWeight(int e) {
+        return weights[e];
+    }
+
+    @Override
+    public int edgeWayId(int e) {
+        return wayIds[e];
+    }
+
+    @Override
+    public int edgeHighway(int e) {
+        return highways[e];
+    }
+
+    @Override
+    public String wayName(int wayId) {
+        return wayNames[wayId];
+    }
+
+    @Override
+    public int wayCount() {
+        return wayNames.length;
+    }
+
+    @Override
+    public int reverseStart(int v) {
+        return reverseOffsets[v];
+    }
+
+    @Override
+    public int reverseEnd(int v) {
+        return reverseOffsets[v + 1];
+    }
+
+    @Override
+    public int reverseSource(int i) {
+        return reverseSources[i];
+    }
+
+    @Override
+    public int reverseEdge(int i) {
+        return reverseEdges[i];
+    }
+}
@@ -0,0 +1,451 @@
+package bearmaps.proj2c.streetmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary file holding a parsed street graph together with the search indexes
+ * built on top of it, so that a server can start without re-parsing its OSM XML.
+ *
+ * The file consists of a header and a number of named sections:
+ * <pre>
+ *     int magic, int version, long sourceStamp, int sectionCount
+ *     per section: UTF name, long offset, long length, long crc32
+ *     section data, each section starting at a multiple of 8 bytes
+ * </pre>
+ * The source stamp identifies the OSM file the snapshot was made from (see
+ * sourceStamp), and every section carries a CRC32 of its bytes. A snapshot is
+ * only opened if its version and stamp are current and all checksums match;
+ * otherwise open throws and the caller falls back to parsing the XML.
+ *
+ * Snapshots are read through a read-only memory mapping of the whole file, so
+ * sections are paged in straight from the OS cache. Within a section, values are
+ * written with Section.Builder and read back in the same order with Section;
+ * arrays are padded to 8 bytes so that every array starts aligned. An array can
+ * either be copied onto the heap (readInts) or viewed in place in the mapping
+ * (intView), which is how MappedGraphStore keeps a graph off the heap.
+ *
+ * The whole file is one mapping, and a MappedByteBuffer holds at most 2 GB, so neither
+ * a snapshot nor any section of it may be larger than MAX_BYTES. Larger snapshots are
+ * refused with an IOException, by the Builder as it fills a section, by the Writer
+ * before it writes anything, and by open, and the caller keeps the graph it parsed.
+ */
+public final class GraphSnapshot {
+    private static final int MAGIC = 0x424d5331; // "BMS1"
+    /** Bump whenever the layout of the file or of any section changes. */
+    private static final int VERSION = 4;
+    /** The size of the largest snapshot, the most bytes one memory mapping can hold. */
+    public static final long MAX_BYTES = Integer.MAX_VALUE;
+
+    private final Map<String, ByteBuffer> sections;
+
+    private GraphSnapshot(Map<String, ByteBuffer> sections) {
+        this.sections = sections;
+    }
+
+    /**
+     * Returns a stamp identifying the current contents of RESOURCE, a classpath resource
+     * or failing that a file path, built from its size and modification time, or 0 if it
+     * cannot be found.
+     */
+    public static long sourceStamp(String resource) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
+        if (url == null) {
+            File file = new File(resource);
+            return file.isFile() ? 31 * file.length() + file.lastModified() : 0;
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            long stamp = 31 * connection.getContentLengthLong() + connection.getLastModified();
+            connection.getInputStream().close();
+            return stamp;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Maps the snapshot at PATH and checks that it is intact and current.
+     * @param path The snapshot file.
+     * @param sourceStamp The stamp of the OSM file the snapshot must have been made from.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read, is larger than MAX_BYTES, is not a
+     * snapshot of the current version, was made from a different source, or fails a
+     * checksum.
+     */
+    public static GraphSnapshot open(String path, long sourceStamp) throws IOException {
+        ByteBuffer file;
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > MAX_BYTES) {
+                throw new IOException("Graph snapshot is larger than 2 GB.");
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.remaining() < 20 || file.getInt() != MAGIC || file.getInt() != VERSION) {
+            throw new IOException("Not a graph snapshot of the current version.");
+        }
+        if (file.getLong() != sourceStamp) {
+            throw new IOException("Graph snapshot is stale.");
+        }
+
+        int count = file.getInt();
+        Map<String, ByteBuffer> sections = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readName(file);
+            long offset = file.getLong();
+            long length = file.getLong();
+            long checksum = file.getLong();
+            if (offset < 0 || length < 0 || offset + length > file.limit()) {
+                throw new IOException("Graph snapshot is truncated.");
+            }
+            ByteBuffer section = file.duplicate();
+            section.position((int) offset);
+            section.limit((int) (offset + length));
+            section = section.slice();
+            CRC32 crc = new CRC32();
+            crc.update(section.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Graph snapshot section " + name + " is corrupt.");
+            }
+            sections.put(name, section);
+        }
+        return new GraphSnapshot(sections);
+    }
+
+    private static String readName(ByteBuffer file) {
+        byte[] bytes = new byte[file.getShort() & 0xffff];
+        file.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the section called NAME, positioned at its first value.
+     * @throws IOException If the snapshot has no such section.
+     */
+    public Section section(String name) throws IOException {
+        ByteBuffer section = sections.get(name);
+        if (section == null) {
+            throw new IOException("Graph snapshot has no " + name + " section.");
+        }
+        return new Section(section.duplicate());
+    }
+
+    /**
+     * Collects the sections of a new snapshot and writes them out. The file is first
+     * written next to its final path and then moved into place, so that a crash never
+     * leaves a half-written snapshot behind.
+     */
+    public static final class Writer {
+        private final long sourceStamp;
+        private final Map<String, Section.Builder> sections = new LinkedHashMap<>();
+
+        /** @param sourceStamp The stamp of the OSM file the snapshot is made from. */
+        public Writer(long sourceStamp) {
+            this.sourceStamp = sourceStamp;
+        }
+
+        /** Starts a new section called NAME and returns the builder for its contents. */
+        public Section.Builder section(String name) {
+            Section.Builder builder = new Section.Builder();
+            sections.put(name, builder);
+            return builder;
+        }
+
+        /**
+         * Writes the snapshot to PATH, creating its directory if needed.
+         * @throws IOException If the file cannot be written, or the snapshot would be
+         * larger than MAX_BYTES, in which case nothing is written.
+         */
+        public void write(String path) throws IOException {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(sourceStamp);
+            header.writeInt(sections.size());
+            int headerLength = 20;
+            for (String name : sections.keySet()) {
+                headerLength += 2 + name.getBytes(StandardCharsets.UTF_8).length + 24;
+            }
+
+            long offset = align(headerLength);
+            for (Map.Entry<String, Section.Builder> entry : sections.entrySet()) {
+                byte[] data = entry.getValue().toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                header.writeUTF(entry.getKey());
+                header.writeLong(offset);
+                header.writeLong(data.length);
+                header.writeLong(crc.getValue());
+                offset = align(offset + data.length);
+            }
+            if (offset > MAX_BYTES) {
+                throw new IOException("Graph snapshot would be larger than 2 GB.");
+            }
+
+            File target = new File(path).getAbsoluteFile();
+            target.getParentFile().mkdirs();
+            File temporary = new File(target.getPath() + ".tmp");
+            try (RandomAccessFile out = new RandomAccessFile(temporary, "rw")) {
+                out.setLength(0);
+                out.write(headerBytes.toByteArray());
+                for (Section.Builder section : sections.values()) {
+                    out.seek(align(out.getFilePointer()));
+                    out.write(section.toByteArray());
+                }
+            }
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /** A string array viewed in place in a snapshot; see Section.Builder.writeStrings. */
+    public static final class Strings {
+        private final IntBuffer starts;
+        private final IntBuffer lengths;
+        private final ByteBuffer bytes;
+
+        private Strings(IntBuffer starts, IntBuffer lengths, ByteBuffer bytes) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.bytes = bytes;
+        }
+
+        public int size() {
+            return lengths.capacity();
+        }
+
+        /** Decodes the Ith string, or returns null if it is null. */
+        public String get(int i) {
+            int length = lengths.get(i);
+            if (length < 0) {
+                return null;
+            }
+            byte[] utf8 = new byte[length];
+            int start = starts.get(i);
+            for (int j = 0; j < length; j++) {
+                utf8[j] = bytes.get(start + j);
+            }
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Sequential reader over the values of one section. */
+    public static final class Section {
+        private final ByteBuffer data;
+
+        private Section(ByteBuffer data) {
+            this.data = data;
+        }
+
+        public int readInt() {
+            return data.getInt();
+        }
+
+        public long readLong() {
+            return data.getLong();
+        }
+
+        public int[] readInts() {
+            IntBuffer view = intView();
+            int[] values = new int[view.capacity()];
+            view.get(values);
+            return values;
+        }
+
+        public long[] readLongs() {
+            LongBuffer view = longView();
+            long[] values = new long[view.capacity()];
+            view.get(values);
+            return values;
+        }
+
+        public float[] readFloats() {
+            FloatBuffer view = floatView();
+            float[] values = new float[view.capacity()];
+            view.get(values);
+            return values;
+        }
+
+        public double[] readDoubles() {
+            DoubleBuffer view = doubleView();
+            double[] values = new double[view.capacity()];
+            view.get(values);
+            return values;
+        }
+
+        /** Reads an array of strings, any of which may be null. */
+        public String[] readStrings() {
+            Strings view = stringView();
+            String[] values = new String[view.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = view.get(i);
+            }
+            return values;
+        }
+
+        /* Views of the next array in place, without copying it. Views only use absolute
+         * gets, so they may be shared between threads. */
+
+        public IntBuffer intView() {
+            int length = arrayLength();
+            return slice(4L * length).asIntBuffer();
+        }
+
+        public LongBuffer longView() {
+            int length = arrayLength();
+            return slice(8L * length).asLongBuffer();
+        }
+
+        public FloatBuffer floatView() {
+            int length = arrayLength();
+            return slice(4L * length).asFloatBuffer();
+        }
+
+        public DoubleBuffer doubleView() {
+            int length = arrayLength();
+            return slice(8L * length).asDoubleBuffer();
+        }
+
+        public Strings stringView() {
+            IntBuffer starts = intView();
+            IntBuffer lengths = intView();
+            ByteBuffer bytes = slice(arrayLength());
+            return new Strings(starts, lengths, bytes);
+        }
+
+        /** Returns the next BYTES bytes as a buffer of their own, and skips past them. */
+        private ByteBuffer slice(long bytes) {
+            ByteBuffer slice = data.duplicate();
+            slice.limit((int) (data.position() + bytes));
+            slice = slice.slice();
+            data.position((int) align(data.position() + bytes));
+            return slice;
+        }
+
+        private int arrayLength() {
+            return (int) data.getLong();
+        }
+
+        /** Sequential writer for the values of one section, mirroring Section. */
+        public static final class Builder {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            private final DataOutputStream data = new DataOutputStream(bytes);
+
+            public Builder writeInt(int value) throws IOException {
+                data.writeInt(value);
+                return this;
+            }
+
+            public Builder writeLong(long value) throws IOException {
+                data.writeLong(value);
+                return this;
+            }
+
+            public Builder writeInts(int[] values) throws IOException {
+                reserve(4L * values.length);
+                data.writeLong(values.length);
+                for (int value : values) {
+                    data.writeInt(value);
+                }
+                return pad();
+            }
+
+            public Builder writeLongs(long[] values) throws IOException {
+                reserve(8L * values.length);
+                data.writeLong(values.length);
+                for (long value : values) {
+                    data.writeLong(value);
+                }
+                return pad();
+            }
+
+            public Builder writeFloats(float[] values) throws IOException {
+                reserve(4L * values.length);
+                data.writeLong(values.length);
+                for (float value : values) {
+                    data.writeFloat(value);
+                }
+                return pad();
+            }
+
+            public Builder writeDoubles(double[] values) throws IOException {
+                reserve(8L * values.length);
+                data.writeLong(values.length);
+                for (double value : values) {
+                    data.writeDouble(value);
+                }
+                return pad();
+            }
+
+            /**
+             * Writes an array of strings, any of which may be null, as the start and
+             * length (-1 for null) of each string in a block of UTF-8 bytes.
+             */
+            public Builder writeStrings(String[] values) throws IOException {
+                int[] starts = new int[values.length];
+                int[] lengths = new int[values.length];
+                ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+                for (int i = 0; i < values.length; i++) {
+                    starts[i] = utf8.size();
+                    if (values[i] == null) {
+                        lengths[i] = -1;
+                    } else {
+                        byte[] bytes = values[i].getBytes(StandardCharsets.UTF_8);
+                        lengths[i] = bytes.length;
+                        utf8.write(bytes);
+                    }
+                }
+                writeInts(starts);
+                writeInts(lengths);
+                reserve(utf8.size());
+                data.writeLong(utf8.size());
+                utf8.writeTo(data);
+                return pad();
+            }
+
+            /**
+             * Checks that an array of LENGTH bytes, with its length and padding, still fits
+             * in a snapshot, before any of it is written.
+             */
+            private void reserve(long length) throws IOException {
+                if ((long) bytes.size() + 16 + length > MAX_BYTES) {
+                    throw new IOException("Graph snapshot section would be larger than 2 GB.");
+                }
+            }
+
+            private Builder pad() throws IOException {
+                while (data.size() % 8 != 0) {
+                    data.writeByte(0);
+                }
+                return this;
+            }
+
+            private byte[] toByteArray() {
+                return bytes.toByteArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package bearmaps.proj2c.streetmap;
+
+import java.io.IOException;
+
+/**
+ * Read-only storage for a frozen street graph in compressed sparse row form; see
+ * CompactGraph for the layout. StreetMapGraph reads vertices and edges only through
+ * this interface, so the arrays may live on the heap (CompactGraph) or in a
+ * memory-mapped snapshot file (MappedGraphStore).
+ *
+ * Vertices are dense indices in [0, vertexCount()) in increasing order of OSM id.
+ * Implementations must be safe to share between threads.
+ */
+interface GraphStore {
+    int vertexCount();
+
+    int edgeCount();
+
+    /** Returns the index of the vertex with the given OSM id, or -1 if there is none. */
+    int indexOf(long id);
+
+    long id(int v);
+
+    double lon(int v);
+
+    double lat(int v);
+
+    /** Returns the name of vertex V, or null if it has none. */
+    String name(int v);
+
+    int edgeStart(int v);
+
+    int edgeEnd(int v);
+
+    int edgeTarget(int e);
+
+    float edgeWeight(int e);
+
+    int edgeWayId(int e);
+
+    /** Returns the highway tag of edge E, as an index into StreetMapGraph.highwayType. */
+    int edgeHighway(int e);
+
+    String wayName(int wayId);
+
+    int wayCount();
+
+    int reverseStart(int v);
+
+    int reverseEnd(int v);
+
+    /** Returns the source vertex of incoming-edge slot I. */
+    int reverseSource(int i);
+
+    /** Returns the forward edge index of incoming-edge slot I. */
+    int reverseEdge(int i);
+
+    /** Writes the whole graph to SECTION in the layout MappedGraphStore and CompactGraph read. */
+    void write(GraphSnapshot.Section.Builder section) throws IOException;
+}
@@ -0,0 +1,201 @@
+package bearmaps.proj2c.streetmap;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A GraphStore whose arrays stay in a memory-mapped GraphSnapshot instead of being
+ * copied onto the heap. Coordinates, adjacency, weights and names are read in place
+ * through buffer views of the mapping, so these CSR arrays take only a handful of buffer
+ * objects of heap, and several server processes started from the same snapshot share one
+ * copy of them in the OS page cache. The indexes built over the graph, such as
+ * AugmentedStreetMapGraph's point index and name search, still live on the heap, and the
+ * snapshot, so the graph, is limited to GraphSnapshot.MAX_BYTES.
+ *
+ * Every read is an absolute get on a big-endian view, which is a little slower than
+ * an array access; CompactGraph remains the faster choice when the graph fits the
+ * heap comfortably. Names are decoded from UTF-8 on every call.
+ */
+final class MappedGraphStore implements GraphStore {
+    private final LongBuffer ids;
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    private final GraphSnapshot.Strings names;
+
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final FloatBuffer weights;
+    private final IntBuffer wayIds;
+    private final IntBuffer highways;
+    private final GraphSnapshot.Strings wayNames;
+
+    private final IntBuffer reverseOffsets;
+    private final IntBuffer reverseSources;
+    private final IntBuffer reverseEdges;
+
+    /** Views a graph written by GraphStore.write in SECTION, in the same order. */
+    MappedGraphStore(GraphSnapshot.Section section) {
+        ids = section.longView();
+        lons = section.doubleView();
+        lats = section.doubleView();
+        names = section.stringView();
+        offsets = section.intView();
+        targets = section.intView();
+        weights = section.floatView();
+        wayIds = section.intView();
+        highways = section.intView();
+        wayNames = section.stringView();
+        reverseOffsets = section.intView();
+        reverseSources = section.intView();
+        reverseEdges = section.intView();
+    }
+
+    @Override
+    public int vertexCount() {
+        return ids.capacity();
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.capacity();
+    }
+
+    @Override
+    public int indexOf(long id) {
+        int lo = 0;
+        int hi = ids.capacity() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long id(int v) {
+        return ids.get(v);
+    }
+
+    @Override
+    public double lon(int v) {
+        return lons.get(v);
+    }
+
+    @Override
+    public double lat(int v) {
+        return lats.get(v);
+    }
+
+    @Override
+    public String name(int v) {
+        return names.get(v);
+    }
+
+    @Override
+    public int edgeStart(int v) {
+        return offsets.get(v);
+    }
+
+    @Override
+    public int edgeEnd(int v) {
+        return offsets.get(v + 1);
+    }
+
+    @Override
+    public int edgeTarget(int e) {
+        return targets.get(e);
+    }
+
+    @Override
+    public float edgeWeight(int e) {
+        return weights.get(e);
+    }
+
+    @Override
+    public int edgeWayId(int e) {
+        return wayIds.get(e);
+    }
+
+    @Override
+    public int edgeHighway(int e) {
+        return highways.get(e);
+    }
+
+    @Override
+    public String wayName(int wayId) {
+        return wayNames.get(wayId);
+    }
+
+    @Override
+    public int wayCount() {
+        return wayNames.size();
+    }
+
+    @Override
+    public int reverseStart(int v) {
+        return reverseOffsets.get(v);
+    }
+
+    @Override
+    public int reverseEnd(int v) {
+        return reverseOffsets.get(v + 1);
+    }
+
+    @Override
+    public int reverseSource(int i) {
+        return reverseSources.get(i);
+    }
+
+    @Override
+    public int reverseEdge(int i) {
+        return reverseEdges.get(i);
+    }
+
+    @Override
+    public void write(GraphSnapshot.Section.Builder section) throws IOException {
+        int n = vertexCount();
+        int m = edgeCount();
+        long[] idArray = new long[n];
+        double[] lonArray = new double[n];
+        double[] latArray = new double[n];
+        String[] nameArray = new String[n];
+        for (int v = 0; v < n; v++) {
+            idArray[v] = id(v);
+            lonArray[v] = lon(v);
+            latArray[v] = lat(v);
+            nameArray[v] = name(v);
+        }
+        float[] weightArray = new float[m];
+        for (int e = 0; e < m; e++) {
+            weightArray[e] = edgeWeight(e);
+        }
+        String[] wayNameArray = new String[wayCount()];
+        for (int w = 0; w < wayNameArray.length; w++) {
+            wayNameArray[w] = wayName(w);
+        }
+        section.writeLongs(idArray).writeDoubles(lonArray).writeDoubles(latArray)
+                .writeStrings(nameArray).writeInts(toArray(offsets)).writeInts(toArray(targets))
+                .writeFloats(weightArray).writeInts(toArray(wayIds)).writeInts(toArray(highways))
+                .writeStrings(wayNameArray)
+                .writeInts(toArray(reverseOffsets)).writeInts(toArray(reverseSources))
+                .writeInts(toArray(reverseEdges));
+    }
+
+    private static int[] toArray(IntBuffer buffer) {
+        int[] values = new int[buffer.capacity()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,593 @@
+package bearmaps.proj2c.streetmap;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Reads the roads of an OSM XML or PBF file into a CompactGraph in two passes, without ever
+ * holding the nodes that are not needed.
+ * <ol>
+ *     <li>The first pass reads only the ways. Ways with an allowed highway tag are kept as
+ *     lists of node refs, which together give the set of nodes the graph needs.</li>
+ *     <li>The second pass reads only the nodes, and keeps those that are needed or have a
+ *     name (named nodes are what location search looks up).</li>
+ * </ol>
+ * Within a pass, a parser thread runs SAX and hands the raw attribute strings of each
+ * element, in batches, through a bounded queue to a decoding thread, which parses ids and
+ * coordinates and drops what the graph does not need. The queue keeps the parser at most
+ * a few batches ahead, so memory stays flat however large the file is.
+ *
+ * PBF files are read in the same two passes, except that PbfReader decodes whole blocks of
+ * elements on several threads and applies the same highway and node filters as it goes.
+ *
+ * Once both passes are done, the edges are computed in parallel over chunks of ways and
+ * assembled into CSR form in the original way order, so that the graph is the same as
+ * the one the single-threaded parse used to build. As before, vertices that end up with no
+ * edges and no name are dropped.
+ *
+ * See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
+ * <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a> and
+ * <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>.
+ */
+final class OsmIngestion {
+    /**
+     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * roads, but in practice we walk all over them with such impunity that we forget cars can
+     * actually drive on them.
+     */
+    static final List<String> HIGHWAY_TYPES = Collections.unmodifiableList(Arrays.asList
+            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+                    "secondary_link", "tertiary_link"));
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(HIGHWAY_TYPES);
+
+    /** The number of elements the parser hands over at a time. */
+    private static final int BATCH_SIZE = 1024;
+    /** The number of batches the parser may get ahead of the decoder. */
+    private static final int QUEUE_CAPACITY = 16;
+    /** The minimum number of node refs per chunk of ways when building edges. */
+    private static final int EDGE_CHUNK_REFS = 1 << 16;
+
+    private final String resource;
+
+    /* The allowed ways: the refs of way w are wayRefs[wayStarts[w]] to wayRefs[wayStarts[w + 1]]. */
+    private long[] wayRefs = new long[1 << 16];
+    private int[] wayStarts = new int[1024];
+    private int[] wayNameIds = new int[1024];
+    /** The highway tag of each way, as an index into HIGHWAY_TYPES. */
+    private int[] wayHighways = new int[1024];
+    private int wayCount = 0;
+    private final Map<String, Integer> wayNameIndex = new HashMap<>();
+    private final List<String> wayNames = new ArrayList<>();
+
+    /** Whether some node comes after the first way, so that pass two must read the whole file. */
+    private boolean nodesAfterWays = false;
+    /** The distinct refs of the allowed ways, sorted. */
+    private long[] neededIds;
+
+    /* The kept nodes, in file order. */
+    private long[] nodeIds = new long[1 << 16];
+    private double[] nodeLons = new double[1 << 16];
+    private double[] nodeLats = new double[1 << 16];
+    private String[] nodeNames = new String[1 << 16];
+    private int nodeCount = 0;
+
+    private OsmIngestion(String resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * Reads the graph of the OSM file RESOURCE, which is PBF if its name ends in ".pbf"
+     * and XML otherwise.
+     * @param resource A classpath resource, or failing that a file path.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    static CompactGraph load(String resource) throws IOException {
+        OsmIngestion ingestion = new OsmIngestion(resource);
+        if (resource.endsWith(".pbf")) {
+            ingestion.readPbfWays();
+            ingestion.readPbfNodes();
+        } else {
+            ingestion.readWays();
+            ingestion.readNodes();
+        }
+        return ingestion.build();
+    }
+
+    /** Opens RESOURCE from the classpath, or failing that as a file path. */
+    private static InputStream open(String resource) throws IOException {
+        InputStream in = Thread.currentThread().getContextClassLoader()
+                .getResourceAsStream(resource);
+        if (in != null) {
+            return new BufferedInputStream(in);
+        }
+        File file = new File(resource);
+        if (!file.isFile()) {
+            throw new IOException("Cannot find " + resource + ".");
+        }
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /* Pass one: ways. */
+
+    /** The raw strings of one way element. */
+    private static class RawWay {
+        private final List<String> refs = new ArrayList<>();
+        private String highway;
+        private String name = "";
+    }
+
+    private void readWays() throws IOException {
+        run(new BatchingHandler<RawWay>() {
+            private RawWay way;
+            private boolean sawWay = false;
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                                     Attributes attributes) {
+                if (qName.equals("way")) {
+                    way = new RawWay();
+                    sawWay = true;
+                } else if (way != null && qName.equals("nd")) {
+                    way.refs.add(attributes.getValue("ref"));
+                } else if (way != null && qName.equals("tag")) {
+                    String k = attributes.getValue("k");
+                    if (k.equals("highway")) {
+                        way.highway = attributes.getValue("v");
+                    } else if (k.equals("name")) {
+                        way.name = attributes.getValue("v");
+                    }
+                } else if (sawWay && qName.equals("node")) {
+                    nodesAfterWays = true;
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                if (qName.equals("way")) {
+                    emit(way);
+                    way = null;
+                }
+            }
+        }, this::decodeWay);
+        findNeededIds();
+    }
+
+    private void decodeWay(RawWay way) {
+        if (!ALLOWED_HIGHWAY_TYPES.contains(way.highway)) {
+            return;
+        }
+        long[] refs = new long[way.refs.size()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = Long.parseLong(way.refs.get(i));
+        }
+        addWay(refs, 0, refs.length, way.name, HIGHWAY_TYPES.indexOf(way.highway));
+    }
+
+    /**
+     * Keeps the allowed way named NAME, whose refs are REFS[FROM] to REFS[TO] and whose
+     * highway tag is HIGHWAY_TYPES[HIGHWAY].
+     */
+    private void addWay(long[] refs, int from, int to, String name, int highway) {
+        int count = to - from;
+        if (wayCount + 2 > wayStarts.length) {
+            wayStarts = Arrays.copyOf(wayStarts, wayStarts.length * 2);
+            wayNameIds = Arrays.copyOf(wayNameIds, wayNameIds.length * 2);
+            wayHighways = Arrays.copyOf(wayHighways, wayHighways.length * 2);
+        }
+        int start = wayStarts[wayCount];
+        if (start + count > wayRefs.length) {
+            wayRefs = Arrays.copyOf(wayRefs, Math.max(wayRefs.length * 2, start + count));
+        }
+        System.arraycopy(refs, from, wayRefs, start, count);
+        Integer nameId = wayNameIndex.get(name);
+        if (nameId == null) {
+            nameId = wayNames.size();
+            wayNameIndex.put(name, nameId);
+            wayNames.add(name);
+        }
+        wayNameIds[wayCount] = nameId;
+        wayHighways[wayCount] = highway;
+        wayStarts[wayCount + 1] = start + count;
+        wayCount += 1;
+    }
+
+    /** Computes the sorted, distinct refs of the allowed ways. */
+    private void findNeededIds() {
+        long[] ids = Arrays.copyOf(wayRefs, wayStarts[wayCount]);
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) {
+                ids[distinct] = ids[i];
+                distinct += 1;
+            }
+        }
+        neededIds = Arrays.copyOf(ids, distinct);
+    }
+
+    /* Pass two: nodes. */
+
+    /** The raw strings of one node element. */
+    private static class RawNode {
+        private final String id;
+        private final String lat;
+        private final String lon;
+        private String name;
+
+        RawNode(String id, String lat, String lon) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    private void readNodes() throws IOException {
+        run(new BatchingHandler<RawNode>() {
+            private RawNode node;
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                                     Attributes attributes) throws SAXException {
+                if (qName.equals("node")) {
+                    node = new RawNode(attributes.getValue("id"), attributes.getValue("lat"),
+                            attributes.getValue("lon"));
+                } else if (node != null && qName.equals("tag")
+                        && attributes.getValue("k").equals("name")) {
+                    node.name = attributes.getValue("v");
+                } else if (qName.equals("way") && !nodesAfterWays) {
+                    /* Every node has been read; skip parsing the ways a second time. */
+                    throw new StopParsing();
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                if (qName.equals("node")) {
+                    emit(node);
+                    node = null;
+                }
+            }
+        }, this::decodeNode);
+    }
+
+    private void decodeNode(RawNode node) {
+        long id = Long.parseLong(node.id);
+        if (isKept(id, node.name)) {
+            addNode(id, Double.parseDouble(node.lon), Double.parseDouble(node.lat), node.name);
+        }
+    }
+
+    /** Returns whether the node ID named NAME (or null) is needed by a way or has a name. */
+    private boolean isKept(long id, String name) {
+        return name != null || Arrays.binarySearch(neededIds, id) >= 0;
+    }
+
+    private void addNode(long id, double lon, double lat, String name) {
+        if (nodeCount == nodeIds.length) {
+            int capacity = nodeCount * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeLons = Arrays.copyOf(nodeLons, capacity);
+            nodeLats = Arrays.copyOf(nodeLats, capacity);
+            nodeNames = Arrays.copyOf(nodeNames, capacity);
+        }
+        nodeIds[nodeCount] = id;
+        nodeLons[nodeCount] = lon;
+        nodeLats[nodeCount] = lat;
+        nodeNames[nodeCount] = name;
+        nodeCount += 1;
+    }
+
+    /* PBF input: the same two passes, with blocks decoded in parallel by PbfReader. */
+
+    private void readPbfWays() throws IOException {
+        boolean[] sawWays = new boolean[1];
+        try (InputStream in = open(resource)) {
+            PbfReader.read(in, true, null, block -> {
+                nodesAfterWays |= sawWays[0] && block.hasNodes;
+                sawWays[0] |= block.hasWays;
+                for (int w = 0; w < block.wayCount; w++) {
+                    addWay(block.wayRefs, block.wayStarts[w], block.wayStarts[w + 1],
+                            block.wayNames[w], block.wayHighways[w]);
+                }
+                return true;
+            });
+        }
+        findNeededIds();
+    }
+
+    private void readPbfNodes() throws IOException {
+        try (InputStream in = open(resource)) {
+            PbfReader.read(in, false, this::isKept, block -> {
+                for (int i = 0; i < block.nodeCount; i++) {
+                    addNode(block.nodeIds[i], block.nodeLons[i], block.nodeLats[i],
+                            block.nodeNames[i]);
+                }
+                /* Once the ways start, every node has been read unless more follow. */
+                return nodesAfterWays || !block.hasWays;
+            });
+        }
+    }
+
+    /* Edge construction. */
+
+    /** The edges of a run of ways, in way order, as indices into the sorted nodes. */
+    private static class EdgeChunk {
+        private int[] from;
+        private int[] to;
+        private float[] weights;
+        private int[] wayIds;
+        private int[] highways;
+        private int size;
+    }
+
+    private CompactGraph build() {
+        /* Sort the kept nodes by id, keeping the first of any duplicates. OSM files are
+         * usually sorted already, in which case the sort is skipped. */
+        Integer[] order = new Integer[nodeCount];
+        boolean sorted = true;
+        for (int i = 0; i < nodeCount; i++) {
+            order[i] = i;
+            sorted &= i == 0 || nodeIds[i - 1] <= nodeIds[i];
+        }
+        if (!sorted) {
+            Arrays.sort(order, (a, b) -> Long.compare(nodeIds[a], nodeIds[b]));
+        }
+        int n = 0;
+        long[] ids = new long[nodeCount];
+        int[] source = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            if (n == 0 || nodeIds[order[i]] != ids[n - 1]) {
+                ids[n] = nodeIds[order[i]];
+                source[n] = order[i];
+                n += 1;
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int v = 0; v < n; v++) {
+            lons[v] = nodeLons[source[v]];
+            lats[v] = nodeLats[source[v]];
+        }
+
+        EdgeChunk[] chunks = buildEdges(ids, lons, lats);
+
+        /* Drop vertices with no edges and no name, then assemble the CSR arrays. */
+        boolean[] keep = new boolean[n];
+        int[] outDegree = new int[n];
+        for (EdgeChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                outDegree[chunk.from[i]] += 1;
+                keep[chunk.from[i]] = true;
+                keep[chunk.to[i]] = true;
+            }
+        }
+        int[] newIndex = new int[n];
+        int kept = 0;
+        for (int v = 0; v < n; v++) {
+            keep[v] |= nodeNames[source[v]] != null;
+            newIndex[v] = keep[v] ? kept++ : -1;
+        }
+
+        long[] keptIds = new long[kept];
+        double[] keptLons = new double[kept];
+        double[] keptLats = new double[kept];
+        String[] keptNames = new String[kept];
+        int[] offsets = new int[kept + 1];
+        for (int v = 0; v < n; v++) {
+            int w = newIndex[v];
+            if (w >= 0) {
+                keptIds[w] = ids[v];
+                keptLons[w] = lons[v];
+                keptLats[w] = lats[v];
+                keptNames[w] = nodeNames[source[v]];
+                offsets[w + 1] = offsets[w] + outDegree[v];
+            }
+        }
+
+        int[] targets = new int[offsets[kept]];
+        float[] weights = new float[offsets[kept]];
+        int[] wayIds = new int[offsets[kept]];
+        int[] highways = new int[offsets[kept]];
+        int[] next = Arrays.copyOf(offsets, kept);
+        for (EdgeChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                int slot = next[newIndex[chunk.from[i]]]++;
+                targets[slot] = newIndex[chunk.to[i]];
+                weights[slot] = chunk.weights[i];
+                wayIds[slot] = chunk.wayIds[i];
+                highways[slot] = chunk.highways[i];
+            }
+        }
+        return new CompactGraph(keptIds, keptLons, keptLats, keptNames, offsets, targets,
+                weights, wayIds, highways, wayNames.toArray(new String[0]));
+    }
+
+    /**
+     * Computes the edges of every allowed way, two per pair of consecutive nodes that were
+     * both found, in parallel over chunks of consecutive ways.
+     */
+    private EdgeChunk[] buildEdges(long[] ids, double[] lons, double[] lats) {
+        List<Integer> chunkStarts = new ArrayList<>();
+        chunkStarts.add(0);
+        for (int w = 0; w < wayCount; w++) {
+            int start = chunkStarts.get(chunkStarts.size() - 1);
+            if (wayStarts[w + 1] - wayStarts[start] >= EDGE_CHUNK_REFS) {
+                chunkStarts.add(w + 1);
+            }
+        }
+        if (chunkStarts.get(chunkStarts.size() - 1) != wayCount) {
+            chunkStarts.add(wayCount);
+        }
+
+        EdgeChunk[] chunks = new EdgeChunk[chunkStarts.size() - 1];
+        IntStream.range(0, chunks.length).parallel().forEach(c -> {
+            EdgeChunk chunk = new EdgeChunk();
+            int firstWay = chunkStarts.get(c);
+            int lastWay = chunkStarts.get(c + 1);
+            int capacity = 2 * (wayStarts[lastWay] - wayStarts[firstWay]);
+            chunk.from = new int[capacity];
+            chunk.to = new int[capacity];
+            chunk.weights = new float[capacity];
+            chunk.wayIds = new int[capacity];
+            chunk.highways = new int[capacity];
+            for (int w = firstWay; w < lastWay; w++) {
+                for (int i = wayStarts[w]; i + 1 < wayStarts[w + 1]; i++) {
+                    int a = Arrays.binarySearch(ids, wayRefs[i]);
+                    int b = Arrays.binarySearch(ids, wayRefs[i + 1]);
+                    if (a < 0 || b < 0) {
+                        continue;
+                    }
+                    float weight = (float) StreetMapGraph.distance(lons[a], lons[b],
+                            lats[a], lats[b]);
+                    add(chunk, a, b, weight, wayNameIds[w], wayHighways[w]);
+                    add(chunk, b, a, weight, wayNameIds[w], wayHighways[w]);
+                }
+            }
+            chunks[c] = chunk;
+        });
+        return chunks;
+    }
+
+    private static void add(EdgeChunk chunk, int from, int to, float weight, int wayId,
+                            int highway) {
+        chunk.from[chunk.size] = from;
+        chunk.to[chunk.size] = to;
+        chunk.weights[chunk.size] = weight;
+        chunk.wayIds[chunk.size] = wayId;
+        chunk.highways[chunk.size] = highway;
+        chunk.size += 1;
+    }
+
+    /* The parse and decode stages. */
+
+    /** A stage function that may be called with each element the parser emits. */
+    private interface Decoder<T> {
+        void decode(T element);
+    }
+
+    /** Thrown by a handler to end a parse early; not an error. */
+    private static class StopParsing extends SAXException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A SAX handler that collects the elements it emits into batches and puts them on a
+     * bounded queue, blocking while the queue is full.
+     */
+    private abstract static class BatchingHandler<T> extends DefaultHandler {
+        private BlockingQueue<List<T>> queue;
+        private List<T> batch = new ArrayList<>(BATCH_SIZE);
+
+        void emit(T element) throws SAXException {
+            batch.add(element);
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws SAXException {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAXException(e);
+            }
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Parses the file with HANDLER on a new thread while the calling thread decodes the
+     * batches it emits with DECODER. An empty batch marks the end of the file, and is
+     * queued however the parse ends. If either stage fails, the parser is stopped and the
+     * failure is thrown, so a partly read file never yields a graph.
+     */
+    private <T> void run(BatchingHandler<T> handler, Decoder<T> decoder) throws IOException {
+        BlockingQueue<List<T>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        handler.queue = queue;
+        Throwable[] failure = new Throwable[1];
+        Thread parser = new Thread(() -> {
+            try (InputStream in = open(resource)) {
+                SAXParserFactory.newInstance().newSAXParser().parse(in, handler);
+            } catch (StopParsing e) {
+                // Everything this pass needs has been read.
+            } catch (Throwable e) {
+                failure[0] = e;
+            } finally {
+                try {
+                    if (failure[0] == null && !handler.batch.isEmpty()) {
+                        handler.flush();
+                    }
+                    queue.put(Collections.emptyList());
+                } catch (SAXException | InterruptedException e) {
+                    /* The decoder has given up on the queue, so it needs no end marker. */
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "osm-parser");
+        parser.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+        parser.setDaemon(true);
+        parser.start();
+
+        try {
+            for (List<T> batch = queue.take(); !batch.isEmpty(); batch = queue.take()) {
+                for (T element : batch) {
+                    decoder.decode(element);
+                }
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + resource + ".", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot decode " + resource + ".", e);
+        } finally {
+            if (parser.isAlive()) {
+                stop(parser, queue);
+            }
+        }
+        if (failure[0] != null) {
+            throw new IOException("Cannot parse " + resource + ".", failure[0]);
+        }
+    }
+
+    /**
+     * Stops PARSER once nothing will take from QUEUE any more: interrupting it fails its
+     * next put, which ends the parse and closes the file.
+     */
+    private static void stop(Thread parser, BlockingQueue<?> queue) {
+        parser.interrupt();
+        queue.clear();
+        try {
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
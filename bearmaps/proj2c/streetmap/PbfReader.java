@@ -0,0 +1,624 @@
+package bearmaps.proj2c.streetmap;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the nodes and ways of an OSM PBF file. See
+ * <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ *
+ * A PBF file is a sequence of independently compressed blobs, each holding a block of
+ * a few thousand elements. The reading thread only splits the file into blobs; the blobs
+ * are inflated and decoded on a pool of worker threads, one per core, and the decoded
+ * blocks are handed to the caller in file order, so the result is the same as reading
+ * the file sequentially. At most a few blocks per worker are in flight at a time.
+ *
+ * Workers decode only what the caller asks for: the ways with an allowed highway tag,
+ * or the nodes a NodeFilter accepts, each with its name. The protobuf messages are
+ * decoded by hand, which keeps the reader free of generated code and dependencies.
+ */
+final class PbfReader {
+    /** Blobs larger than this are not valid PBF. */
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    /** The number of blocks each worker may have in flight. */
+    private static final int BLOCKS_PER_WORKER = 4;
+
+    /** Decides which nodes to keep, given their id and their name (or null). */
+    interface NodeFilter {
+        boolean keep(long id, String name);
+    }
+
+    /** Receives the decoded blocks in file order. */
+    interface BlockConsumer {
+        /** Handles BLOCK, and returns false to stop reading. */
+        boolean accept(Block block) throws IOException;
+    }
+
+    /** The elements of one data block that the caller asked for. */
+    static final class Block {
+        /** Whether the block contains any nodes or any ways at all, kept or not. */
+        boolean hasNodes;
+        boolean hasWays;
+
+        /* Kept ways: the refs of way w are wayRefs[wayStarts[w]] to wayRefs[wayStarts[w + 1]]. */
+        long[] wayRefs = new long[256];
+        int[] wayStarts = new int[17];
+        String[] wayNames = new String[17];
+        /** The highway tag of each kept way, as an index into OsmIngestion.HIGHWAY_TYPES. */
+        int[] wayHighways = new int[17];
+        int wayCount;
+
+        /* Kept nodes. */
+        long[] nodeIds = new long[16];
+        double[] nodeLats = new double[16];
+        double[] nodeLons = new double[16];
+        String[] nodeNames = new String[16];
+        int nodeCount;
+
+        private void addWay(long[] refs, int count, String name, int highway) {
+            if (wayCount + 2 > wayStarts.length) {
+                wayStarts = Arrays.copyOf(wayStarts, wayStarts.length * 2);
+                wayNames = Arrays.copyOf(wayNames, wayNames.length * 2);
+                wayHighways = Arrays.copyOf(wayHighways, wayHighways.length * 2);
+            }
+            int start = wayStarts[wayCount];
+            if (start + count > wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, Math.max(wayRefs.length * 2, start + count));
+            }
+            System.arraycopy(refs, 0, wayRefs, start, count);
+            wayNames[wayCount] = name;
+            wayHighways[wayCount] = highway;
+            wayStarts[wayCount + 1] = start + count;
+            wayCount += 1;
+        }
+
+        private void addNode(long id, double lat, double lon, String name) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = nodeCount * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                nodeLats = Arrays.copyOf(nodeLats, capacity);
+                nodeLons = Arrays.copyOf(nodeLons, capacity);
+                nodeNames = Arrays.copyOf(nodeNames, capacity);
+            }
+            nodeIds[nodeCount] = id;
+            nodeLats[nodeCount] = lat;
+            nodeLons[nodeCount] = lon;
+            nodeNames[nodeCount] = name;
+            nodeCount += 1;
+        }
+    }
+
+    private PbfReader() {
+    }
+
+    /**
+     * Reads the PBF file IN, passing every data block to CONSUMER in file order.
+     * @param in The file. It is not closed.
+     * @param readWays Whether to decode the ways with an allowed highway tag.
+     * @param nodeFilter The nodes to decode, or null to decode none.
+     * @param consumer Receives each block; may stop the read early.
+     * @throws IOException If the file cannot be read or is not valid PBF.
+     */
+    static void read(InputStream in, boolean readWays, NodeFilter nodeFilter,
+                     BlockConsumer consumer) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "pbf-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Block>> inFlight = new ArrayDeque<>();
+        DataInputStream data = new DataInputStream(in);
+        try {
+            boolean reading = true;
+            while (reading) {
+                Blob blob = readBlob(data);
+                if (blob == null) {
+                    break;
+                }
+                if (blob.type.equals("OSMHeader")) {
+                    checkHeader(blob.inflate());
+                } else if (blob.type.equals("OSMData")) {
+                    inFlight.addLast(pool.submit(() ->
+                            decodeBlock(blob.inflate(), readWays, nodeFilter)));
+                }
+                while (reading && (inFlight.size() >= workers * BLOCKS_PER_WORKER
+                        || (!inFlight.isEmpty() && inFlight.peekFirst().isDone()))) {
+                    reading = consumer.accept(inFlight.removeFirst().get());
+                }
+            }
+            while (reading && !inFlight.isEmpty()) {
+                reading = consumer.accept(inFlight.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading PBF.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot decode PBF block.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* File framing: a 4-byte header length, a BlobHeader, then a Blob. */
+
+    private static final class Blob {
+        private String type;
+        private byte[] data;
+
+        /** Returns the uncompressed contents of this blob. */
+        private byte[] inflate() throws IOException {
+            Message blob = new Message(data, 0, data.length);
+            byte[] raw = null;
+            int rawSize = -1;
+            Message zlib = null;
+            while (blob.next()) {
+                switch (blob.field()) {
+                    case 1:
+                        raw = blob.bytes().toByteArray();
+                        break;
+                    case 2:
+                        rawSize = (int) blob.varint();
+                        break;
+                    case 3:
+                        zlib = blob.bytes();
+                        break;
+                    default:
+                        blob.skip();
+                }
+            }
+            if (raw != null) {
+                return raw;
+            }
+            if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+                throw new IOException("Unsupported PBF blob compression.");
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(zlib.buffer, zlib.position, zlib.limit - zlib.position);
+                byte[] out = new byte[rawSize];
+                int length = 0;
+                while (length < rawSize && !inflater.finished()) {
+                    int n = inflater.inflate(out, length, rawSize - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != rawSize) {
+                    throw new IOException("Truncated PBF blob.");
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt PBF blob.", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /** Reads the next blob of the file, or returns null at the end of the file. */
+    private static Blob readBlob(DataInputStream in) throws IOException {
+        int headerLength;
+        try {
+            headerLength = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (headerLength < 0 || headerLength > 64 * 1024) {
+            throw new IOException("Not a PBF file.");
+        }
+        byte[] headerBytes = new byte[headerLength];
+        in.readFully(headerBytes);
+        Message header = new Message(headerBytes, 0, headerLength);
+        Blob blob = new Blob();
+        int dataSize = -1;
+        while (header.next()) {
+            if (header.field() == 1) {
+                blob.type = header.bytes().string();
+            } else if (header.field() == 3) {
+                dataSize = (int) header.varint();
+            } else {
+                header.skip();
+            }
+        }
+        if (blob.type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+            throw new IOException("Corrupt PBF blob header.");
+        }
+        blob.data = new byte[dataSize];
+        in.readFully(blob.data);
+        return blob;
+    }
+
+    /** Rejects files that need features this reader does not have. */
+    private static void checkHeader(byte[] bytes) throws IOException {
+        Message header = new Message(bytes, 0, bytes.length);
+        while (header.next()) {
+            if (header.field() == 4) {
+                String feature = header.bytes().string();
+                if (!feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes")) {
+                    throw new IOException("Unsupported PBF feature " + feature + ".");
+                }
+            } else {
+                header.skip();
+            }
+        }
+    }
+
+    /* PrimitiveBlock decoding. */
+
+    /** The string table and coordinate encoding of one PrimitiveBlock. */
+    private static final class BlockContext {
+        private final byte[] buffer;
+        private int[] stringStarts = new int[64];
+        private int[] stringEnds = new int[64];
+        private int stringCount = 0;
+        private long granularity = 100;
+        private long latOffset = 0;
+        private long lonOffset = 0;
+        private int highwayKey = -1;
+        private int nameKey = -1;
+
+        private BlockContext(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        private String string(int i) {
+            return new String(buffer, stringStarts[i], stringEnds[i] - stringStarts[i],
+                    StandardCharsets.UTF_8);
+        }
+
+        /** Returns the index of S in the string table, or -1. */
+        private int find(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < stringCount; i++) {
+                int length = stringEnds[i] - stringStarts[i];
+                if (length == bytes.length && Arrays.equals(bytes,
+                        Arrays.copyOfRange(buffer, stringStarts[i], stringEnds[i]))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Converts a coordinate in granularity units to degrees. */
+        private double lat(long value) {
+            return (latOffset + granularity * value) / 1e9;
+        }
+
+        private double lon(long value) {
+            return (lonOffset + granularity * value) / 1e9;
+        }
+    }
+
+    private static Block decodeBlock(byte[] bytes, boolean readWays, NodeFilter nodeFilter) {
+        BlockContext context = new BlockContext(bytes);
+        Message block = new Message(bytes, 0, bytes.length);
+        Deque<Message> groups = new ArrayDeque<>();
+        while (block.next()) {
+            switch (block.field()) {
+                case 1:
+                    readStringTable(block.bytes(), context);
+                    break;
+                case 2:
+                    groups.add(block.bytes());
+                    break;
+                case 17:
+                    context.granularity = block.varint();
+                    break;
+                case 19:
+                    context.latOffset = block.varint();
+                    break;
+                case 20:
+                    context.lonOffset = block.varint();
+                    break;
+                default:
+                    block.skip();
+            }
+        }
+        context.highwayKey = context.find("highway");
+        context.nameKey = context.find("name");
+
+        Block result = new Block();
+        for (Message group : groups) {
+            while (group.next()) {
+                switch (group.field()) {
+                    case 1:
+                        result.hasNodes = true;
+                        if (nodeFilter != null) {
+                            decodeNode(group.bytes(), context, nodeFilter, result);
+                        } else {
+                            group.skip();
+                        }
+                        break;
+                    case 2:
+                        result.hasNodes = true;
+                        if (nodeFilter != null) {
+                            decodeDenseNodes(group.bytes(), context, nodeFilter, result);
+                        } else {
+                            group.skip();
+                        }
+                        break;
+                    case 3:
+                        result.hasWays = true;
+                        if (readWays) {
+                            decodeWay(group.bytes(), context, result);
+                        } else {
+                            group.skip();
+                        }
+                        break;
+                    default:
+                        group.skip();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void readStringTable(Message table, BlockContext context) {
+        while (table.next()) {
+            if (table.field() == 1) {
+                Message s = table.bytes();
+                if (context.stringCount == context.stringStarts.length) {
+                    context.stringStarts = Arrays.copyOf(context.stringStarts,
+                            context.stringCount * 2);
+                    context.stringEnds = Arrays.copyOf(context.stringEnds, context.stringCount * 2);
+                }
+                context.stringStarts[context.stringCount] = s.position;
+                context.stringEnds[context.stringCount] = s.limit;
+                context.stringCount += 1;
+            } else {
+                table.skip();
+            }
+        }
+    }
+
+    private static void decodeNode(Message node, BlockContext context, NodeFilter filter,
+                                   Block result) {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        Message keys = null;
+        Message values = null;
+        while (node.next()) {
+            switch (node.field()) {
+                case 1:
+                    id = node.signedVarint();
+                    break;
+                case 2:
+                    keys = node.bytes();
+                    break;
+                case 3:
+                    values = node.bytes();
+                    break;
+                case 8:
+                    lat = node.signedVarint();
+                    break;
+                case 9:
+                    lon = node.signedVarint();
+                    break;
+                default:
+                    node.skip();
+            }
+        }
+        String name = null;
+        if (keys != null && values != null) {
+            while (!keys.atEnd() && !values.atEnd()) {
+                int key = (int) keys.varint();
+                int value = (int) values.varint();
+                if (key == context.nameKey) {
+                    name = context.string(value);
+                }
+            }
+        }
+        if (filter.keep(id, name)) {
+            result.addNode(id, context.lat(lat), context.lon(lon), name);
+        }
+    }
+
+    private static void decodeDenseNodes(Message dense, BlockContext context, NodeFilter filter,
+                                         Block result) {
+        Message ids = null;
+        Message lats = null;
+        Message lons = null;
+        Message keysValues = null;
+        while (dense.next()) {
+            switch (dense.field()) {
+                case 1:
+                    ids = dense.bytes();
+                    break;
+                case 8:
+                    lats = dense.bytes();
+                    break;
+                case 9:
+                    lons = dense.bytes();
+                    break;
+                case 10:
+                    keysValues = dense.bytes();
+                    break;
+                default:
+                    dense.skip();
+            }
+        }
+        if (ids == null || lats == null || lons == null) {
+            return;
+        }
+
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        while (!ids.atEnd()) {
+            id += ids.signedVarint();
+            lat += lats.signedVarint();
+            lon += lons.signedVarint();
+            String name = null;
+            if (keysValues != null) {
+                for (int key = (int) keysValues.varint(); key != 0 && !keysValues.atEnd();
+                     key = (int) keysValues.varint()) {
+                    int value = (int) keysValues.varint();
+                    if (key == context.nameKey) {
+                        name = context.string(value);
+                    }
+                }
+            }
+            if (filter.keep(id, name)) {
+                result.addNode(id, context.lat(lat), context.lon(lon), name);
+            }
+        }
+    }
+
+    private static void decodeWay(Message way, BlockContext context, Block result) {
+        Message keys = null;
+        Message values = null;
+        Message refs = null;
+        while (way.next()) {
+            switch (way.field()) {
+                case 2:
+                    keys = way.bytes();
+                    break;
+                case 3:
+                    values = way.bytes();
+                    break;
+                case 8:
+                    refs = way.bytes();
+                    break;
+                default:
+                    way.skip();
+            }
+        }
+
+        String highway = null;
+        String name = "";
+        if (keys != null && values != null) {
+            while (!keys.atEnd() && !values.atEnd()) {
+                int key = (int) keys.varint();
+                int value = (int) values.varint();
+                if (key == context.highwayKey) {
+                    highway = context.string(value);
+                } else if (key == context.nameKey) {
+                    name = context.string(value);
+                }
+            }
+        }
+        if (refs == null || !OsmIngestion.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+            return;
+        }
+
+        long[] ids = new long[16];
+        int count = 0;
+        long id = 0;
+        while (!refs.atEnd()) {
+            id += refs.signedVarint();
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count] = id;
+            count += 1;
+        }
+        result.addWay(ids, count, name, OsmIngestion.HIGHWAY_TYPES.indexOf(highway));
+    }
+
+    /**
+     * A cursor over the fields of one protobuf message, or over the values of a packed
+     * repeated field, in a region of a byte array.
+     */
+    private static final class Message {
+        private final byte[] buffer;
+        private int position;
+        private final int limit;
+        private int tag;
+
+        private Message(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        /** Moves to the next field, returning false at the end of the message. */
+        private boolean next() {
+            if (position >= limit) {
+                return false;
+            }
+            tag = (int) varint();
+            return true;
+        }
+
+        private int field() {
+            return tag >>> 3;
+        }
+
+        private boolean atEnd() {
+            return position >= limit;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint.");
+        }
+
+        /** Reads a zigzag-encoded sint32 or sint64. */
+        private long signedVarint() {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /** Returns the current length-delimited field as a message of its own. */
+        private Message bytes() {
+            int length = (int) varint();
+            Message message = new Message(buffer, position, position + length);
+            position += length;
+            return message;
+        }
+
+        /** Skips the value of the current field. */
+        private void skip() {
+            switch (tag & 7) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    position += 8;
+                    break;
+                case 2:
+                    int length = (int) varint();
+                    position += length;
+                    break;
+                case 5:
+                    position += 4;
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported wire type " + (tag & 7) + ".");
+            }
+        }
+
+        private String string() {
+            return new String(buffer, position, limit - position, StandardCharsets.UTF_8);
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOfRange(buffer, position, limit);
+        }
+    }
+}
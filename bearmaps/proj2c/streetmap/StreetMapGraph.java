@@ -1,54 +1,108 @@
 package bearmaps.proj2c.streetmap;
 
 import bearmaps.proj2c.AStarGraph;
+import bearmaps.proj2c.Heuristic;
 import bearmaps.proj2c.WeightedEdge;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
+/**
+ * Graph of the roads in an OSM file, read by OsmIngestion into compressed sparse row form
+ * (see CompactGraph). A graph restored from a GraphSnapshot may instead keep its arrays off
+ * the heap in the mapped file (see MappedGraphStore); all methods behave the same with
+ * either GraphStore.
+ *
+ * Besides the Long-based AStarGraph methods, which allocate, the graph exposes an
+ * allocation-free view over dense int vertex indices for hot paths such as search:
+ * <pre>
+ *     int v = g.indexOf(id);
+ *     for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+ *         int w = g.edgeTarget(e);
+ *         double weight = g.edgeWeight(e);
+ *     }
+ * </pre>
+ * Incoming edges, for searches that run backward from a goal, are walked the same way
+ * with inEdgeStart/inEdgeEnd.
+ *
+ * The A* heuristic is the great-circle distance unless a stronger Heuristic, such as
+ * a LandmarkHeuristic, is installed with setHeuristic.
+ */
 public class StreetMapGraph implements AStarGraph<Long> {
-    private Map<Long, Node> nodes = new HashMap<>();
-    private Map<Long, Set<WeightedEdge<Long>>> neighbors = new HashMap<>();
+    /** The name of the GraphSnapshot section holding the graph itself. */
+    private static final String SNAPSHOT_SECTION = "graph";
+
+    private GraphStore graph;
+    private Heuristic heuristic = this::greatCircleDistance;
 
     private StreetMapGraph() {
     }
 
+    /**
+     * Reads the graph of the OSM file FILENAME.
+     * @throws UncheckedIOException If the file cannot be read or parsed.
+     */
     public StreetMapGraph(String filename) {
         StreetMapGraph smg = StreetMapGraph.readFromXML(filename);
-        this.nodes = smg.nodes;
-        this.neighbors = smg.neighbors;
+        this.graph = smg.graph;
+    }
+
+    /**
+     * Restores a graph saved with writeSnapshot.
+     * @param snapshot The snapshot to read from.
+     * @param offHeap Whether to leave the graph in the memory-mapped snapshot
+     *                (MappedGraphStore) rather than copy it onto the heap (CompactGraph).
+     * @throws IOException If the snapshot holds no graph.
+     */
+    protected StreetMapGraph(GraphSnapshot snapshot, boolean offHeap) throws IOException {
+        GraphSnapshot.Section section = snapshot.section(SNAPSHOT_SECTION);
+        this.graph = offHeap ? new MappedGraphStore(section) : CompactGraph.read(section);
+    }
+
+    /**
+     * Adds this graph to a snapshot being written. Subclasses that keep indexes of
+     * their own override this to add them as further sections.
+     * @param snapshot The snapshot to add to.
+     */
+    public void writeSnapshot(GraphSnapshot.Writer snapshot) throws IOException {
+        graph.write(snapshot.section(SNAPSHOT_SECTION));
     }
 
     /**
      * Returns a list of outgoing edges for V. Assumes V exists in this
-     * graph.
+     * graph. Allocates a fresh list on every call; prefer edgeStart/edgeEnd
+     * on hot paths.
      **/
     @Override
     public List<WeightedEdge<Long>> neighbors(Long v) {
-        Set<WeightedEdge<Long>> incidentSet = neighbors.get(v);
-        List<WeightedEdge<Long>> incidentList = new ArrayList<>();
-        for (WeightedEdge<Long> e : incidentSet) {
-            incidentList.add(e);
+        int index = graph.indexOf(v);
+        List<WeightedEdge<Long>> incidentList = new ArrayList<>(outDegree(index));
+        for (int e = graph.edgeStart(index); e < graph.edgeEnd(index); e++) {
+            WeightedEdge<Long> weightedEdge = new WeightedEdge<>(v, graph.id(graph.edgeTarget(e)),
+                    graph.edgeWeight(e));
+            weightedEdge.setName(graph.wayName(graph.edgeWayId(e)));
+            incidentList.add(weightedEdge);
         }
 
         return incidentList;
     }
 
     /**
-     * Returns the great-circle distance between S and GOAL. Assumes
-     * S and GOAL exist in this graph.
+     * Returns the current heuristic's estimate of the distance from S to GOAL.
+     * Assumes S and GOAL exist in this graph.
      */
     @Override
     public double estimatedDistanceToGoal(Long s, Long goal) {
-        Node sNode = nodes.get(s);
-        Node goalNode = nodes.get(goal);
-        return distance(sNode.lon(), goalNode.lon(), sNode.lat(), goalNode.lat());
+        return estimatedDistance(graph.indexOf(s), graph.indexOf(goal));
+    }
+
+    /**
+     * Replaces the heuristic used by estimatedDistance and the A* solvers.
+     * @param heuristic The new heuristic, or null to go back to the great-circle distance.
+     */
+    public void setHeuristic(Heuristic heuristic) {
+        this.heuristic = heuristic == null ? this::greatCircleDistance : heuristic;
     }
 
     /**
@@ -57,8 +111,8 @@ public class StreetMapGraph implements AStarGraph<Long> {
      **/
     private Set<Long> vertices() {
         Set<Long> vertices = new HashSet<>();
-        for (long id : nodes.keySet()) {
-            vertices.add(id);
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            vertices.add(graph.id(v));
         }
 
         return vertices;
@@ -66,67 +120,20 @@ public class StreetMapGraph implements AStarGraph<Long> {
 
     /**
      * Factory method. Creates and returns a graph from an OSM XML
-     * file. Assumes file is correctly formatted.
+     * or PBF file.
+     * @throws UncheckedIOException If the file cannot be read or parsed, rather than
+     *                              returning the part of the graph read before the failure.
      */
     private static StreetMapGraph readFromXML(String filename) {
         StreetMapGraph smg = new StreetMapGraph();
         try {
-//            File inputFile = new File(filename);
-//            FileInputStream inputStream = new FileInputStream(inputFile);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(smg);
-            saxParser.parse(Thread.currentThread().getContextClassLoader().getResourceAsStream(filename), gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+            smg.graph = OsmIngestion.load(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-
-        smg.clean();
         return smg;
     }
 
-    /** Adds a node to this graph, if it doesn't yet exist. **/
-    void addNode(Node node) {
-        if (!nodes.containsKey(node.id())) {
-            nodes.put(node.id(), node);
-            neighbors.put(node.id(), new HashSet<>());
-        }
-    }
-
-    /** Adds an edge to this graph, if FROMID and TOID are in this graph. Does
-     *  not add additional edge if edge already exists.
-     **/
-    void addWeightedEdge(long fromID, long toID, String name) {
-        if (nodes.containsKey(fromID) && nodes.containsKey(toID)) {
-            Node from = nodes.get(fromID);
-            Node to = nodes.get(toID);
-            double weight = distance(from.lon(), to.lon(), from.lat(), to.lat());
-
-            Set<WeightedEdge<Long>> edgeSet = neighbors.get(fromID);
-            WeightedEdge<Long> weightedEdge = new WeightedEdge<>(from.id(), to.id(), weight);
-            weightedEdge.setName(name);
-            edgeSet.add(weightedEdge);
-        }
-    }
-
-    /**
-     * Removes vertices with 0 out-degree from graph. Note that this will
-     * cause issues if edges are not bidirectional.
-     **/
-    private void clean() {
-        List<Long> toRemove = new ArrayList<>();
-        for (long id : nodes.keySet()) {
-            if (neighbors(id).size() == 0 && nodes.get(id).name() == null) {
-                toRemove.add(id);
-            }
-        }
-
-        for (long id : toRemove) {
-            nodes.remove(id);
-            neighbors.remove(id);
-        }
-    }
-
     /**
      * We don't override hashCode(), so hash at your peril!
      */
@@ -179,7 +186,7 @@ public class StreetMapGraph implements AStarGraph<Long> {
      *
      * @source Kevin Lowe & Antares Chen, and https://www.movable-type.co.uk/scripts/latlong.html
      **/
-    private double distance(double lonV, double lonW, double latV, double latW) {
+    static double distance(double lonV, double lonW, double latV, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
         double dphi = Math.toRadians(latW - latV);
@@ -197,10 +204,11 @@ public class StreetMapGraph implements AStarGraph<Long> {
      * @return The longitude of the vertex.
      */
     public double lon(long v) {
-        if (!nodes.containsKey(v)) {
+        int index = graph.indexOf(v);
+        if (index < 0) {
             return 0.0;
         }
-        return nodes.get(v).lon();
+        return graph.lon(index);
     }
 
     /**
@@ -209,10 +217,11 @@ public class StreetMapGraph implements AStarGraph<Long> {
      * @return The latitude of the vertex.
      */
     public double lat(long v) {
-        if (!nodes.containsKey(v)) {
+        int index = graph.indexOf(v);
+        if (index < 0) {
             return 0.0;
         }
-        return nodes.get(v).lat();
+        return graph.lat(index);
     }
 
     /**
@@ -221,17 +230,161 @@ public class StreetMapGraph implements AStarGraph<Long> {
      * @return The name of the vertex.
      */
     public String name(long v) {
-        if (!nodes.containsKey(v)) {
+        int index = graph.indexOf(v);
+        if (index < 0) {
             return null;
         }
-        return nodes.get(v).name();
+        return graph.name(index);
     }
 
     protected List<Node> getNodes() {
-        List<Node> nodes = new ArrayList<>();
-        for(Map.Entry<Long, Node> nodeEntry: this.nodes.entrySet()){
-            nodes.add(nodeEntry.getValue());
+        List<Node> nodes = new ArrayList<>(graph.vertexCount());
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            Node node = Node.of(graph.id(v), graph.lat(v), graph.lon(v));
+            node.setName(graph.name(v));
+            nodes.add(node);
         }
         return nodes;
     }
+
+    /* Allocation-free access by dense vertex index. Indices are in [0, vertexCount()). */
+
+    /** Returns the number of vertices in this graph. */
+    public int vertexCount() {
+        return graph.vertexCount();
+    }
+
+    /** Returns the number of directed edges in this graph. */
+    public int edgeCount() {
+        return graph.edgeCount();
+    }
+
+    /**
+     * Returns the dense index of the vertex with the given id.
+     * @param id The id of the vertex.
+     * @return The index of the vertex, or -1 if it is not in this graph.
+     */
+    public int indexOf(long id) {
+        return graph.indexOf(id);
+    }
+
+    /** Returns the id of the vertex at index V. */
+    public long idAt(int v) {
+        return graph.id(v);
+    }
+
+    /** Returns the longitude of the vertex at index V. */
+    public double lonAt(int v) {
+        return graph.lon(v);
+    }
+
+    /** Returns the latitude of the vertex at index V. */
+    public double latAt(int v) {
+        return graph.lat(v);
+    }
+
+    /** Returns the number of outgoing edges of the vertex at index V. */
+    public int outDegree(int v) {
+        return graph.edgeEnd(v) - graph.edgeStart(v);
+    }
+
+    /** Returns the first edge index of the vertex at index V. */
+    public int edgeStart(int v) {
+        return graph.edgeStart(v);
+    }
+
+    /** Returns one past the last edge index of the vertex at index V. */
+    public int edgeEnd(int v) {
+        return graph.edgeEnd(v);
+    }
+
+    /** Returns the index of the vertex that edge E points to. */
+    public int edgeTarget(int e) {
+        return graph.edgeTarget(e);
+    }
+
+    /** Returns the great-circle length of edge E, in miles. */
+    public double edgeWeight(int e) {
+        return graph.edgeWeight(e);
+    }
+
+    /** Returns the interned id of the name of the way edge E belongs to. */
+    public int edgeWayId(int e) {
+        return graph.edgeWayId(e);
+    }
+
+    /**
+     * Returns the highway tag of the way edge E belongs to, as a class from 0 to
+     * highwayClassCount() - 1; see highwayType.
+     */
+    public int edgeHighway(int e) {
+        return graph.edgeHighway(e);
+    }
+
+    /** Returns the number of highway classes edgeHighway may return. */
+    public static int highwayClassCount() {
+        return OsmIngestion.HIGHWAY_TYPES.size();
+    }
+
+    /** Returns the OSM highway tag of HIGHWAY_CLASS, such as "residential". */
+    public static String highwayType(int highwayClass) {
+        return OsmIngestion.HIGHWAY_TYPES.get(highwayClass);
+    }
+
+    /** Returns the way name with the given interned id; empty if the way is unnamed. */
+    public String wayName(int wayId) {
+        return graph.wayName(wayId);
+    }
+
+    /** Returns the first incoming-edge slot of the vertex at index V. */
+    public int inEdgeStart(int v) {
+        return graph.reverseStart(v);
+    }
+
+    /** Returns one past the last incoming-edge slot of the vertex at index V. */
+    public int inEdgeEnd(int v) {
+        return graph.reverseEnd(v);
+    }
+
+    /** Returns the index of the vertex the incoming edge in slot I comes from. */
+    public int inEdgeSource(int i) {
+        return graph.reverseSource(i);
+    }
+
+    /**
+     * Returns the forward edge index of the incoming edge in slot I, for use with
+     * edgeWeight and edgeWayId.
+     */
+    public int inEdge(int i) {
+        return graph.reverseEdge(i);
+    }
+
+    /**
+     * Returns the current heuristic's lower bound on the length of any path from
+     * the vertex at index V to the one at index GOAL.
+     */
+    public double estimatedDistance(int v, int goal) {
+        return heuristic.estimate(v, goal);
+    }
+
+    /** Returns the great-circle distance between the vertices at indices V and W. */
+    public double greatCircleDistance(int v, int w) {
+        return distance(graph.lon(v), graph.lon(w), graph.lat(v), graph.lat(w));
+    }
+
+    /**
+     * Returns the first edge from the vertex at index FROM to the vertex at
+     * index TO, or -1 if there is no such edge.
+     */
+    public int findEdge(int from, int to) {
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+        for (int e = graph.edgeStart(from); e < graph.edgeEnd(from); e++) {
+            if (graph.edgeTarget(e) == to) {
+                return e;
+            }
+        }
+        return -1;
+    }
 }
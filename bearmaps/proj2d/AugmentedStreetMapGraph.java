@@ -1,66 +1,433 @@
 package bearmaps.proj2d;
 
-import bearmaps.proj2ab.Point;
 import bearmaps.proj2ab.TrieSet;
-import bearmaps.proj2ab.WeirdPointSet;
+import bearmaps.proj2ab.FlatKDTree;
+import bearmaps.proj2ab.GridPointSet;
+import bearmaps.proj2ab.IndexedPointSet;
+import bearmaps.proj2c.EdgeSnap;
 import bearmaps.proj2c.WeirdSolver;
+import bearmaps.proj2c.ch.CHBuilder;
+import bearmaps.proj2c.ch.ContractionHierarchy;
+import bearmaps.proj2c.streetmap.GraphSnapshot;
 import bearmaps.proj2c.streetmap.StreetMapGraph;
 import bearmaps.proj2c.streetmap.Node;
+import bearmaps.proj2d.server.SegmentGrid;
 import org.eclipse.jetty.util.Trie;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class AugmentedStreetMapGraph extends StreetMapGraph {
-    private List<Node> nodes;
-    private HashMap<Point, Node> pointNodeHashMap;
-    private WeirdPointSet pointSet;
+    /** The name of the GraphSnapshot section holding the search indexes. */
+    private static final String SNAPSHOT_SECTION = "search";
+    /** closestBatch answers up to this many queries on one thread before splitting them. */
+    private static final int BATCH_GRAIN = 4096;
+    /**
+     * The order of the Hilbert curve closestBatch sorts queries along. Positions on a curve
+     * of order 15 fit in 30 bits, so a position shifted above a query index stays positive
+     * and sorts in curve order.
+     */
+    private static final int HILBERT_ORDER = 15;
+
+    /** The spatial indexes closest can search the graph's vertices with. */
+    public enum PointIndex {
+        /** A FlatKDTree, whose order is saved in snapshots so that it is not rebuilt. */
+        KD_TREE,
+        /** A GridPointSet, rebuilt in linear time whenever the graph is loaded. */
+        GRID
+    }
+
+    /** The vertices closest may return, and the index of their points in the same order. */
+    private int[] pointVertices;
+    private IndexedPointSet pointIndex;
     private TrieSet trieSet;
     private HashMap<String, Node> stringToNodeHashMap;
     private HashMap<String, HashSet<String>> cleanNameToDirtyNames;
     private HashMap<String, Node> cleanNameToNode;
+    /** The contraction hierarchy for CH routing, loaded or built on first use. */
+    private volatile ContractionHierarchy contractionHierarchy;
+    /** The index of road segments for snap, built on first use. */
+    private volatile SegmentGrid segmentGrid;
+    private final long sourceStamp;
     public AugmentedStreetMapGraph(String dbPath) {
+        this(dbPath, PointIndex.KD_TREE);
+    }
+
+    /**
+     * Reads the graph of the OSM file DBPATH, searching its vertices for closest with the
+     * given POINTINDEX.
+     */
+    public AugmentedStreetMapGraph(String dbPath, PointIndex pointIndex) {
         super(dbPath);
-        nodes = this.getNodes();
-        pointNodeHashMap = new HashMap<Point, Node>();
-        List<Point> points = new ArrayList<Point> ();
+        sourceStamp = GraphSnapshot.sourceStamp(dbPath);
+        int[] namedVertices = namedVertices();
+        pointVertices = pointVertices();
+        this.pointIndex = buildPointIndex(pointIndex, null);
+        index(namedVertices, cleanNames(namedVertices));
+    }
+
+    private AugmentedStreetMapGraph(GraphSnapshot snapshot, boolean offHeap, long sourceStamp,
+                                    PointIndex pointIndex) throws IOException {
+        super(snapshot, offHeap);
+        this.sourceStamp = sourceStamp;
+        GraphSnapshot.Section section = snapshot.section(SNAPSHOT_SECTION);
+        pointVertices = section.readInts();
+        this.pointIndex = buildPointIndex(pointIndex, section.readInts());
+        index(section.readInts(), section.readStrings());
+    }
+
+    /**
+     * Returns the GraphSnapshot.sourceStamp of the OSM file the graph was read from. It
+     * changes whenever the file does, so caches of what was computed from the graph, such
+     * as search results, can key on it.
+     */
+    public long sourceStamp() {
+        return sourceStamp;
+    }
+
+    /**
+     * Returns the graph of the OSM file DBPATH, restored onto the heap from the
+     * snapshot at SNAPSHOTPATH if that is current.
+     * @see #load(String, String, boolean)
+     */
+    public static AugmentedStreetMapGraph load(String dbPath, String snapshotPath) {
+        return load(dbPath, snapshotPath, false);
+    }
+
+    /**
+     * Returns the graph of the OSM file DBPATH, restored from the snapshot at
+     * SNAPSHOTPATH if that is current, with closest searching a KD-tree.
+     * @see #load(String, String, boolean, PointIndex)
+     */
+    public static AugmentedStreetMapGraph load(String dbPath, String snapshotPath,
+                                               boolean offHeap) {
+        return load(dbPath, snapshotPath, offHeap, PointIndex.KD_TREE);
+    }
+
+    /**
+     * Returns the graph of the OSM file DBPATH, restored from the snapshot at
+     * SNAPSHOTPATH if that is current. Otherwise the OSM file is parsed and a new
+     * snapshot is written to SNAPSHOTPATH for the next start.
+     * @param dbPath The OSM XML file, as a classpath resource.
+     * @param snapshotPath The snapshot file.
+     * @param offHeap Whether the graph's CSR arrays should stay in the memory-mapped
+     *                snapshot instead of being copied onto the heap. Its indexes are on
+     *                the heap either way, and a graph whose snapshot would be larger than
+     *                GraphSnapshot.MAX_BYTES is kept on the heap.
+     * @param pointIndex The spatial index closest searches.
+     * @return The graph.
+     */
+    public static AugmentedStreetMapGraph load(String dbPath, String snapshotPath,
+                                               boolean offHeap, PointIndex pointIndex) {
+        long sourceStamp = GraphSnapshot.sourceStamp(dbPath);
+        try {
+            return new AugmentedStreetMapGraph(GraphSnapshot.open(snapshotPath, sourceStamp),
+                    offHeap, sourceStamp, pointIndex);
+        } catch (IOException e) {
+            System.out.println("Parsing " + dbPath + ": " + e.getMessage());
+        }
+
+        AugmentedStreetMapGraph graph = new AugmentedStreetMapGraph(dbPath, pointIndex);
+        try {
+            GraphSnapshot.Writer snapshot = new GraphSnapshot.Writer(sourceStamp);
+            graph.writeSnapshot(snapshot);
+            snapshot.write(snapshotPath);
+            if (offHeap) {
+                return new AugmentedStreetMapGraph(GraphSnapshot.open(snapshotPath, sourceStamp),
+                        true, sourceStamp, pointIndex);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not save graph snapshot: " + e.getMessage());
+        }
+        return graph;
+    }
+
+    @Override
+    public void writeSnapshot(GraphSnapshot.Writer snapshot) throws IOException {
+        super.writeSnapshot(snapshot);
+        int[] namedVertices = namedVertices();
+        /* Only a KD-tree is worth saving; other indexes leave its order empty. */
+        int[] treeOrder = pointIndex instanceof FlatKDTree ? ((FlatKDTree) pointIndex).order()
+                : new int[0];
+        snapshot.section(SNAPSHOT_SECTION).writeInts(pointVertices).writeInts(treeOrder)
+                .writeInts(namedVertices).writeStrings(cleanNames(namedVertices));
+    }
+
+    /** Returns the indices of the vertices closest may snap to: those with outgoing edges. */
+    private int[] pointVertices() {
+        int count = 0;
+        int[] vertices = new int[vertexCount()];
+        for (int v = 0; v < vertexCount(); v++) {
+            if (outDegree(v) > 0) {
+                vertices[count] = v;
+                count += 1;
+            }
+        }
+        return Arrays.copyOf(vertices, count);
+    }
+
+    /**
+     * Returns the index of kind KIND of the points of pointVertices. A KD-tree is restored
+     * from TREE_ORDER, the order saved with a snapshot, unless that is null or empty.
+     */
+    private IndexedPointSet buildPointIndex(PointIndex kind, int[] treeOrder) {
+        double[] lons = lons(pointVertices);
+        double[] lats = lats(pointVertices);
+        if (kind == PointIndex.GRID) {
+            return new GridPointSet(lons, lats);
+        }
+        if (treeOrder != null && treeOrder.length == pointVertices.length
+                && pointVertices.length > 0) {
+            return FlatKDTree.restore(lons, lats, treeOrder);
+        }
+        return new FlatKDTree(lons, lats);
+    }
+
+    private double[] lons(int[] vertices) {
+        double[] lons = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            lons[i] = lonAt(vertices[i]);
+        }
+        return lons;
+    }
+
+    private double[] lats(int[] vertices) {
+        double[] lats = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            lats[i] = latAt(vertices[i]);
+        }
+        return lats;
+    }
+
+    /** Returns the indices of the vertices that have a name. */
+    private int[] namedVertices() {
+        int count = 0;
+        int[] vertices = new int[vertexCount()];
+        for (int v = 0; v < vertexCount(); v++) {
+            if (name(idAt(v)) != null) {
+                vertices[count] = v;
+                count += 1;
+            }
+        }
+        return Arrays.copyOf(vertices, count);
+    }
+
+    private String[] cleanNames(int[] namedVertices) {
+        String[] cleanNames = new String[namedVertices.length];
+        for (int i = 0; i < namedVertices.length; i++) {
+            cleanNames[i] = cleanString(name(idAt(namedVertices[i])));
+        }
+        return cleanNames;
+    }
+
+    /**
+     * Builds the name indexes.
+     * @param namedVertices The vertices that have a name, in index order.
+     * @param cleanNames The cleaned names of NAMEDVERTICES.
+     */
+    private void index(int[] namedVertices, String[] cleanNames) {
         trieSet = new TrieSet();
         stringToNodeHashMap = new HashMap<String, Node>();
         cleanNameToDirtyNames = new HashMap<String, HashSet<String>>();
         cleanNameToNode = new HashMap<String, Node>();
-        for (Node a : nodes) {
-            if (!neighbors(a.id()).isEmpty()) {
-                pointNodeHashMap.put(new Point(a.lon(), a.lat()), a);
-                points.add(new Point(a.lon(), a.lat()));
+        for (int i = 0; i < namedVertices.length; i++) {
+            Node a = nodeAt(namedVertices[i]);
+            String clean = cleanNames[i];
+            stringToNodeHashMap.put(a.name(), a);
+            if (cleanNameToDirtyNames.containsKey(clean)) {
+                cleanNameToDirtyNames.get(clean).add(a.name());
+                cleanNameToNode.put(clean, a);
+            } else {
+                HashSet<String> temp = new HashSet<String>();
+                cleanNameToDirtyNames.put(clean, temp);
+                cleanNameToNode.put(clean, a);
+                temp.add(a.name());
             }
-            if (a.name() != null) {
-                stringToNodeHashMap.put(a.name(), a);
-                if (cleanNameToDirtyNames.containsKey(cleanString(a.name()))) {
-                    cleanNameToDirtyNames.get(cleanString(a.name())).add(a.name());
-                    cleanNameToNode.put(cleanString(a.name()), a);
-                } else {
-                    HashSet<String> temp = new HashSet<String>();
-                    cleanNameToDirtyNames.put(cleanString(a.name()), temp);
-                    cleanNameToNode.put(cleanString(a.name()), a);
-                    temp.add(a.name());
-                }
-                if (!trieSet.contains(cleanString(a.name()))) {
-                    trieSet.add(cleanString(a.name()));
-                }
+            if (!trieSet.contains(clean)) {
+                trieSet.add(clean);
             }
         }
-        pointSet = new WeirdPointSet(points);
+    }
+
+    private Node nodeAt(int v) {
+        Node node = Node.of(idAt(v), latAt(v), lonAt(v));
+        node.setName(name(idAt(v)));
+        return node;
     }
 
 
     /**
      * For Project Part II
-     * Returns the vertex closest to the given longitude and latitude.
+     * Returns the vertex closest to the given longitude and latitude. Of vertices at the
+     * same point, the last is returned. The search allocates nothing.
      * @param lon The target longitude.
      * @param lat The target latitude.
      * @return The id of the node in the graph closest to the target.
      */
     public long closest(double lon, double lat) {
-        return pointNodeHashMap.get(pointSet.nearest(lon, lat)).id();
+        return idAt(pointVertices[pointIndex.nearestIndex(lon, lat)]);
+    }
+
+    /**
+     * Finds the vertex closest to each of many locations, on the common ForkJoinPool.
+     * @see #closestBatch(double[], double[], long[], ForkJoinPool)
+     */
+    public void closestBatch(double[] lons, double[] lats, long[] out) {
+        closestBatch(lons, lats, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the vertex closest to each of many locations, as closest would, in parallel on
+     * POOL. The locations are first sorted along a Hilbert curve over their bounding box,
+     * so that each task answers a run of nearby queries, which walk the same parts of the
+     * point index while they are in cache. The index is immutable, so tasks share it.
+     * @param lons The longitudes of the locations.
+     * @param lats The latitudes of the locations.
+     * @param out Where the id of the vertex closest to location i is stored, at i.
+     * @param pool The pool the queries run on.
+     */
+    public void closestBatch(double[] lons, double[] lats, long[] out, ForkJoinPool pool) {
+        if (lons.length != lats.length || out.length != lons.length) {
+            throw new IllegalArgumentException("The arrays must have the same length.");
+        }
+        long[] order = hilbertOrder(lons, lats);
+        pool.invoke(new ClosestTask(lons, lats, out, order, 0, order.length));
+    }
+
+    /**
+     * Answers the queries at positions [lo, hi) of a closestBatch order, splitting large
+     * runs in two.
+     */
+    private final class ClosestTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] lons;
+        private final double[] lats;
+        private final long[] out;
+        private final long[] order;
+        private final int lo;
+        private final int hi;
+
+        ClosestTask(double[] lons, double[] lats, long[] out, long[] order, int lo, int hi) {
+            this.lons = lons;
+            this.lats = lats;
+            this.out = out;
+            this.order = order;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > BATCH_GRAIN) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ClosestTask(lons, lats, out, order, lo, mid),
+                        new ClosestTask(lons, lats, out, order, mid, hi));
+                return;
+            }
+            for (int j = lo; j < hi; j++) {
+                int i = (int) order[j];
+                out[i] = closest(lons[i], lats[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the indices of the locations LONS[i], LATS[i] in the order of a Hilbert curve
+     * over their bounding box, each in the low 32 bits of a long whose high bits hold its
+     * position on the curve.
+     */
+    private static long[] hilbertOrder(double[] lons, double[] lats) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < lons.length; i++) {
+            minLon = Math.min(minLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        int side = 1 << HILBERT_ORDER;
+        double lonScale = maxLon > minLon ? (side - 1) / (maxLon - minLon) : 0;
+        double latScale = maxLat > minLat ? (side - 1) / (maxLat - minLat) : 0;
+        long[] order = new long[lons.length];
+        for (int i = 0; i < order.length; i++) {
+            /* Locations that are not numbers sort anywhere; closest settles them. */
+            int x = (int) Math.max(0, Math.min(side - 1, (lons[i] - minLon) * lonScale));
+            int y = (int) Math.max(0, Math.min(side - 1, (lats[i] - minLat) * latScale));
+            order[i] = hilbertIndex(x, y) << 32 | i;
+        }
+        Arrays.parallelSort(order);
+        return order;
+    }
+
+    /** Returns the position of the cell X, Y on a Hilbert curve of order HILBERT_ORDER. */
+    private static long hilbertIndex(int x, int y) {
+        int side = 1 << HILBERT_ORDER;
+        long d = 0;
+        for (int s = side >>> 1; s > 0; s >>>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* Rotate the quadrant so that the curve within it starts and ends where the
+             * curve through the quadrants does. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Returns the point on the road nearest to the given longitude and latitude: its
+     * projection onto the nearest segment, which a search can start or end at as if it
+     * were a vertex splitting the segment.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The snapped point, or null if the graph has no edges.
+     */
+    public EdgeSnap snap(double lon, double lat) {
+        SegmentGrid grid = segmentGrid();
+        int s = grid.nearest(lon, lat);
+        if (s < 0) {
+            return null;
+        }
+        int v = grid.source(s);
+        int w = grid.target(s);
+        int e = grid.edge(s);
+        double t = grid.project(s, lon, lat);
+        return new EdgeSnap(v, w, t * edgeWeight(e), (1 - t) * edgeWeight(e), true,
+                findEdge(w, v) >= 0, lonAt(v) + t * (lonAt(w) - lonAt(v)),
+                latAt(v) + t * (latAt(w) - latAt(v)));
+    }
+
+    /** Returns the index of the graph's road segments, building it on first use. */
+    public SegmentGrid segmentGrid() {
+        SegmentGrid grid = segmentGrid;
+        if (grid == null) {
+            synchronized (this) {
+                grid = segmentGrid;
+                if (grid == null) {
+                    grid = new SegmentGrid(this);
+                    segmentGrid = grid;
+                }
+            }
+        }
+        return grid;
     }
 
     /**
@@ -115,6 +482,51 @@ public class AugmentedStreetMapGraph extends StreetMapGraph {
     }
 
 
+    /**
+     * Returns the contraction hierarchy of this graph, building it on first use if
+     * loadContractionHierarchy has not provided one.
+     */
+    public ContractionHierarchy contractionHierarchy() {
+        ContractionHierarchy hierarchy = contractionHierarchy;
+        if (hierarchy == null) {
+            synchronized (this) {
+                hierarchy = contractionHierarchy;
+                if (hierarchy == null) {
+                    hierarchy = new CHBuilder(this).build();
+                    contractionHierarchy = hierarchy;
+                }
+            }
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Loads the contraction hierarchy of this graph from the file at PATH. If the file
+     * is missing, unreadable or was built for a different graph, the hierarchy is
+     * rebuilt and written to PATH so that the next start can skip preprocessing.
+     * @param path The file the hierarchy is cached in.
+     */
+    public synchronized void loadContractionHierarchy(String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                contractionHierarchy = ContractionHierarchy.read(in, this);
+                return;
+            } catch (IOException e) {
+                System.out.println("Rebuilding contraction hierarchy: " + e.getMessage());
+            }
+        }
+        contractionHierarchy = new CHBuilder(this).build();
+        if (file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            contractionHierarchy.write(out);
+        } catch (IOException e) {
+            System.out.println("Could not save contraction hierarchy: " + e.getMessage());
+        }
+    }
+
     /**
      * Useful for Part III. Do not modify.
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
@@ -1,5 +1,7 @@
 package bearmaps.proj2d;
 
+import bearmaps.proj2c.LandmarkHeuristic;
+import bearmaps.proj2d.server.VectorTiles;
 import bearmaps.proj2d.server.handler.APIRouteHandler;
 import bearmaps.proj2d.utils.Constants;
 
@@ -22,7 +24,15 @@ public class MapServerInitializer {
     public static void initializeServer(Map<String, APIRouteHandler> apiHandlers){
         port(getHerokuAssignedPort());
 
-        Constants.SEMANTIC_STREET_GRAPH = new AugmentedStreetMapGraph(Constants.OSM_DB_PATH);
+        Constants.SEMANTIC_STREET_GRAPH = AugmentedStreetMapGraph.load(Constants.OSM_DB_PATH,
+                Constants.SNAPSHOT_PATH, Constants.GRAPH_OFF_HEAP, Constants.POINT_INDEX);
+        Constants.SEMANTIC_STREET_GRAPH.loadContractionHierarchy(Constants.CH_CACHE_PATH);
+        Constants.SEMANTIC_STREET_GRAPH.setHeuristic(new LandmarkHeuristic(
+                Constants.SEMANTIC_STREET_GRAPH, Constants.LANDMARK_COUNT,
+                LandmarkHeuristic.Selection.AVOID));
+        Constants.VECTOR_TILES = new VectorTiles(Constants.SEMANTIC_STREET_GRAPH,
+                Constants.TILE_PYRAMID, Constants.VECTOR_TILE_MAX_DEPTH,
+                Constants.VECTOR_TILE_CACHE_BYTES);
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
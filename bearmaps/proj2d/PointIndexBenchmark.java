@@ -0,0 +1,182 @@
+package bearmaps.proj2d;
+
+import bearmaps.proj2ab.FlatKDTree;
+import bearmaps.proj2ab.GridPointSet;
+import bearmaps.proj2ab.IndexedPointSet;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.PointSet;
+import bearmaps.proj2ab.WeirdPointSet;
+import bearmaps.proj2d.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the spatial indexes closest can use, FlatKDTree and GridPointSet, with
+ * WeirdPointSet: how long each takes to build, and to answer nearest queries at random
+ * points of the map. It runs on the vertices of the Constants.OSM_DB_PATH graph, then on
+ * a synthetic set of points spread evenly over the same area, and checks that the indexes
+ * agree on every answer. Queries are timed on a second pass, after the first has given
+ * the JIT a chance to compile the searches. It also reports the throughput of the graph's
+ * closest, one query at a time and through closestBatch, in points per second.
+ *
+ * Run main with the number of synthetic points, 10,000,000 by default, and the number of
+ * queries, 200,000 by default. The default sizes need a heap of 4.5 GB (-Xmx4500m),
+ * mostly for WeirdPointSet's nodes; the timings quoted for the indexes were taken with
+ * those defaults and that heap.
+ */
+public class PointIndexBenchmark {
+    private static final long SEED = 24;
+
+    public static void main(String[] args) {
+        int syntheticPoints = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        AugmentedStreetMapGraph graph = new AugmentedStreetMapGraph(Constants.OSM_DB_PATH);
+        int count = 0;
+        double[] lons = new double[graph.vertexCount()];
+        double[] lats = new double[graph.vertexCount()];
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            if (graph.outDegree(v) > 0) {
+                lons[count] = graph.lonAt(v);
+                lats[count] = graph.latAt(v);
+                count += 1;
+            }
+        }
+        run("Berkeley", Arrays.copyOf(lons, count), Arrays.copyOf(lats, count), queries);
+        batch(graph, queries);
+
+        Random random = new Random(SEED);
+        double[] xs = new double[syntheticPoints];
+        double[] ys = new double[syntheticPoints];
+        for (int i = 0; i < syntheticPoints; i++) {
+            xs[i] = Constants.ROOT_ULLON + random.nextDouble()
+                    * (Constants.ROOT_LRLON - Constants.ROOT_ULLON);
+            ys[i] = Constants.ROOT_LRLAT + random.nextDouble()
+                    * (Constants.ROOT_ULLAT - Constants.ROOT_LRLAT);
+        }
+        run("Synthetic", xs, ys, queries);
+    }
+
+    /** Builds each index of the points XS, YS and times QUERIES nearest queries on it. */
+    private static void run(String name, double[] xs, double[] ys, int queries) {
+        System.out.printf("%s: %,d points, %,d queries%n", name, xs.length, queries);
+        Random random = new Random(SEED);
+        double[] queryXs = new double[queries];
+        double[] queryYs = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            queryXs[i] = Constants.ROOT_ULLON + random.nextDouble()
+                    * (Constants.ROOT_LRLON - Constants.ROOT_ULLON);
+            queryYs[i] = Constants.ROOT_LRLAT + random.nextDouble()
+                    * (Constants.ROOT_ULLAT - Constants.ROOT_LRLAT);
+        }
+
+        long start = System.nanoTime();
+        FlatKDTree tree = new FlatKDTree(xs, ys);
+        report("FlatKDTree build", System.nanoTime() - start, 1);
+        int[] treeAnswers = time("FlatKDTree nearest", tree, queryXs, queryYs);
+
+        start = System.nanoTime();
+        GridPointSet grid = new GridPointSet(xs, ys);
+        report("GridPointSet build", System.nanoTime() - start, 1);
+        int[] gridAnswers = time("GridPointSet nearest", grid, queryXs, queryYs);
+
+        List<Point> points = new ArrayList<>(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            points.add(new Point(xs[i], ys[i]));
+        }
+        start = System.nanoTime();
+        WeirdPointSet weird = new WeirdPointSet(points);
+        report("WeirdPointSet build", System.nanoTime() - start, 1);
+        Point[] weirdAnswers = timePoints("WeirdPointSet nearest", weird, queryXs, queryYs);
+
+        int disagreements = 0;
+        for (int i = 0; i < queries; i++) {
+            Point goal = new Point(queryXs[i], queryYs[i]);
+            int answer = treeAnswers[i];
+            double best = Point.distance(new Point(xs[answer], ys[answer]), goal);
+            if (treeAnswers[i] != gridAnswers[i]
+                    || Point.distance(weirdAnswers[i], goal) != best) {
+                disagreements += 1;
+            }
+        }
+        System.out.printf("  disagreements: %d%n", disagreements);
+    }
+
+    /** Times QUERIES calls to closest on GRAPH against one call to closestBatch. */
+    private static void batch(AugmentedStreetMapGraph graph, int queries) {
+        Random random = new Random(SEED);
+        double[] lons = new double[queries];
+        double[] lats = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            lons[i] = Constants.ROOT_ULLON + random.nextDouble()
+                    * (Constants.ROOT_LRLON - Constants.ROOT_ULLON);
+            lats[i] = Constants.ROOT_LRLAT + random.nextDouble()
+                    * (Constants.ROOT_ULLAT - Constants.ROOT_LRLAT);
+        }
+        long[] single = new long[queries];
+        long[] batch = new long[queries];
+        long singleNanos = 0;
+        long batchNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                single[i] = graph.closest(lons[i], lats[i]);
+            }
+            singleNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            graph.closestBatch(lons, lats, batch);
+            batchNanos = System.nanoTime() - start;
+        }
+        System.out.printf("  %-22s %,14.0f points/s%n", "closest", queries / (singleNanos / 1e9));
+        System.out.printf("  %-22s %,14.0f points/s%n", "closestBatch",
+                queries / (batchNanos / 1e9));
+        int disagreements = 0;
+        for (int i = 0; i < queries; i++) {
+            if (single[i] != batch[i]) {
+                disagreements += 1;
+            }
+        }
+        System.out.printf("  disagreements: %d%n", disagreements);
+    }
+
+    /** Returns the input indices INDEX finds for the queries, printing how long it took. */
+    private static int[] time(String label, IndexedPointSet index, double[] xs, double[] ys) {
+        int[] answers = new int[xs.length];
+        long start = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (int i = 0; i < xs.length; i++) {
+                answers[i] = index.nearestIndex(xs[i], ys[i]);
+            }
+        }
+        report(label, System.nanoTime() - start, xs.length);
+        return answers;
+    }
+
+    /** Returns the points POINTS finds for the queries, printing how long it took. */
+    private static Point[] timePoints(String label, PointSet points, double[] xs, double[] ys) {
+        Point[] answers = new Point[xs.length];
+        long start = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (int i = 0; i < xs.length; i++) {
+                answers[i] = points.nearest(xs[i], ys[i]);
+            }
+        }
+        report(label, System.nanoTime() - start, xs.length);
+        return answers;
+    }
+
+    /** Prints the time NANOS that OPERATIONS took, in total and per operation. */
+    private static void report(String label, long nanos, int operations) {
+        if (operations == 1) {
+            System.out.printf("  %-22s %10.1f ms%n", label, nanos / 1e6);
+        } else {
+            System.out.printf("  %-22s %10.1f ms  %8.0f ns/query%n", label, nanos / 1e6,
+                    (double) nanos / operations);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package bearmaps.proj2d;
 
-import bearmaps.proj2c.WeightedEdge;
-import bearmaps.proj2c.WeirdSolver;
+import bearmaps.proj2c.AStarSolver;
+import bearmaps.proj2c.BidirectionalAStarSolver;
+import bearmaps.proj2c.EdgeSnap;
+import bearmaps.proj2c.ShortestPathsSolver;
+import bearmaps.proj2c.ch.CHSolver;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -16,6 +19,73 @@ import java.util.regex.Pattern;
  */
 public class Router {
 
+    /** Seconds a route search may run for when the caller doesn't specify a deadline. */
+    public static final double DEFAULT_TIMEOUT = 20;
+
+    /** The search algorithms a route can be computed with. */
+    public enum Mode {
+        /** A single A* search forward from the start. */
+        ASTAR("astar"),
+        /** Two A* searches, forward from the start and backward from the goal. */
+        BIDIRECTIONAL("bidirectional"),
+        /** A query on the graph's precomputed contraction hierarchy. */
+        CONTRACTION_HIERARCHY("ch");
+
+        /** The short name of the mode, as used in requests. */
+        private final String shortName;
+
+        Mode(String shortName) {
+            this.shortName = shortName;
+        }
+
+        /**
+         * Returns the mode with the given case-insensitive name, or null if there is none.
+         * @param name The short or full name of the mode, e.g. "astar" or "ch".
+         */
+        public static Mode fromString(String name) {
+            for (Mode mode : values()) {
+                if (mode.shortName.equalsIgnoreCase(name) || mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** How the start and destination of a route are placed on the graph. */
+    public enum Snapping {
+        /** At the vertex nearest to each location. */
+        NODE("node"),
+        /**
+         * At the point of the road nearest to each location, so that the route can set off
+         * along whichever way of that road is better. Only ASTAR searches start and end
+         * on the road itself; the other modes use the end of the road nearer the point.
+         */
+        EDGE("edge");
+
+        /** The short name of the snapping, as used in requests. */
+        private final String shortName;
+
+        Snapping(String shortName) {
+            this.shortName = shortName;
+        }
+
+        /**
+         * Returns the snapping with the given case-insensitive name, or null if there is
+         * none.
+         * @param name The short or full name of the snapping, e.g. "node" or "edge".
+         */
+        public static Snapping fromString(String name) {
+            for (Snapping snapping : values()) {
+                if (snapping.shortName.equalsIgnoreCase(name)
+                        || snapping.name().equalsIgnoreCase(name)) {
+                    return snapping;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Overloaded method for shortestPath that has flexibility to specify a solver
      * and returns a List of longs representing the shortest path from the node
@@ -29,9 +99,83 @@ public class Router {
      */
     public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Same as shortestPath above, but gives up after TIMEOUT seconds.
+     * @param timeout The deadline for the search, in seconds.
+     * @return A list of node id's in the order visited on the shortest path, or an
+     * empty list if there is no path or the search timed out.
+     */
+    public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, double timeout) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Mode.ASTAR, timeout);
+    }
+
+    /**
+     * Same as shortestPath above, but computes the route with the given search MODE.
+     * @param mode The search algorithm to use.
+     * @param timeout The deadline for the search, in seconds.
+     * @return A list of node id's in the order visited on the shortest path, or an
+     * empty list if there is no path or the search timed out.
+     */
+    public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, Mode mode,
+                                          double timeout) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, mode, Snapping.NODE, timeout);
+    }
+
+    /**
+     * Same as shortestPath above, but places the start and destination on the graph with
+     * the given SNAPPING. With Snapping.EDGE the route lists the vertices between the
+     * snapped points, or just the end of the start's road nearer to it if both points lie
+     * on the same stretch of road.
+     * @param mode The search algorithm to use.
+     * @param snapping How to place the locations on the graph.
+     * @param timeout The deadline for the search, in seconds.
+     * @return A list of node id's in the order visited on the shortest path, or an
+     * empty list if there is no path or the search timed out.
+     */
+    public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, Mode mode,
+                                          Snapping snapping, double timeout) {
+        if (snapping == Snapping.EDGE) {
+            EdgeSnap start = g.snap(stlon, stlat);
+            EdgeSnap end = g.snap(destlon, destlat);
+            if (start != null && end != null) {
+                if (mode == Mode.ASTAR) {
+                    return new AStarSolver(g, start, end, timeout).solution();
+                }
+                return solve(g, g.idAt(start.nearerVertex()), g.idAt(end.nearerVertex()), mode,
+                        timeout).solution();
+            }
+        }
         long src = g.closest(stlon, stlat);
         long dest = g.closest(destlon, destlat);
-        return new WeirdSolver<>(g, src, dest, 20).solution();
+        return solve(g, src, dest, mode, timeout).solution();
+    }
+
+    /**
+     * Runs a search between two vertices of the graph.
+     * @param g The graph to use.
+     * @param src The id of the start vertex.
+     * @param dest The id of the goal vertex.
+     * @param mode The search algorithm to use.
+     * @param timeout The deadline for the search, in seconds.
+     * @return The finished solver, which also reports how much work the search did.
+     */
+    public static ShortestPathsSolver<Long> solve(AugmentedStreetMapGraph g, long src, long dest,
+                                                  Mode mode, double timeout) {
+        switch (mode) {
+            case BIDIRECTIONAL:
+                return new BidirectionalAStarSolver(g, src, dest, timeout);
+            case CONTRACTION_HIERARCHY:
+                return new CHSolver(g.contractionHierarchy(), g, src, dest, timeout);
+            case ASTAR:
+            default:
+                return new AStarSolver(g, src, dest, timeout);
+        }
     }
 
     /**
@@ -57,18 +201,14 @@ public class Router {
 
         NavigationDirection nd = new NavigationDirection();
         nd.direction = NavigationDirection.START;
-        nd.distance = -1.0;  // as a flag, meaning the WeightedEdge is not found.
 
-        for (WeightedEdge<Long> we : g.neighbors(pre)) {
-            if (we.to() == cur) {
-                nd.way = (we.getName().isEmpty()) ? NavigationDirection.UNKNOWN_ROAD : we.getName();
-                nd.distance = we.weight();
-                break;
-            }
-        }
-        if (nd.distance == -1.0) {
+        int e = g.findEdge(g.indexOf(pre), g.indexOf(cur));
+        if (e < 0) {
             throw new IllegalArgumentException("Invalid route.");
         }
+        String wayName = g.wayName(g.edgeWayId(e));
+        nd.way = (wayName.isEmpty()) ? NavigationDirection.UNKNOWN_ROAD : wayName;
+        nd.distance = g.edgeWeight(e);
 
         // Only two points in route
         if (!routeIter.hasNext()) {
@@ -79,29 +219,25 @@ public class Router {
         while (routeIter.hasNext()) {
             long next = routeIter.next();
 
-            WeightedEdge<Long> we = null;  // from cur to next
-            for (WeightedEdge<Long> weightedEdge : g.neighbors(cur)) {
-                if (weightedEdge.to() == next) {
-                    we = weightedEdge;
-                    break;
-                }
-            }
-            if (we == null) {
+            e = g.findEdge(g.indexOf(cur), g.indexOf(next));  // from cur to next
+            if (e < 0) {
                 throw new IllegalArgumentException("Invalid route.");
             }
+            wayName = g.wayName(g.edgeWayId(e));
+            double weight = g.edgeWeight(e);
 
-            if ((we.getName().isEmpty() && !nd.way.equals(NavigationDirection.UNKNOWN_ROAD))
-                    || (!we.getName().isEmpty() && !we.getName().equals(nd.way))) {
+            if ((wayName.isEmpty() && !nd.way.equals(NavigationDirection.UNKNOWN_ROAD))
+                    || (!wayName.isEmpty() && !wayName.equals(nd.way))) {
                 results.add(nd);
 
                 nd = new NavigationDirection();
                 nd.direction = NavigationDirection.getDirection(
                         NavigationDirection.bearing(g.lon(pre), g.lon(cur), g.lat(pre), g.lat(cur)),
                         NavigationDirection.bearing(g.lon(cur), g.lon(next), g.lat(cur), g.lat(next)));
-                nd.way = (we.getName().isEmpty()) ? NavigationDirection.UNKNOWN_ROAD : we.getName();
-                nd.distance = we.weight();
+                nd.way = (wayName.isEmpty()) ? NavigationDirection.UNKNOWN_ROAD : wayName;
+                nd.distance = weight;
             } else {
-                nd.distance += we.weight();
+                nd.distance += weight;
             }
 
             pre = cur;
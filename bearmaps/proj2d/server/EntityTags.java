@@ -0,0 +1,60 @@
+package bearmaps.proj2d.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HTTP entity tags, for conditional requests: a response is sent with the ETag of its
+ * contents, and a client that has it cached sends the tag back in If-None-Match, so that
+ * the server can answer 304 Not Modified without building the response again.
+ *
+ * A tag is a digest of everything the response depends on, such as the tiles of a raster
+ * and the version of the data they show, so it is stable across requests and servers and
+ * changes whenever the response would.
+ */
+public final class EntityTags {
+    private EntityTags() {
+    }
+
+    /** Returns the quoted strong entity tag of a response that depends only on PARTS. */
+    public static String of(Object... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Object part : parts) {
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder tag = new StringBuilder("\"");
+        for (int i = 0; i < 16; i++) {
+            tag.append(Character.forDigit(hash[i] >> 4 & 0xf, 16));
+            tag.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return tag.append('"').toString();
+    }
+
+    /**
+     * Returns whether the If-None-Match header IF_NONE_MATCH lists ETAG or is "*". Weak tags
+     * match their strong counterparts, as If-None-Match compares weakly.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,252 @@
+package bearmaps.proj2d.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes RGB images as PNG, compressing horizontal stripes of the image in parallel, in
+ * the manner of pigz. See <a href="https://www.w3.org/TR/PNG/">the PNG specification</a>.
+ *
+ * Rows are not filtered (filter type None), as with ImageIO: map rasters are flat colors
+ * and hard edges, which deflate finds as long repeats, and the usual adaptive filter
+ * heuristic turns those into noise and makes the images larger.
+ *
+ * Each stripe is laid out and deflated on its own task. A stripe is primed with the last
+ * 32 KB of the stripe above as its dictionary, so matches can still reach across the seam,
+ * and ends with a sync flush, so the stripes' outputs concatenate into one deflate stream;
+ * the last stripe finishes the stream. Every stripe becomes one IDAT chunk, and the zlib
+ * header and the Adler-32 of the whole image, combined from those of the stripes, are
+ * added around them.
+ */
+public final class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    /** Stripes are at least this many rows, to keep per-stripe overhead small. */
+    private static final int MIN_STRIPE_ROWS = 32;
+    /** The deflate window, and so the dictionary one stripe hands the next. */
+    private static final int WINDOW = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final ExecutorService pool;
+    private final int level;
+    private final int stripes;
+
+    /**
+     * Creates an encoder that deflates at LEVEL, splitting images into up to STRIPES
+     * stripes that are compressed on POOL.
+     */
+    public PngEncoder(ExecutorService pool, int level, int stripes) {
+        this.pool = pool;
+        this.level = level;
+        this.stripes = Math.max(1, stripes);
+    }
+
+    /** The filtered bytes of a stripe, and then their compressed form. */
+    private static class Stripe {
+        private byte[] filtered;
+        private byte[] compressed;
+        private int compressedLength;
+        private long adler;
+    }
+
+    /**
+     * Writes IMAGE to OUT as PNG.
+     * @param image An image of type TYPE_INT_RGB.
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("Only TYPE_INT_RGB images can be encoded.");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int rowsPerStripe = Math.max(MIN_STRIPE_ROWS, (height + stripes - 1) / stripes);
+        int count = (height + rowsPerStripe - 1) / rowsPerStripe;
+
+        /* Lay out the stripes in parallel, then deflate them in parallel; deflating needs
+         * the end of the stripe above as its dictionary. */
+        Stripe[] parts = new Stripe[count];
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) {
+            int stripe = s;
+            tasks.add(() -> {
+                int first = stripe * rowsPerStripe;
+                int last = Math.min(height, first + rowsPerStripe);
+                parts[stripe] = new Stripe();
+                parts[stripe].filtered = filter(pixels, width, first, last);
+                return null;
+            });
+        }
+        run(tasks);
+        tasks.clear();
+        for (int s = 0; s < count; s++) {
+            int stripe = s;
+            tasks.add(() -> {
+                deflate(parts[stripe], stripe == 0 ? null : parts[stripe - 1].filtered,
+                        stripe == count - 1);
+                return null;
+            });
+        }
+        run(tasks);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.write(new byte[]{8, 2, 0, 0, 0}); // 8-bit RGB, deflate, filtered, no interlace
+        writeChunk(data, "IHDR", header.toByteArray(), 0, header.size(), null, null);
+
+        long adler = 1;
+        for (int s = 0; s < count; s++) {
+            Stripe part = parts[s];
+            adler = combineAdler(adler, part.adler, part.filtered.length);
+            byte[] prefix = s == 0 ? ZLIB_HEADER : null;
+            byte[] suffix = s == count - 1 ? new byte[]{(byte) (adler >>> 24),
+                (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler} : null;
+            writeChunk(data, "IDAT", part.compressed, 0, part.compressedLength, prefix, suffix);
+        }
+        writeChunk(data, "IEND", new byte[0], 0, 0, null, null);
+        data.flush();
+    }
+
+    private void run(List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> task : pool.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding PNG.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot encode PNG.", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the scanlines of rows FIRST to LAST of PIXELS, WIDTH pixels wide, each with
+     * filter type None.
+     */
+    private static byte[] filter(int[] pixels, int width, int first, int last) {
+        int stride = width * BYTES_PER_PIXEL + 1;
+        byte[] filtered = new byte[(last - first) * stride];
+        for (int y = first; y < last; y++) {
+            int j = (y - first) * stride + 1;
+            for (int i = y * width, end = i + width; i < end; i++) {
+                int rgb = pixels[i];
+                filtered[j++] = (byte) (rgb >> 16);
+                filtered[j++] = (byte) (rgb >> 8);
+                filtered[j++] = (byte) rgb;
+            }
+        }
+        return filtered;
+    }
+
+    /** Deflates the filtered bytes of PART, primed with the end of ABOVE if there is one. */
+    private void deflate(Stripe part, byte[] above, boolean last) {
+        Adler32 adler = new Adler32();
+        adler.update(part.filtered, 0, part.filtered.length);
+        part.adler = adler.getValue();
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (above != null) {
+                int length = Math.min(WINDOW, above.length);
+                deflater.setDictionary(above, above.length - length, length);
+            }
+            deflater.setInput(part.filtered);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] out = new byte[part.filtered.length / 2 + 64];
+            int length = 0;
+            while (true) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int space = out.length - length;
+                length += deflater.deflate(out, length, space,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                /* A flush is complete once it leaves space in the buffer. */
+                if (last ? deflater.finished() : length < out.length) {
+                    break;
+                }
+            }
+            part.compressed = out;
+            part.compressedLength = length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The zlib header of a deflate stream with a 32 KB window. Its level bits are only a
+     * hint to recompressors, so they are left at the default.
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    /**
+     * Returns the Adler-32 of the concatenation of two byte sequences, given the checksums
+     * ADLER1 and ADLER2 of each and the length LENGTH2 of the second, as in zlib's
+     * adler32_combine.
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /** Writes a chunk of TYPE whose data is PREFIX, DATA[OFFSET, OFFSET + LENGTH), SUFFIX. */
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset,
+                                   int length, byte[] prefix, byte[] suffix) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        int suffixLength = suffix == null ? 0 : suffix.length;
+        out.writeInt(prefixLength + length + suffixLength);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        out.write(typeBytes);
+        if (prefix != null) {
+            crc.update(prefix);
+            out.write(prefix);
+        }
+        crc.update(data, offset, length);
+        out.write(data, offset, length);
+        if (suffix != null) {
+            crc.update(suffix);
+            out.write(suffix);
+        }
+        out.writeInt((int) crc.getValue());
+    }
+}
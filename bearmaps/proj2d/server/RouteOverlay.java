@@ -0,0 +1,168 @@
+package bearmaps.proj2d.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns a route into the polylines to draw over one raster, in the raster's pixels, so the
+ * route can be drawn by the client on top of base map images that do not depend on it.
+ *
+ * The route is clipped to the raster, widened by a margin so that strokes crossing its edge
+ * are not cut short; every stretch of the route inside becomes one polyline. Each polyline
+ * is then simplified with the Douglas-Peucker algorithm, dropping vertices that move the
+ * line by less than a tolerance, and rounded to whole pixels.
+ */
+public final class RouteOverlay {
+    private RouteOverlay() {
+    }
+
+    /**
+     * Returns the polylines of the route through the points X, Y, in pixels, that lie within
+     * a WIDTH by HEIGHT raster widened by MARGIN on every side, simplified to within
+     * TOLERANCE pixels. Each polyline is flattened as x0, y0, x1, y1, ... and has at least
+     * two points.
+     */
+    public static List<int[]> polylines(double[] x, double[] y, double width, double height,
+                                        double margin, double tolerance) {
+        List<int[]> polylines = new ArrayList<>();
+        double[] piece = new double[16];
+        int length = 0;
+        boolean open = false;
+        double[] clipped = new double[4];
+        for (int i = 0; i + 1 < x.length; i++) {
+            double t1 = clip(x[i], y[i], x[i + 1], y[i + 1], -margin, -margin,
+                    width + margin, height + margin, clipped);
+            if (Double.isNaN(t1)) {
+                continue;
+            }
+            if (!open) {
+                length = 0;
+                piece[length++] = clipped[0];
+                piece[length++] = clipped[1];
+            }
+            if (length + 2 > piece.length) {
+                piece = Arrays.copyOf(piece, piece.length * 2);
+            }
+            piece[length++] = clipped[2];
+            piece[length++] = clipped[3];
+            /* A stretch ends where the route leaves the raster. */
+            open = t1 == 1;
+            if (!open) {
+                add(polylines, piece, length, tolerance);
+            }
+        }
+        if (open) {
+            add(polylines, piece, length, tolerance);
+        }
+        return polylines;
+    }
+
+    /**
+     * Clips the segment from (X0, Y0) to (X1, Y1) to the box from (MIN_X, MIN_Y) to
+     * (MAX_X, MAX_Y) with the Liang-Barsky algorithm, putting the ends of the part inside in
+     * OUT. Returns the fraction of the segment at which its part inside ends, or NaN if no
+     * part of it is inside.
+     */
+    private static double clip(double x0, double y0, double x1, double y1, double minX,
+                               double minY, double maxX, double maxY, double[] out) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {x0 - minX, maxX - x0, y0 - minY, maxY - y0};
+        double t0 = 0;
+        double t1 = 1;
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return Double.NaN;
+                }
+            } else {
+                double t = q[k] / p[k];
+                if (p[k] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        if (t0 > t1) {
+            return Double.NaN;
+        }
+        out[0] = t0 == 0 ? x0 : x0 + t0 * dx;
+        out[1] = t0 == 0 ? y0 : y0 + t0 * dy;
+        out[2] = t1 == 1 ? x1 : x0 + t1 * dx;
+        out[3] = t1 == 1 ? y1 : y0 + t1 * dy;
+        return t1;
+    }
+
+    /** Simplifies the first LENGTH coordinates of PIECE and adds them to POLYLINES. */
+    private static void add(List<int[]> polylines, double[] piece, int length,
+                            double tolerance) {
+        int points = length / 2;
+        boolean[] keep = new boolean[points];
+        keep[0] = true;
+        keep[points - 1] = true;
+        /* Douglas-Peucker, with a stack of ranges rather than recursion, as routes can be
+         * thousands of vertices long. */
+        int[] stack = new int[2 * points];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = points - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            int farthest = -1;
+            double max = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distance(piece, i, first, last);
+                if (distance > max) {
+                    max = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int[] polyline = new int[length];
+        int size = 0;
+        for (int i = 0; i < points; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            int px = (int) Math.round(piece[2 * i]);
+            int py = (int) Math.round(piece[2 * i + 1]);
+            if (size > 0 && polyline[size - 2] == px && polyline[size - 1] == py) {
+                continue;
+            }
+            polyline[size++] = px;
+            polyline[size++] = py;
+        }
+        if (size == 2) {
+            /* The whole stretch rounds to one pixel; keep it as a dot. */
+            polyline[size++] = polyline[0];
+            polyline[size++] = polyline[1];
+        }
+        polylines.add(Arrays.copyOf(polyline, size));
+    }
+
+    /** Returns the distance of point I of PIECE from the segment from point A to point B. */
+    private static double distance(double[] piece, int i, int a, int b) {
+        double px = piece[2 * i];
+        double py = piece[2 * i + 1];
+        double ax = piece[2 * a];
+        double ay = piece[2 * a + 1];
+        double dx = piece[2 * b] - ax;
+        double dy = piece[2 * b + 1] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+    }
+}
@@ -0,0 +1,151 @@
+package bearmaps.proj2d.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The current route of each client session, keyed by session token. A route is an
+ * immutable array of vertex ids: a new route replaces the old array rather than changing
+ * it, so a reader that fetched a route can keep using it while the session moves on, and
+ * neither readers nor writers ever lock. Every route put gets a new version, so caches
+ * of what was drawn from a route can key on the version rather than on the vertices.
+ *
+ * The store is bounded. Sessions that have not been used for maxIdleMillis are dropped,
+ * and if there are still more than capacity sessions, the least recently used are dropped
+ * until a tenth of the capacity is free again. Sweeps happen as part of put, only every
+ * half idle period or when the store is over capacity, so their cost is spread over many
+ * requests.
+ */
+public final class RouteStore {
+    /** The route of a session that has none. */
+    public static final long[] EMPTY = new long[0];
+
+    /** A route and its version. */
+    public static final class Route {
+        /** The route of a session that has none, the only route of version 0. */
+        public static final Route NONE = new Route(EMPTY, 0, 0);
+
+        private final long[] vertices;
+        private final long version;
+        private volatile long lastUsed;
+
+        Route(long[] vertices, long version, long lastUsed) {
+            this.vertices = vertices;
+            this.version = version;
+            this.lastUsed = lastUsed;
+        }
+
+        /** Returns the vertex ids of the route, which must not be changed. */
+        public long[] vertices() {
+            return vertices;
+        }
+
+        /** Returns the version of the route, unique to the put that stored it. */
+        public long version() {
+            return version;
+        }
+    }
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final int capacity;
+    private final long maxIdleMillis;
+    private final LongSupplier clock;
+    private volatile long lastSweep;
+
+    /**
+     * Creates a store of at most CAPACITY sessions, which drops sessions idle for more than
+     * MAX_IDLE_MILLIS.
+     */
+    public RouteStore(int capacity, long maxIdleMillis) {
+        this(capacity, maxIdleMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a store of at most CAPACITY sessions, which drops sessions idle for more than
+     * MAX_IDLE_MILLIS as measured by CLOCK, in milliseconds.
+     */
+    public RouteStore(int capacity, long maxIdleMillis, LongSupplier clock) {
+        this.capacity = capacity;
+        this.maxIdleMillis = maxIdleMillis;
+        this.clock = clock;
+        this.lastSweep = clock.getAsLong();
+    }
+
+    /** Returns the route of SESSION, or EMPTY if it has none. The array must not be changed. */
+    public long[] get(String session) {
+        return route(session).vertices;
+    }
+
+    /** Returns the route of SESSION with its version, or Route.NONE if it has none. */
+    public Route route(String session) {
+        if (session == null) {
+            return Route.NONE;
+        }
+        Route route = routes.get(session);
+        if (route == null) {
+            return Route.NONE;
+        }
+        long now = clock.getAsLong();
+        if (now - route.lastUsed > maxIdleMillis) {
+            routes.remove(session, route);
+            return Route.NONE;
+        }
+        route.lastUsed = now;
+        return route;
+    }
+
+    /** Makes ROUTE the route of SESSION. The store keeps ROUTE, which must not be changed. */
+    public void put(String session, long[] route) {
+        long now = clock.getAsLong();
+        routes.put(session, new Route(route, versions.incrementAndGet(), now));
+        if (routes.size() > capacity || now - lastSweep > maxIdleMillis / 2) {
+            sweep(now);
+        }
+    }
+
+    /** Forgets the route of SESSION. */
+    public void clear(String session) {
+        if (session != null) {
+            routes.remove(session);
+        }
+    }
+
+    /** Returns the number of sessions with a route. */
+    public int size() {
+        return routes.size();
+    }
+
+    /** Drops idle sessions, then the least recently used ones while over capacity. */
+    private void sweep(long now) {
+        lastSweep = now;
+        routes.values().removeIf(entry -> now - entry.lastUsed > maxIdleMillis);
+        if (routes.size() <= capacity) {
+            return;
+        }
+        /* Trim to below capacity, so that the next few new sessions do not sweep again. */
+        int excess = routes.size() - capacity + capacity / 10;
+        /* Sort on a copy of the times, which other threads may update meanwhile. */
+        List<String> sessions = new ArrayList<>();
+        List<Route> entries = new ArrayList<>();
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            sessions.add(e.getKey());
+            entries.add(e.getValue());
+        }
+        long[] lastUsed = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            lastUsed[i] = entries.get(i).lastUsed;
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+        for (int i = 0; i < excess && i < order.length; i++) {
+            routes.remove(sessions.get(order[i]), entries.get(order[i]));
+        }
+    }
+}
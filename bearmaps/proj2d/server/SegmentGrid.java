@@ -0,0 +1,245 @@
+package bearmaps.proj2d.server;
+
+import bearmaps.proj2ab.GridCells;
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the road segments of a street graph, for finding the segments that
+ * cross a box. A segment is one pair of edges between two vertices, one each way, and is
+ * identified by the forward edge from its lower to its higher vertex index.
+ *
+ * The grid has about SEGMENTS_PER_CELL segments per cell, and a segment is listed in every
+ * cell its bounding box overlaps. The cells are stored in compressed sparse row form, like
+ * the graph: the segments of cell c are cellSegments[cellStarts[c]] up to
+ * cellSegments[cellStarts[c + 1]]. The grid is immutable once built and safe to share.
+ *
+ * The grid also finds the segment nearest to a point, searching rings of cells outwards
+ * from the point's cell until no farther cell could hold a nearer segment. Distances are
+ * measured in a plane tangent at the point, with longitudes scaled by the cosine of its
+ * latitude, which at city scale orders segments as great-circle distances would.
+ */
+public final class SegmentGrid {
+    private static final int SEGMENTS_PER_CELL = 8;
+
+    private final StreetMapGraph graph;
+    /** The edge and the source vertex of each segment. */
+    private final int[] edges;
+    private final int[] sources;
+
+    private final GridCells cells;
+    private final int[] cellStarts;
+    private final int[] cellSegments;
+
+    /** Indexes the segments of GRAPH. */
+    public SegmentGrid(StreetMapGraph graph) {
+        this.graph = graph;
+        int count = 0;
+        int[] edges = new int[graph.edgeCount()];
+        int[] sources = new int[graph.edgeCount()];
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                if (graph.edgeTarget(e) > v) {
+                    edges[count] = e;
+                    sources[count] = v;
+                    count += 1;
+                }
+            }
+            if (graph.outDegree(v) > 0) {
+                minLon = Math.min(minLon, graph.lonAt(v));
+                minLat = Math.min(minLat, graph.latAt(v));
+                maxLon = Math.max(maxLon, graph.lonAt(v));
+                maxLat = Math.max(maxLat, graph.latAt(v));
+            }
+        }
+        this.edges = Arrays.copyOf(edges, count);
+        this.sources = Arrays.copyOf(sources, count);
+
+        int side = (int) Math.max(1, Math.ceil(Math.sqrt((double) count / SEGMENTS_PER_CELL)));
+        this.cells = count == 0
+                ? new GridCells(0, 0, 0, 0, side, side)
+                : new GridCells(minLon, minLat, maxLon, maxLat, side, side);
+
+        /* Count the segments of each cell, then fill the cells in a second pass. */
+        int cells = this.cells.size();
+        int[] starts = new int[cells + 1];
+        for (int s = 0; s < count; s++) {
+            forEachCell(s, c -> starts[c + 1] += 1);
+        }
+        for (int c = 0; c < cells; c++) {
+            starts[c + 1] += starts[c];
+        }
+        int[] next = Arrays.copyOf(starts, cells);
+        int[] segments = new int[starts[cells]];
+        for (int s = 0; s < count; s++) {
+            int segment = s;
+            forEachCell(s, c -> segments[next[c]++] = segment);
+        }
+        this.cellStarts = starts;
+        this.cellSegments = segments;
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    /** Calls VISITOR with every cell the bounding box of segment S overlaps. */
+    private void forEachCell(int s, CellVisitor visitor) {
+        int v = sources[s];
+        int w = target(s);
+        int minColumn = cells.column(Math.min(graph.lonAt(v), graph.lonAt(w)));
+        int maxColumn = cells.column(Math.max(graph.lonAt(v), graph.lonAt(w)));
+        int minRow = cells.row(Math.min(graph.latAt(v), graph.latAt(w)));
+        int maxRow = cells.row(Math.max(graph.latAt(v), graph.latAt(w)));
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                visitor.visit(cells.cell(c, r));
+            }
+        }
+    }
+
+    /** Returns the number of segments. */
+    public int size() {
+        return edges.length;
+    }
+
+    /** Returns the forward edge of segment S, for edgeWayId and edgeHighway. */
+    public int edge(int s) {
+        return edges[s];
+    }
+
+    /** Returns the index of the lower vertex of segment S. */
+    public int source(int s) {
+        return sources[s];
+    }
+
+    /** Returns the index of the higher vertex of segment S. */
+    public int target(int s) {
+        return graph.edgeTarget(edges[s]);
+    }
+
+    /**
+     * Returns the segments whose bounding boxes overlap the box from MIN_LON, MIN_LAT to
+     * MAX_LON, MAX_LAT, in increasing order.
+     */
+    public int[] segments(double minLon, double minLat, double maxLon, double maxLat) {
+        if (edges.length == 0 || !(minLon <= maxLon && minLat <= maxLat)) {
+            return new int[0];
+        }
+        int minColumn = cells.column(minLon);
+        int maxColumn = cells.column(maxLon);
+        int minRow = cells.row(minLat);
+        int maxRow = cells.row(maxLat);
+        int count = 0;
+        int[] found = new int[16];
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                int cell = cells.cell(c, r);
+                for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                    int s = cellSegments[i];
+                    int v = sources[s];
+                    int w = target(s);
+                    if (Math.max(graph.lonAt(v), graph.lonAt(w)) < minLon
+                            || Math.min(graph.lonAt(v), graph.lonAt(w)) > maxLon
+                            || Math.max(graph.latAt(v), graph.latAt(w)) < minLat
+                            || Math.min(graph.latAt(v), graph.latAt(w)) > maxLat) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = s;
+                }
+            }
+        }
+        /* A segment is listed in every cell it overlaps; keep one of each. */
+        Arrays.sort(found, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || found[i] != found[distinct - 1]) {
+                found[distinct++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, distinct);
+    }
+
+    /**
+     * Returns the segment nearest to LON, LAT, the lowest of any at the same distance, or
+     * -1 if there are no segments.
+     */
+    public int nearest(double lon, double lat) {
+        if (edges.length == 0) {
+            return -1;
+        }
+        double scale = Math.cos(Math.toRadians(lat));
+        int column = cells.column(lon);
+        int row = cells.row(lat);
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int ring = 0; ; ring++) {
+            if (ring > 0) {
+                /* Cells outside the rings searched lie beyond one of the sides of their
+                 * box, so the nearest of those sides bounds how near such a segment is. */
+                double xGap = cells.xGap(ring, column, lon);
+                double yGap = cells.yGap(ring, row, lat);
+                double bound = Math.min(xGap == Double.POSITIVE_INFINITY
+                        ? xGap : xGap * scale, yGap);
+                if (bound == Double.POSITIVE_INFINITY || bound * bound > bestDistance) {
+                    return best;
+                }
+            }
+            for (int r = cells.firstRow(row, ring); r <= cells.lastRow(row, ring); r++) {
+                for (int c = cells.firstColumn(column, row, ring, r);
+                     c <= cells.lastColumn(column, ring);
+                     c = cells.nextColumn(column, row, ring, r, c)) {
+                    int cell = cells.cell(c, r);
+                    for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                        int s = cellSegments[i];
+                        double distance = squaredDistance(s, lon, lat, scale);
+                        if (distance < bestDistance || distance == bestDistance && s < best) {
+                            best = s;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how far along segment S, from 0 at its source to 1 at its target, the point
+     * of it nearest to LON, LAT is.
+     */
+    public double project(int s, double lon, double lat) {
+        return fraction(s, lon, lat, Math.cos(Math.toRadians(lat)));
+    }
+
+    private double fraction(int s, double lon, double lat, double scale) {
+        int v = sources[s];
+        int w = target(s);
+        double ax = (graph.lonAt(v) - lon) * scale;
+        double ay = graph.latAt(v) - lat;
+        double dx = (graph.lonAt(w) - lon) * scale - ax;
+        double dy = graph.latAt(w) - lat - ay;
+        double length = dx * dx + dy * dy;
+        if (length == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, -(ax * dx + ay * dy) / length));
+    }
+
+    /** Returns the squared distance from LON, LAT to segment S, in scaled degrees. */
+    private double squaredDistance(int s, double lon, double lat, double scale) {
+        int v = sources[s];
+        int w = target(s);
+        double t = fraction(s, lon, lat, scale);
+        double x = ((1 - t) * graph.lonAt(v) + t * graph.lonAt(w) - lon) * scale;
+        double y = (1 - t) * graph.latAt(v) + t * graph.latAt(w) - lat;
+        return x * x + y * y;
+    }
+}
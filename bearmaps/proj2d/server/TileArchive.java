@@ -0,0 +1,327 @@
+package bearmaps.proj2d.server;
+
+import bearmaps.proj2d.utils.Constants;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Every tile of a pyramid, down to its maximum depth, packed into one file, so that the
+ * server can read tiles from a memory mapping instead of opening a file per tile.
+ *
+ * The file consists of a header, a table with an entry per tile, and the tiles:
+ * <pre>
+ *     int magic, int version, int format, int tileSize, int maxDepth, int 0, long tableCrc
+ *     per tile, by depth, then row, then column: long offset, int length
+ *     tile data, in the order of the table
+ * </pre>
+ * A tile missing from the pyramid has length 0. Tiles are stored either as the PNG bytes
+ * they were made from, which keeps the archive small but leaves a decode per tile, or as
+ * pre-decoded RGB, three bytes a pixel, which is larger but is only copied into an image.
+ *
+ * The table is checked against its CRC32 when the archive is opened; tile data is not, as
+ * that would mean reading the whole archive. The tiles are mapped in regions of up to a
+ * gigabyte, each holding whole tiles, since one mapping cannot exceed two gigabytes.
+ *
+ * Run main to build the archive of Constants.IMG_ROOT.
+ */
+public final class TileArchive {
+    private static final int MAGIC = 0x424d5431; // "BMT1"
+    /** Bump whenever the layout of the file changes. */
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int ENTRY_BYTES = 12;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+
+    /** How tiles are stored. */
+    public enum Format {
+        /** The PNG bytes of the tile, as read from the source. */
+        PNG,
+        /** The RGB pixels of the tile, row by row, transparent pixels drawn over black. */
+        RGB
+    }
+
+    /** Reads the PNG bytes of the tile X, Y at DEPTH, or returns null if there is none. */
+    public interface TileSource {
+        byte[] read(int depth, int x, int y) throws IOException;
+    }
+
+    private final Format format;
+    private final int tileSize;
+    private final int maxDepth;
+    private final long[] offsets;
+    private final int[] lengths;
+    /** The region each tile is in, and the file offset each region starts at. */
+    private final int[] regionOf;
+    private final long[] regionStarts;
+    private final ByteBuffer[] regions;
+
+    private TileArchive(Format format, int tileSize, int maxDepth, long[] offsets,
+                        int[] lengths, int[] regionOf, long[] regionStarts,
+                        ByteBuffer[] regions) {
+        this.format = format;
+        this.tileSize = tileSize;
+        this.maxDepth = maxDepth;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.regionOf = regionOf;
+        this.regionStarts = regionStarts;
+        this.regions = regions;
+    }
+
+    /** Returns the number of tiles of a pyramid MAX_DEPTH deep. */
+    private static int tileCount(int maxDepth) {
+        return (int) (((1L << 2 * (maxDepth + 1)) - 1) / 3);
+    }
+
+    /** Returns the position in the table of the tile X, Y at DEPTH. */
+    private static int index(int depth, int x, int y) {
+        return tileCount(depth - 1) + (y << depth) + x;
+    }
+
+    /**
+     * Maps the archive at PATH and checks its table.
+     * @throws IOException If the file cannot be read, is not an archive of the current
+     * version, or its table is corrupt.
+     */
+    public static TileArchive open(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, HEADER_BYTES));
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+                    || header.getInt() != VERSION) {
+                throw new IOException("Not a tile archive of the current version.");
+            }
+            int formatOrdinal = header.getInt();
+            int tileSize = header.getInt();
+            int maxDepth = header.getInt();
+            header.getInt();
+            long tableCrc = header.getLong();
+            if (formatOrdinal < 0 || formatOrdinal >= Format.values().length
+                    || maxDepth < 0 || maxDepth > 12) {
+                throw new IOException("Tile archive header is corrupt.");
+            }
+
+            int count = tileCount(maxDepth);
+            long tableBytes = (long) count * ENTRY_BYTES;
+            if (size < HEADER_BYTES + tableBytes) {
+                throw new IOException("Tile archive is truncated.");
+            }
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+                    tableBytes);
+            CRC32 crc = new CRC32();
+            crc.update(table.duplicate());
+            if (crc.getValue() != tableCrc) {
+                throw new IOException("Tile archive table is corrupt.");
+            }
+
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            int[] regionOf = new int[count];
+            List<Long> starts = new ArrayList<>();
+            List<Long> ends = new ArrayList<>();
+            long end = HEADER_BYTES + tableBytes;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+                if (lengths[i] == 0) {
+                    continue;
+                }
+                long tileEnd = offsets[i] + lengths[i];
+                if (offsets[i] < end || lengths[i] < 0 || tileEnd > size) {
+                    throw new IOException("Tile archive is truncated.");
+                }
+                end = tileEnd;
+                /* Start a new region where this tile would make the last one too large. */
+                int last = starts.size() - 1;
+                if (last < 0 || tileEnd - starts.get(last) > MAX_REGION_BYTES) {
+                    starts.add(offsets[i]);
+                    ends.add(tileEnd);
+                } else {
+                    ends.set(last, tileEnd);
+                }
+                regionOf[i] = starts.size() - 1;
+            }
+
+            long[] regionStarts = new long[starts.size()];
+            ByteBuffer[] regions = new ByteBuffer[starts.size()];
+            for (int r = 0; r < regions.length; r++) {
+                regionStarts[r] = starts.get(r);
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, regionStarts[r],
+                        ends.get(r) - regionStarts[r]);
+            }
+            return new TileArchive(Format.values()[formatOrdinal], tileSize, maxDepth, offsets,
+                    lengths, regionOf, regionStarts, regions);
+        }
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public int tileSize() {
+        return tileSize;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /** Returns whether the archive holds the tile X, Y at DEPTH. */
+    public boolean contains(int depth, int x, int y) {
+        return depth >= 0 && depth <= maxDepth && x >= 0 && y >= 0
+                && x < 1 << depth && y < 1 << depth && lengths[index(depth, x, y)] > 0;
+    }
+
+    /**
+     * Returns the tile X, Y at DEPTH as an RGB image, or null if the archive does not hold
+     * it or it cannot be decoded.
+     */
+    public BufferedImage tile(int depth, int x, int y) {
+        if (!contains(depth, x, y)) {
+            return null;
+        }
+        int i = index(depth, x, y);
+        ByteBuffer data = regions[regionOf[i]].duplicate();
+        data.position((int) (offsets[i] - regionStarts[regionOf[i]]));
+        byte[] bytes = new byte[lengths[i]];
+        data.get(bytes);
+
+        if (format == Format.PNG) {
+            try {
+                BufferedImage png = ImageIO.read(new ByteArrayInputStream(bytes));
+                return png == null ? null : toRgb(png, tileSize);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int p = 0, b = 0; p < pixels.length; p++, b += 3) {
+            pixels[p] = (bytes[b] & 0xff) << 16 | (bytes[b + 1] & 0xff) << 8
+                    | (bytes[b + 2] & 0xff);
+        }
+        return image;
+    }
+
+    /** Returns a SIZE by SIZE RGB image of TILE, drawn over black. */
+    private static BufferedImage toRgb(BufferedImage tile, int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        TileCompositor.blit(tile, size, pixels, 0, size);
+        return image;
+    }
+
+    /**
+     * Writes the archive of every tile of SOURCE down to MAX_DEPTH, of TILE_SIZE pixels, to
+     * PATH, creating its directory if needed. The file is written next to PATH and then
+     * moved into place, so a crash never leaves a half-written archive behind.
+     */
+    public static void write(String path, Format format, int tileSize, int maxDepth,
+                             TileSource source) throws IOException {
+        int count = tileCount(maxDepth);
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        long tableBytes = (long) count * ENTRY_BYTES;
+
+        File target = new File(path).getAbsoluteFile();
+        target.getParentFile().mkdirs();
+        File temporary = new File(target.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temporary, "rw")) {
+            out.setLength(0);
+            out.seek(HEADER_BYTES + tableBytes);
+            for (int depth = 0; depth <= maxDepth; depth++) {
+                for (int y = 0; y < 1 << depth; y++) {
+                    for (int x = 0; x < 1 << depth; x++) {
+                        byte[] png = source.read(depth, x, y);
+                        if (png == null) {
+                            continue;
+                        }
+                        byte[] data = format == Format.PNG ? png : rgb(png, tileSize);
+                        if (data == null) {
+                            continue;
+                        }
+                        int i = index(depth, x, y);
+                        offsets[i] = out.getFilePointer();
+                        lengths[i] = data.length;
+                        out.write(data);
+                    }
+                }
+            }
+
+            ByteBuffer table = ByteBuffer.allocate((int) tableBytes);
+            for (int i = 0; i < count; i++) {
+                table.putLong(offsets[i]).putInt(lengths[i]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(table.array());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(format.ordinal()).putInt(tileSize)
+                    .putInt(maxDepth).putInt(0).putLong(crc.getValue());
+            out.seek(0);
+            out.write(header.array());
+            out.write(table.array());
+        }
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Decodes PNG into TILE_SIZE by TILE_SIZE RGB bytes, or returns null if it cannot. */
+    private static byte[] rgb(byte[] png, int tileSize) throws IOException {
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(png));
+        if (tile == null) {
+            return null;
+        }
+        int[] pixels = ((DataBufferInt) toRgb(tile, tileSize).getRaster().getDataBuffer())
+                .getData();
+        byte[] rgb = new byte[pixels.length * 3];
+        for (int p = 0, b = 0; p < pixels.length; p++) {
+            rgb[b++] = (byte) (pixels[p] >> 16);
+            rgb[b++] = (byte) (pixels[p] >> 8);
+            rgb[b++] = (byte) pixels[p];
+        }
+        return rgb;
+    }
+
+    /**
+     * Builds the archive of the tiles in Constants.IMG_ROOT, down to Constants.MAX_DEPTH.
+     * @param args The archive to write, Constants.TILE_ARCHIVE_PATH by default, and the
+     *             format, "png" (the default) or "rgb".
+     */
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : Constants.TILE_ARCHIVE_PATH;
+        Format format = args.length > 1 ? Format.valueOf(args[1].toUpperCase()) : Format.PNG;
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        write(path, format, Constants.TILE_SIZE, Constants.MAX_DEPTH, (depth, x, y) -> {
+            String resource = Constants.IMG_ROOT + TilePyramid.name(depth, x, y);
+            try (InputStream in = loader.getResourceAsStream(resource)) {
+                if (in == null) {
+                    return null;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                    bytes.write(buffer, 0, n);
+                }
+                return bytes.toByteArray();
+            }
+        });
+        System.out.println("Wrote " + format + " tile archive " + path);
+    }
+}
@@ -0,0 +1,28 @@
+package bearmaps.proj2d.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * A cache of decoded map tiles, keyed by depth, x and y, that holds at most a fixed number
+ * of bytes of pixels. Tiles are weighed by the size of their pixel data. Cached images are
+ * shared between requests and must not be drawn on.
+ */
+public final class TileCache extends WeightedCache<Long, BufferedImage> {
+    /** Creates a cache that holds at most BUDGET bytes of decoded pixels. */
+    public TileCache(long budget) {
+        super(budget, TileCache::weigh);
+    }
+
+    /** Returns the key of the tile at DEPTH, X and Y. */
+    public static long key(int depth, int x, int y) {
+        return (long) depth << 56 | (long) x << 28 | y;
+    }
+
+    /** Returns the number of bytes of pixels IMAGE holds. */
+    private static long weigh(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,108 @@
+package bearmaps.proj2d.server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Composes a grid of tiles into one image, a row of tiles per task on a shared pool.
+ *
+ * Each task fetches (and if need be decodes) the tiles of its row and copies their pixels
+ * straight into the int array behind the result image, so rows never contend for a lock
+ * and no Graphics object is involved. Rows write disjoint parts of the array, and the
+ * caller waits for every row before touching the image, which makes the writes visible.
+ */
+public final class TileCompositor {
+    private final ExecutorService pool;
+    private final int tileSize;
+
+    /** Creates a compositor of TILE_SIZE square tiles that runs its tasks on POOL. */
+    public TileCompositor(ExecutorService pool, int tileSize) {
+        this.pool = pool;
+        this.tileSize = tileSize;
+    }
+
+    /** Fetches the tile at a row and column of a grid. */
+    public interface Tiles {
+        /** Returns the tile at ROW and COLUMN, or null if there is none. */
+        BufferedImage get(int row, int column);
+    }
+
+    /**
+     * Returns an RGB image of the tiles named by GRID, row by row, as fetched by TILES.
+     * Tiles that TILES returns null for are left black, and tiles with transparency are
+     * drawn over black.
+     */
+    public BufferedImage compose(String[][] grid, Function<String, BufferedImage> tiles) {
+        return compose(grid.length, grid[0].length,
+                (row, column) -> tiles.apply(grid[row][column]));
+    }
+
+    /**
+     * Returns an RGB image of ROWS by COLUMNS tiles, as fetched by TILES. Tiles that TILES
+     * returns null for are left black, and tiles with transparency are drawn over black.
+     */
+    public BufferedImage compose(int rows, int columns, Tiles tiles) {
+        BufferedImage image = new BufferedImage(columns * tileSize, rows * tileSize,
+                BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth();
+
+        List<Callable<Void>> tasks = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            int row = r;
+            int top = r * tileSize;
+            tasks.add(() -> {
+                for (int c = 0; c < columns; c++) {
+                    BufferedImage tile = tiles.get(row, c);
+                    if (tile != null) {
+                        blit(tile, tileSize, pixels, top * width + c * tileSize, width);
+                    }
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> row : pool.invokeAll(tasks)) {
+                row.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while composing tiles.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot compose tiles.", e.getCause());
+        }
+        return image;
+    }
+
+    /**
+     * Copies up to SIZE by SIZE pixels of TILE into PIXELS, an RGB image SCAN pixels wide,
+     * with its top left at OFFSET. Pixels with transparency are drawn over black.
+     */
+    static void blit(BufferedImage tile, int size, int[] pixels, int offset, int scan) {
+        int w = Math.min(tile.getWidth(), size);
+        int h = Math.min(tile.getHeight(), size);
+        tile.getRGB(0, 0, w, h, pixels, offset, scan);
+        if (!tile.getColorModel().hasAlpha()) {
+            return;
+        }
+        for (int y = 0; y < h; y++) {
+            for (int i = offset + y * scan, end = i + w; i < end; i++) {
+                int argb = pixels[i];
+                int alpha = argb >>> 24;
+                if (alpha != 0xff) {
+                    int red = ((argb >> 16) & 0xff) * alpha / 0xff;
+                    int green = ((argb >> 8) & 0xff) * alpha / 0xff;
+                    int blue = (argb & 0xff) * alpha / 0xff;
+                    pixels[i] = red << 16 | green << 8 | blue;
+                }
+            }
+        }
+    }
+}
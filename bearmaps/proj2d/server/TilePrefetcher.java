@@ -0,0 +1,208 @@
+package bearmaps.proj2d.server;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Warms the tile cache with the tiles a client is likely to ask for next, judging by its
+ * recent raster requests.
+ *
+ * For every client the prefetcher keeps the center of its last view, in tiles, and a
+ * smoothed pan velocity and the direction of its last zoom. After each raster it queues,
+ * best guesses first, the tiles in a ring around the raster, thickened and ordered
+ * towards where the client is panning, then the tiles of the same view one depth further
+ * in the direction it last zoomed, or deeper if it has not zoomed. Tiles already cached
+ * are skipped. The tiles are decoded on an executor of the caller's choosing, which should
+ * run at low priority and drop stale work, so prefetching never holds up real requests.
+ */
+public final class TilePrefetcher {
+    /** Decodes the tile X, Y at DEPTH, or returns null if there is none. */
+    public interface TileLoader {
+        BufferedImage load(int depth, int x, int y);
+    }
+
+    /** A pan that has been still this long starts its velocity over. */
+    private static final long STALE_MILLIS = 5000;
+    /** The weight of the latest movement in the smoothed velocity. */
+    private static final double SMOOTHING = 0.5;
+    /** The ring is thickened by the velocity up to this many tiles. */
+    private static final int MAX_LEAD = 2;
+
+    /** What the prefetcher knows of one client. */
+    private static class Track {
+        private int depth;
+        private double x;
+        private double y;
+        private long time;
+        /** Pan velocity, in tiles at depth per request. */
+        private double vx;
+        private double vy;
+        /** The sign of the last change of depth. */
+        private int zoom;
+    }
+
+    private final TilePyramid pyramid;
+    private final TileCache cache;
+    private final TileLoader loader;
+    private final Executor executor;
+    private final int maxTiles;
+    private final Map<String, Track> tracks;
+
+    /**
+     * Creates a prefetcher of tiles of PYRAMID into CACHE, decoded by LOADER on EXECUTOR,
+     * that queues up to MAX_TILES tiles per raster and follows up to MAX_CLIENTS clients.
+     */
+    public TilePrefetcher(TilePyramid pyramid, TileCache cache, TileLoader loader,
+                          Executor executor, int maxTiles, int maxClients) {
+        this.pyramid = pyramid;
+        this.cache = cache;
+        this.loader = loader;
+        this.executor = executor;
+        this.maxTiles = maxTiles;
+        this.tracks = new LinkedHashMap<String, Track>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Track> eldest) {
+                return size() > maxClients;
+            }
+        };
+    }
+
+    /**
+     * Notes that CLIENT was sent the raster of WINDOW for a view centered on LON, LAT, at
+     * time NOW in milliseconds, and queues the tiles it may want next.
+     */
+    public void observe(String client, TilePyramid.Window window, double lon, double lat,
+                        long now) {
+        int depth = window.depth();
+        double x = pyramid.x(lon, depth);
+        double y = pyramid.y(lat, depth);
+        double vx;
+        double vy;
+        int zoom;
+        synchronized (tracks) {
+            Track track = tracks.get(client);
+            if (track == null) {
+                track = new Track();
+                tracks.put(client, track);
+            } else if (now - track.time > STALE_MILLIS) {
+                track.vx = 0;
+                track.vy = 0;
+            } else if (track.depth == depth) {
+                track.vx = SMOOTHING * (x - track.x) + (1 - SMOOTHING) * track.vx;
+                track.vy = SMOOTHING * (y - track.y) + (1 - SMOOTHING) * track.vy;
+            } else {
+                /* Rescale the velocity to the new depth's tiles. */
+                double scale = Math.scalb(1.0, depth - track.depth);
+                track.vx *= scale;
+                track.vy *= scale;
+                track.zoom = Integer.signum(depth - track.depth);
+            }
+            track.depth = depth;
+            track.x = x;
+            track.y = y;
+            track.time = now;
+            vx = track.vx;
+            vy = track.vy;
+            zoom = track.zoom;
+        }
+
+        List<long[]> tiles = new ArrayList<>();
+        addRing(tiles, window, x, y, vx, vy);
+        int next = depth + (zoom < 0 ? -1 : 1);
+        if (next >= 0 && next <= pyramid.maxDepth()) {
+            addLevel(tiles, window, next, x, y);
+        }
+        for (long[] tile : tiles) {
+            int d = (int) tile[0];
+            int tx = (int) tile[1];
+            int ty = (int) tile[2];
+            long key = TileCache.key(d, tx, ty);
+            executor.execute(() -> {
+                if (!cache.contains(key)) {
+                    cache.get(key, () -> loader.load(d, tx, ty));
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the uncached tiles around WINDOW, up to maxTiles in all, in order of how far they
+     * lie in the direction VX, VY from X, Y. The ring is a tile thick, and thicker on the
+     * sides the client pans towards.
+     */
+    private void addRing(List<long[]> tiles, TilePyramid.Window window, double x, double y,
+                         double vx, double vy) {
+        int depth = window.depth();
+        int left = 1 + (vx < 0 ? lead(vx) : 0);
+        int right = 1 + (vx > 0 ? lead(vx) : 0);
+        int up = 1 + (vy < 0 ? lead(vy) : 0);
+        int down = 1 + (vy > 0 ? lead(vy) : 0);
+        TilePyramid.Window ring = pyramid.windowAt(depth, window.minX() - left,
+                window.maxX() + right, window.minY() - up, window.maxY() + down);
+
+        List<long[]> candidates = new ArrayList<>();
+        for (int ty = ring.minY(); ty <= ring.maxY(); ty++) {
+            for (int tx = ring.minX(); tx <= ring.maxX(); tx++) {
+                boolean inside = tx >= window.minX() && tx <= window.maxX()
+                        && ty >= window.minY() && ty <= window.maxY();
+                if (!inside && !cache.contains(TileCache.key(depth, tx, ty))) {
+                    candidates.add(new long[]{depth, tx, ty});
+                }
+            }
+        }
+        double speed = Math.hypot(vx, vy);
+        candidates.sort(Comparator.comparingDouble(tile -> {
+            double dx = tile[1] + 0.5 - x;
+            double dy = tile[2] + 0.5 - y;
+            /* Ahead first, nearest first among tiles equally far ahead. */
+            double ahead = speed == 0 ? 0 : (dx * vx + dy * vy) / speed;
+            return -ahead + 1e-3 * Math.hypot(dx, dy);
+        }));
+        for (long[] tile : candidates) {
+            if (tiles.size() == maxTiles) {
+                return;
+            }
+            tiles.add(tile);
+        }
+    }
+
+    /** Returns how many tiles further than one the ring should reach at velocity V. */
+    private static int lead(double v) {
+        return (int) Math.min(MAX_LEAD, Math.round(Math.abs(v)));
+    }
+
+    /**
+     * Adds the uncached tiles at DEPTH that cover WINDOW, up to maxTiles in all, nearest
+     * the center X, Y of the view first.
+     */
+    private void addLevel(List<long[]> tiles, TilePyramid.Window window, int depth,
+                          double x, double y) {
+        double scale = Math.scalb(1.0, depth - window.depth());
+        TilePyramid.Window level = pyramid.windowAt(depth, window.minX() * scale,
+                (window.maxX() + 1) * scale - 0.5, window.minY() * scale,
+                (window.maxY() + 1) * scale - 0.5);
+        double cx = x * scale;
+        double cy = y * scale;
+        List<long[]> candidates = new ArrayList<>();
+        for (int ty = level.minY(); ty <= level.maxY(); ty++) {
+            for (int tx = level.minX(); tx <= level.maxX(); tx++) {
+                if (!cache.contains(TileCache.key(depth, tx, ty))) {
+                    candidates.add(new long[]{depth, tx, ty});
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(
+                tile -> Math.hypot(tile[1] + 0.5 - cx, tile[2] + 0.5 - cy)));
+        for (long[] tile : candidates) {
+            if (tiles.size() == maxTiles) {
+                return;
+            }
+            tiles.add(tile);
+        }
+    }
+}
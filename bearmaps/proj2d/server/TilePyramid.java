@@ -0,0 +1,244 @@
+package bearmaps.proj2d.server;
+
+/**
+ * The quadtree of map tiles over a root bounding box: depth 0 is one tile covering the
+ * root, and each depth halves the tiles of the one above in both directions, down to a
+ * maximum depth. Tile (x, y) at depth d is the x-th from the left and the y-th from the
+ * top of the 2^d by 2^d tiles at that depth.
+ *
+ * Depths and tile ranges are computed arithmetically: the depth of a query is the base 2
+ * logarithm of how much finer its longitudinal distance per pixel (LonDPP) is than the
+ * root's, and the range of tiles is a division of its bounds by the tile size at that
+ * depth, clamped to the root.
+ */
+public final class TilePyramid {
+    private final double ullon;
+    private final double ullat;
+    private final double lrlon;
+    private final double lrlat;
+    private final int tileSize;
+    private final int maxDepth;
+    private final double rootLonDPP;
+
+    /**
+     * Creates the pyramid of TILE_SIZE pixel square tiles down to MAX_DEPTH over the box
+     * from (ULLON, ULLAT) to (LRLON, LRLAT).
+     */
+    public TilePyramid(double ullon, double ullat, double lrlon, double lrlat, int tileSize,
+                       int maxDepth) {
+        if (maxDepth < 0 || maxDepth > 28) {
+            throw new IllegalArgumentException("Depth must be between 0 and 28: " + maxDepth);
+        }
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+        this.tileSize = tileSize;
+        this.maxDepth = maxDepth;
+        this.rootLonDPP = (lrlon - ullon) / tileSize;
+    }
+
+    /** Returns the size of the tiles, in pixels. */
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /** Returns the depth of the smallest tiles. */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the shallowest depth whose tiles have at most LON_DPP longitudinal distance
+     * per pixel, or the maximum depth if none does, as when LON_DPP is not positive.
+     */
+    public int depth(double lonDPP) {
+        if (!(lonDPP > 0)) {
+            return maxDepth;
+        }
+        if (!(lonDPP < rootLonDPP)) {
+            return 0;
+        }
+        double log = Math.ceil(Math.log(rootLonDPP / lonDPP) / Math.log(2));
+        int depth = (int) Math.max(0, Math.min(maxDepth, log));
+        /* Correct for rounding in the logarithm; scalb halves exactly. */
+        while (depth > 0 && Math.scalb(rootLonDPP, -(depth - 1)) <= lonDPP) {
+            depth -= 1;
+        }
+        while (depth < maxDepth && Math.scalb(rootLonDPP, -depth) > lonDPP) {
+            depth += 1;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the window of tiles that covers the query box from (UL_LON, UL_LAT) to
+     * (LR_LON, LR_LAT), shown WIDTH pixels wide, or null if the box is empty or lies
+     * outside the root, or if the width is not positive or a value is not finite. Parts of
+     * the box outside the root are left out.
+     */
+    public Window window(double ulLon, double ulLat, double lrLon, double lrLat, double width) {
+        if (!(width > 0) || !Double.isFinite(width) || !Double.isFinite(ulLon)
+                || !Double.isFinite(ulLat) || !Double.isFinite(lrLon) || !Double.isFinite(lrLat)) {
+            return null;
+        }
+        if (lrLon < ullon || lrlon < ulLon || lrLat > ullat || ulLat < lrlat
+                || ulLon >= lrLon || ulLat <= lrLat) {
+            return null;
+        }
+        int depth = depth((lrLon - ulLon) / width);
+        return windowAt(depth, x(ulLon, depth), x(lrLon, depth), y(ulLat, depth),
+                y(lrLat, depth));
+    }
+
+    /**
+     * Returns the window of tiles at DEPTH that covers tile columns MIN_X to MAX_X and rows
+     * MIN_Y to MAX_Y, which may be fractional and may reach past the root.
+     */
+    public Window windowAt(int depth, double minX, double maxX, double minY, double maxY) {
+        int last = (1 << depth) - 1;
+        return new Window(depth, clamp(minX, last), clamp(maxX, last), clamp(minY, last),
+                clamp(maxY, last));
+    }
+
+    /** Returns LON in tile columns from the left edge of the root, at DEPTH. */
+    public double x(double lon, int depth) {
+        return Math.scalb((lon - ullon) / (lrlon - ullon), depth);
+    }
+
+    /** Returns LAT in tile rows from the top edge of the root, at DEPTH. */
+    public double y(double lat, int depth) {
+        return Math.scalb((ullat - lat) / (ullat - lrlat), depth);
+    }
+
+    /** Returns the file name of tile X, Y at DEPTH, as "d1_x2_y3.png". */
+    public static String name(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
+    }
+
+    /** Returns the index of the tile OFFSET tiles from the root's edge, within [0, LAST]. */
+    private static int clamp(double offset, int last) {
+        return (int) Math.max(0, Math.min(last, Math.floor(offset)));
+    }
+
+    /**
+     * A rectangle of tiles at one depth, from column minX to maxX and row minY to maxY,
+     * inclusive. Windows are equal when they have the same depth and tiles.
+     */
+    public final class Window {
+        private final int depth;
+        private final int minX;
+        private final int maxX;
+        private final int minY;
+        private final int maxY;
+
+        Window(int depth, int minX, int maxX, int minY, int maxY) {
+            this.depth = depth;
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        public int depth() {
+            return depth;
+        }
+
+        public int minX() {
+            return minX;
+        }
+
+        public int maxX() {
+            return maxX;
+        }
+
+        public int minY() {
+            return minY;
+        }
+
+        public int maxY() {
+            return maxY;
+        }
+
+        /** Returns the number of columns of tiles. */
+        public int columns() {
+            return maxX - minX + 1;
+        }
+
+        /** Returns the number of rows of tiles. */
+        public int rows() {
+            return maxY - minY + 1;
+        }
+
+        /** Returns the width of the window, in pixels. */
+        public int width() {
+            return columns() * tileSize;
+        }
+
+        /** Returns the height of the window, in pixels. */
+        public int height() {
+            return rows() * tileSize;
+        }
+
+        /** Returns the longitude of the left edge of the window. */
+        public double ulLon() {
+            return ullon + Math.scalb(minX * (lrlon - ullon), -depth);
+        }
+
+        /** Returns the latitude of the top edge of the window. */
+        public double ulLat() {
+            return ullat - Math.scalb(minY * (ullat - lrlat), -depth);
+        }
+
+        /** Returns the longitude of the right edge of the window. */
+        public double lrLon() {
+            return ullon + Math.scalb((maxX + 1) * (lrlon - ullon), -depth);
+        }
+
+        /** Returns the latitude of the bottom edge of the window. */
+        public double lrLat() {
+            return ullat - Math.scalb((maxY + 1) * (ullat - lrlat), -depth);
+        }
+
+        /** Returns the TileCache key of the tile at ROW and COLUMN of the window. */
+        public long key(int row, int column) {
+            return TileCache.key(depth, minX + column, minY + row);
+        }
+
+        /** Returns the file name of the tile at ROW and COLUMN, as "d1_x2_y3.png". */
+        public String name(int row, int column) {
+            return TilePyramid.name(depth, minX + column, minY + row);
+        }
+
+        /** Returns the file names of the tiles of the window, row by row. */
+        public String[][] names() {
+            String[][] names = new String[rows()][columns()];
+            for (int r = 0; r < names.length; r++) {
+                for (int c = 0; c < names[r].length; c++) {
+                    names[r][c] = name(r, c);
+                }
+            }
+            return names;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Window)) {
+                return false;
+            }
+            Window other = (Window) o;
+            return depth == other.depth && minX == other.minX && maxX == other.maxX
+                    && minY == other.minY && maxY == other.maxY;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((depth * 31 + minX) * 31 + maxX) * 31 + minY) * 31 + maxY;
+        }
+
+        @Override
+        public String toString() {
+            return "d" + depth + "_x" + minX + "-" + maxX + "_y" + minY + "-" + maxY;
+        }
+    }
+}
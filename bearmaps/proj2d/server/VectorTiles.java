@@ -0,0 +1,255 @@
+package bearmaps.proj2d.server;
+
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Builds vector tiles of the roads of a street graph, for clients that draw the map
+ * themselves instead of fetching rasters. Tiles are addressed like the raster tiles of a
+ * TilePyramid, by depth, x and y, but may go deeper than its images.
+ *
+ * The segments crossing a tile are found with a SegmentGrid and joined into polylines, one
+ * per run of segments of the same way name and highway class. The polylines are clipped to
+ * the tile widened by a buffer, so strokes crossing its edge are not cut short, simplified,
+ * and quantized to a grid of EXTENT by EXTENT units over the tile (see RouteOverlay).
+ * Encoded tiles are kept in an LRU cache of a fixed number of bytes.
+ *
+ * A tile is encoded as follows, where a string is a varint byte length followed by UTF-8,
+ * and signed values are zigzag varints:
+ * <pre>
+ *     byte version, varint extent
+ *     varint class count, then each highway class as a string, such as "residential"
+ *     varint name count, then each way name as a string, empty for unnamed ways
+ *     varint polyline count, then per polyline:
+ *         varint class, varint name, varint point count,
+ *         per point: signed dx, signed dy
+ * </pre>
+ * Classes and names are indices into the tables of the tile. Points are in units from the
+ * top left of the tile, x to the right and y down, each relative to the point before it,
+ * the first point of each polyline relative to the last of the one before, and the very
+ * first to 0, 0.
+ */
+public final class VectorTiles {
+    /** Bump whenever the encoding changes. */
+    public static final int VERSION = 1;
+    /** The tile is quantized to this many units in each direction. */
+    public static final int EXTENT = 4096;
+    /** Polylines are clipped this many units outside the tile. */
+    private static final int BUFFER = 64;
+    /** Vertices that move a polyline by less than this many units are dropped. */
+    private static final double TOLERANCE = 2;
+
+    private final StreetMapGraph graph;
+    private final SegmentGrid grid;
+    private final TilePyramid pyramid;
+    private final int maxDepth;
+    private final WeightedCache<Long, byte[]> cache;
+
+    /**
+     * Creates the vector tiles of GRAPH over the tiles of PYRAMID down to MAX_DEPTH, caching
+     * up to CACHE_BYTES bytes of encoded tiles. Indexes the graph, which takes a moment.
+     */
+    public VectorTiles(StreetMapGraph graph, TilePyramid pyramid, int maxDepth,
+                       long cacheBytes) {
+        if (maxDepth < 0 || maxDepth > 28) {
+            throw new IllegalArgumentException("Depth must be between 0 and 28: " + maxDepth);
+        }
+        this.graph = graph;
+        this.grid = new SegmentGrid(graph);
+        this.pyramid = pyramid;
+        this.maxDepth = maxDepth;
+        this.cache = new WeightedCache<>(cacheBytes, tile -> tile.length);
+    }
+
+    /** Returns the depth of the smallest tiles. */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the encoded tile X, Y at DEPTH, from the cache if it has been built before, or
+     * null if there is no such tile.
+     */
+    public byte[] tile(int depth, int x, int y) {
+        if (depth < 0 || depth > maxDepth || x < 0 || y < 0 || x >= 1 << depth
+                || y >= 1 << depth) {
+            return null;
+        }
+        return cache.get(TileCache.key(depth, x, y), () -> encode(depth, x, y));
+    }
+
+    /** A run of segments of one way name and highway class, as its vertices in order. */
+    private static class Chain {
+        private final int highway;
+        private final int wayId;
+        private final List<Integer> vertices = new ArrayList<>();
+
+        Chain(int highway, int wayId) {
+            this.highway = highway;
+            this.wayId = wayId;
+        }
+    }
+
+    private byte[] encode(int depth, int x, int y) {
+        TilePyramid.Window tile = pyramid.windowAt(depth, x, x, y, y);
+        double ulLon = tile.ulLon();
+        double ulLat = tile.ulLat();
+        double unitsPerLon = EXTENT / (tile.lrLon() - ulLon);
+        double unitsPerLat = EXTENT / (ulLat - tile.lrLat());
+        int[] segments = grid.segments(ulLon - BUFFER / unitsPerLon,
+                tile.lrLat() - BUFFER / unitsPerLat, tile.lrLon() + BUFFER / unitsPerLon,
+                ulLat + BUFFER / unitsPerLat);
+
+        StringTable classes = new StringTable();
+        StringTable names = new StringTable();
+        ByteArrayOutputStream features = new ByteArrayOutputStream();
+        int featureCount = 0;
+        int lastX = 0;
+        int lastY = 0;
+        for (Chain chain : chains(segments)) {
+            double[] xs = new double[chain.vertices.size()];
+            double[] ys = new double[chain.vertices.size()];
+            for (int i = 0; i < xs.length; i++) {
+                int v = chain.vertices.get(i);
+                xs[i] = (graph.lonAt(v) - ulLon) * unitsPerLon;
+                ys[i] = (ulLat - graph.latAt(v)) * unitsPerLat;
+            }
+            for (int[] polyline : RouteOverlay.polylines(xs, ys, EXTENT, EXTENT, BUFFER,
+                    TOLERANCE)) {
+                writeVarint(features, classes.index(StreetMapGraph.highwayType(chain.highway)));
+                writeVarint(features, names.index(graph.wayName(chain.wayId)));
+                writeVarint(features, polyline.length / 2);
+                for (int i = 0; i < polyline.length; i += 2) {
+                    writeSignedVarint(features, polyline[i] - lastX);
+                    writeSignedVarint(features, polyline[i + 1] - lastY);
+                    lastX = polyline[i];
+                    lastY = polyline[i + 1];
+                }
+                featureCount += 1;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(features.size() + 256);
+        out.write(VERSION);
+        writeVarint(out, EXTENT);
+        classes.write(out);
+        names.write(out);
+        writeVarint(out, featureCount);
+        byte[] body = features.toByteArray();
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Joins SEGMENTS into chains of the same way name and highway class that run through
+     * vertices where only two segments of that way meet, ordered by class, then way.
+     */
+    private List<Chain> chains(int[] segments) {
+        Map<Long, List<Integer>> groups = new TreeMap<>();
+        for (int s : segments) {
+            int e = grid.edge(s);
+            long key = (long) graph.edgeHighway(e) << 32 | graph.edgeWayId(e);
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(s);
+        }
+
+        List<Chain> chains = new ArrayList<>();
+        for (Map.Entry<Long, List<Integer>> group : groups.entrySet()) {
+            List<Integer> members = group.getValue();
+            Map<Integer, List<Integer>> incident = new HashMap<>();
+            for (int s : members) {
+                incident.computeIfAbsent(grid.source(s), v -> new ArrayList<>()).add(s);
+                incident.computeIfAbsent(grid.target(s), v -> new ArrayList<>()).add(s);
+            }
+            Set<Integer> used = new HashSet<>();
+            int highway = (int) (group.getKey() >>> 32);
+            int wayId = (int) (long) group.getKey();
+            /* Start at the ends and junctions first, so that only closed loops are left. */
+            for (int s : members) {
+                for (int v : new int[]{grid.source(s), grid.target(s)}) {
+                    if (incident.get(v).size() != 2 && !used.contains(s)) {
+                        chains.add(walk(new Chain(highway, wayId), v, s, incident, used));
+                    }
+                }
+            }
+            for (int s : members) {
+                if (!used.contains(s)) {
+                    chains.add(walk(new Chain(highway, wayId), grid.source(s), s, incident,
+                            used));
+                }
+            }
+        }
+        return chains;
+    }
+
+    /**
+     * Fills CHAIN with the vertices from START along segment FIRST and on through every
+     * vertex where exactly two segments of INCIDENT meet, marking the segments USED.
+     */
+    private Chain walk(Chain chain, int start, int first, Map<Integer, List<Integer>> incident,
+                       Set<Integer> used) {
+        int v = start;
+        int s = first;
+        chain.vertices.add(v);
+        while (s >= 0) {
+            used.add(s);
+            v = grid.source(s) == v ? grid.target(s) : grid.source(s);
+            chain.vertices.add(v);
+            List<Integer> next = incident.get(v);
+            s = -1;
+            if (next.size() == 2) {
+                for (int candidate : next) {
+                    if (!used.contains(candidate)) {
+                        s = candidate;
+                    }
+                }
+            }
+        }
+        return chain;
+    }
+
+    /** The strings of one tile, numbered in the order they are first used. */
+    private static class StringTable {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        int index(String string) {
+            Integer index = indices.get(string);
+            if (index == null) {
+                index = strings.size();
+                indices.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+
+        void write(ByteArrayOutputStream out) {
+            writeVarint(out, strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeSignedVarint(ByteArrayOutputStream out, int value) {
+        writeVarint(out, value << 1 ^ value >> 31);
+    }
+}
@@ -0,0 +1,125 @@
+package bearmaps.proj2d.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache that holds at most a fixed budget of weight, typically bytes, where each value
+ * is weighed by a function given to the cache. When the cache is over budget, the least
+ * recently used values are evicted first.
+ *
+ * Lookups take a short lock on the LRU order; loading a missing value happens outside the
+ * lock, so a slow load never holds up lookups of other keys. Two lookups that miss the same
+ * key at once may both load it, which costs a load but not correctness. Cached values are
+ * shared between callers and must not be changed.
+ */
+public class WeightedCache<K, V> {
+    private class Entry {
+        private final V value;
+        private final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long budget;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Creates a cache that holds at most BUDGET weight, as measured by WEIGHER. */
+    public WeightedCache(long budget, ToLongFunction<V> weigher) {
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the value of KEY, loading it with LOADER if it is not cached. Values LOADER
+     * fails to load, returning null, are not cached, and neither are values heavier than
+     * the whole budget.
+     */
+    public V get(K key, Supplier<V> loader) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+        }
+        misses.incrementAndGet();
+        V value = loader.get();
+        if (value == null) {
+            return null;
+        }
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > budget) {
+            return value;
+        }
+        synchronized (entries) {
+            Entry old = entries.put(key, new Entry(value, valueWeight));
+            weight += valueWeight - (old == null ? 0 : old.weight);
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (weight > budget) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns whether KEY is cached. Unlike get, this neither counts as a lookup nor makes
+     * KEY more recently used.
+     */
+    public boolean contains(K key) {
+        synchronized (entries) {
+            return entries.containsKey(key);
+        }
+    }
+
+    /** Returns the number of lookups that found their value cached. */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that had to load their value. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Returns the number of values evicted to stay within the budget. */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /** Returns the total weight of the cached values. */
+    public long weight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    /** Returns the number of values cached. */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%d entries, %d/%d weight, %d hits, %d misses, %d evictions)",
+                getClass().getSimpleName(), size(), weight(), budget, hits(), misses(),
+                evictions());
+    }
+}
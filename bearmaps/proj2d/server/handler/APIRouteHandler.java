@@ -1,10 +1,13 @@
 package bearmaps.proj2d.server.handler;
 
+import bearmaps.proj2d.server.EntityTags;
 import com.google.gson.Gson;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 
+import javax.servlet.http.HttpServletResponse;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -15,12 +18,35 @@ import static spark.Spark.halt;
  * The process is defined as such that first the request parameters are read, then
  * request is process based on those parameters and finally the response is built.
  *
+ * Handlers whose responses can be cached give them an entity tag by overriding etag, and
+ * a Cache-Control policy by overriding cacheControl. A request whose If-None-Match header
+ * lists the tag of its response is answered 304 Not Modified before it is processed.
+ * Responses without a tag are marked not to be stored.
+ *
  * Created by rahul
  */
 public abstract class APIRouteHandler<Req, Res> implements Route {
 
     /** HTTP failed response. */
-    private static final int HALT_RESPONSE = 403;
+    protected static final int HALT_RESPONSE = 403;
+
+    /**
+     * A client's session token, which keys its per-session state such as its route, is sent
+     * in this cookie, or by clients that do not keep cookies as this request parameter.
+     */
+    protected static final String SESSION_COOKIE = "bearmaps_session";
+    protected static final String SESSION_PARAM = "session";
+
+    /** Session tokens longer than this are ignored. */
+    private static final int MAX_SESSION_LENGTH = 64;
+
+    private static final SecureRandom SESSION_RANDOM = new SecureRandom();
+
+    /**
+     * The Cache-Control policy of responses with an entity tag, unless a handler sets its
+     * own: caches may keep them but must check with the server before each use.
+     */
+    protected static final String REVALIDATE = "no-cache";
 
     private Gson gson;
 
@@ -31,10 +57,50 @@ public abstract class APIRouteHandler<Req, Res> implements Route {
     @Override
     public Object handle(Request request, Response response) throws Exception {
         Req requestParams = parseRequestParams(request);
+        if (notModified(request, response, etag(requestParams))) {
+            return "";
+        }
         Res result = processRequest(requestParams, response);
         return buildJsonResponse(result);
     }
 
+    /**
+     * Returns the entity tag of the response to a request, built with EntityTags.of from
+     * everything the response depends on, or null if the response must not be cached.
+     * Responses have no tag unless a handler overrides this.
+     * @param requestParams request parameters
+     */
+    protected String etag(Req requestParams) {
+        return null;
+    }
+
+    /** Returns the Cache-Control policy of responses that have an entity tag. */
+    protected String cacheControl() {
+        return REVALIDATE;
+    }
+
+    /**
+     * Sets the caching headers of a response with entity tag ETAG, and answers 304 Not
+     * Modified if the client already has it.
+     * @param request HTTP Request, whose If-None-Match header is checked.
+     * @param response HTTP Response.
+     * @param etag The tag of the response, or null if it must not be cached.
+     * @return Whether the response was answered Not Modified and needs no body.
+     */
+    protected boolean notModified(Request request, Response response, String etag) {
+        if (etag == null) {
+            response.header("Cache-Control", "no-store");
+            return false;
+        }
+        response.header("ETag", etag);
+        response.header("Cache-Control", cacheControl());
+        if (EntityTags.matches(request.headers("If-None-Match"), etag)) {
+            response.status(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Defines how to parse and extract the request parameters from request
      * @param request   the request object received
@@ -84,4 +150,60 @@ public abstract class APIRouteHandler<Req, Res> implements Route {
         }
         return params;
     }
+
+    /**
+     * Returns the session token of a request, from its session parameter or else its
+     * session cookie, or null if it has none.
+     * @param req HTTP Request.
+     */
+    protected static String getSession(spark.Request req) {
+        String session = req.queryParams(SESSION_PARAM);
+        if (session == null) {
+            session = req.cookie(SESSION_COOKIE);
+        }
+        if (session == null || session.isEmpty() || session.length() > MAX_SESSION_LENGTH) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Starts a new session, setting its token as the session cookie of the response.
+     * @param response HTTP Response, or null to only make up a token.
+     * @return The new session token.
+     */
+    protected static String newSession(Response response) {
+        byte[] bytes = new byte[16];
+        SESSION_RANDOM.nextBytes(bytes);
+        StringBuilder session = new StringBuilder();
+        for (byte b : bytes) {
+            session.append(String.format("%02x", b));
+        }
+        if (response != null) {
+            response.cookie("/", SESSION_COOKIE, session.toString(), -1, false, true);
+        }
+        return session.toString();
+    }
+
+    /**
+     * Returns the value of an optional numerical request parameter.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @param defaultValue Value to use when the parameter is absent.
+     * @return The parameter's numerical value, or defaultValue.
+     */
+    protected double getOptionalRequestParam(spark.Request req, String param,
+                                             double defaultValue) {
+        String value = req.queryParams(param);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+        }
+        return defaultValue;
+    }
 }
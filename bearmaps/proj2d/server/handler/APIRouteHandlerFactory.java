@@ -21,7 +21,9 @@ public class APIRouteHandlerFactory {
         handlerMap.put("raster", new RasterAPIHandler());
         handlerMap.put("route", new RoutingAPIHandler());
         handlerMap.put("clear_route", new ClearRouteAPIHandler());
+        handlerMap.put("route_overlay", new RouteOverlayAPIHandler());
         handlerMap.put("search", new SearchAPIHandler());
+        handlerMap.put("vector_tile", new VectorTileAPIHandler());
         handlerMap.put("", new RedirectAPIHandler());
     }
 
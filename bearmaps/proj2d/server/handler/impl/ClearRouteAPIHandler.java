@@ -4,24 +4,24 @@ import bearmaps.proj2d.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
 
-import static bearmaps.proj2d.utils.Constants.ROUTE_LIST;
+import static bearmaps.proj2d.utils.Constants.ROUTES;
 
 
 /**
  * Handles the "Clear Route" button in Bearmaps.
  * Created by rahul
  */
-public class ClearRouteAPIHandler extends APIRouteHandler {
+public class ClearRouteAPIHandler extends APIRouteHandler<String, Boolean> {
 
 
     @Override
-    protected Object parseRequestParams(Request request) {
-        return null;
+    protected String parseRequestParams(Request request) {
+        return getSession(request);
     }
 
     @Override
-    protected Object processRequest(Object requestParams, Response response) {
-        ROUTE_LIST.clear();
+    protected Boolean processRequest(String session, Response response) {
+        ROUTES.clear(session);
         return true;
     }
 }
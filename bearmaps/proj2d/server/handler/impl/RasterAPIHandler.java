@@ -1,22 +1,35 @@
 package bearmaps.proj2d.server.handler.impl;
 
-import bearmaps.proj2d.AugmentedStreetMapGraph;
+import bearmaps.proj2c.streetmap.GraphSnapshot;
+import bearmaps.proj2d.server.EntityTags;
+import bearmaps.proj2d.server.PngEncoder;
+import bearmaps.proj2d.server.TileArchive;
+import bearmaps.proj2d.server.TileCompositor;
+import bearmaps.proj2d.server.TilePrefetcher;
+import bearmaps.proj2d.server.TilePyramid;
 import bearmaps.proj2d.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
 import bearmaps.proj2d.utils.Constants;
 
 import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import static bearmaps.proj2d.utils.Constants.SEMANTIC_STREET_GRAPH;
-import static bearmaps.proj2d.utils.Constants.ROUTE_LIST;
+import static spark.Spark.halt;
 
 /**
  * Handles requests from the web browser for map images. These images
@@ -43,6 +56,57 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
             "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    /**
+     * A raster request may also set format : what to respond with. "json" (the default)
+     * is the metadata with the image inlined as base64 PNG, "meta" is the metadata alone
+     * (raster_width and raster_height included), and "png" is the image alone, as binary
+     * PNG, so a client can fetch the metadata and then load the image as a plain URL.
+     */
+    private static final String FORMAT_PARAM = "format";
+    private static final String FORMAT_JSON = "json";
+    private static final String FORMAT_META = "meta";
+    private static final String FORMAT_PNG = "png";
+
+    /**
+     * The rows of tiles of a raster are decoded and copied into it, and its PNG stripes are
+     * compressed, in parallel on this pool, shared by all raster requests.
+     */
+    private static final ExecutorService RASTER_POOL = Executors.newFixedThreadPool(
+            Constants.RASTER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "raster");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final TileCompositor COMPOSITOR = new TileCompositor(RASTER_POOL,
+            Constants.TILE_SIZE);
+    private static final PngEncoder PNG_ENCODER = new PngEncoder(RASTER_POOL,
+            Constants.PNG_COMPRESSION_LEVEL, Constants.RASTER_THREADS);
+
+    /**
+     * The tiles a client may want next are decoded ahead of its next request on this pool
+     * of low priority threads, which drops the oldest waiting tiles when it falls behind.
+     */
+    private static final ThreadPoolExecutor PREFETCH_POOL = new ThreadPoolExecutor(
+            Constants.PREFETCH_THREADS, Constants.PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Constants.PREFETCH_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "tile-prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    /** The archive of the tiles, or null if tiles are read from IMG_ROOT one by one. */
+    private static final TileArchive ARCHIVE = openArchive(Constants.TILE_ARCHIVE_PATH);
+    /**
+     * Identifies the current set of tiles, for the entity tags of rasters: the stamp of the
+     * tile archive, or of the root tile if there is no archive, since a new set of tiles
+     * always has a new root tile.
+     */
+    private static final long TILES_STAMP = GraphSnapshot.sourceStamp(ARCHIVE != null
+            ? Constants.TILE_ARCHIVE_PATH : Constants.IMG_ROOT + TilePyramid.name(0, 0, 0));
+    private static final TilePrefetcher PREFETCHER = new TilePrefetcher(Constants.TILE_PYRAMID,
+            Constants.TILE_CACHE, RasterAPIHandler::loadTile, PREFETCH_POOL,
+            Constants.PREFETCH_TILES, Constants.PREFETCH_CLIENTS);
+
 
     @Override
     protected Map<String, Double> parseRequestParams(Request request) {
@@ -82,150 +146,31 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
      */
     @Override
     public Map<String, Object> processRequest(Map<String, Double> requestParams, Response response) {
-//        System.out.println("yo, wanna know the parameters given by the web browser? They are:");
-//        System.out.println(requestParams);
-        Map<String, Object> results = new HashMap<>();
-
-        // "ullat", "ullon", "lrlat", "lrlon", "w", "h";
-        double ullat = requestParams.get("ullat");
-        double ullon = requestParams.get("ullon");
-        double lrlat = requestParams.get("lrlat");
-        double lrlon = requestParams.get("lrlon");
-        double width = requestParams.get("w");
-
-        //Corner Case 2: No Coverage,  ensure query_success is set to false.
-        if (lrlon < Constants.ROOT_ULLON || Constants.ROOT_LRLON < ullon
-                || lrlat > Constants.ROOT_ULLAT || ullat < Constants.ROOT_LRLAT
-                || ullon >= lrlon || ullat <= lrlat) {
-            results.put(REQUIRED_RASTER_RESULT_PARAMS[6], false);
-            return results;
-        }
-
-        int depth = this.getDepth(lrlon, ullon, width);
-        boolean success = true;
-        String [][] img;
-
-        //System.out.println("Since you haven't implemented RasterAPIHandler.processRequest, nothing is displayed in "
-        //        + "your browser." + " THIS IS THE DEPTH " + depth);
-
-        List<Integer> lons = getX(lrlon, ullon, depth, results);
-        List<Integer> lats = getY(lrlat, ullat, depth, results);
-
-//        System.out.println("lons length " + lons.size() + " lats length " + lats.size());
-//
-//        for (int i = 0; i < lats.size(); i++) {
-//            System.out.println("lats " + i + ": " + lats.get(i));
-//        }
-//
-//        for (int j = 0; j < lons.size(); j++) {
-//            System.out.println("lons " + j + ": " + lons.get(j));
-//        }
-
-
-        if (depth == 0) {
-            img = new String[1][1];
-            img [0][0]= "d0_x0_y0.png";
-        } else {
-            img = getImages(lons, lats, depth);
-        }
-
-
-        results.put("render_grid", img);
-        results.put("depth", depth);
-        results.put("query_success", success);
-
-        return results;
+        return results(window(requestParams));
     }
 
-    private int getDepth(double lrlon, double ullon, double width) {
-        double LonDPP = (lrlon - ullon) / width;
-        int depth;
-
-        if (LonDPP >= 0.000343322753906){
-            depth = 0;
-        } else if (LonDPP >= 0.000171661376) {
-            depth = 1;
-        } else if (LonDPP >= 0.00008583068847) {
-            depth = 2;
-        } else if (LonDPP >= 0.000042915344) {
-            depth = 3;
-        } else if (LonDPP >= 0.000021457672) {
-            depth = 4;
-        } else if (LonDPP >= 0.00001072883606) {
-            depth = 5;
-        } else if (LonDPP >= 0.00000536441803) {
-            depth = 6;
-        } else {
-            depth = 7;
-        }
-
-        return depth;
+    /** Returns the window of tiles the query of REQUEST_PARAMS covers, or null if none. */
+    private static TilePyramid.Window window(Map<String, Double> requestParams) {
+        return Constants.TILE_PYRAMID.window(requestParams.get("ullon"),
+                requestParams.get("ullat"), requestParams.get("lrlon"),
+                requestParams.get("lrlat"), requestParams.get("w"));
     }
 
-    private List<Integer> getX(double lrlon, double ullon, int depth, Map<String, Object> results) {
-        List<Integer> lons = new ArrayList<>();
-
-        double bucketRange = (Constants.ROOT_LRLON - Constants.ROOT_ULLON) / Math.pow(2, depth);
-        //System.out.println("bRange: " + bucketRange);
-
-        int xLeft = (int) Math.abs((Constants.ROOT_ULLON - ullon)/bucketRange);
-        //System.out.println("xL: " + xLeft);
-        double bound_ullon = Constants.ROOT_ULLON + (xLeft * bucketRange);
-        //System.out.println("bound ullon: " + bound_ullon);
-        results.put("raster_ul_lon", bound_ullon);
-
-
-        int xRight = (int) Math.abs(Math.ceil((Constants.ROOT_ULLON - lrlon)/bucketRange));
-        //System.out.println("xR: " + xRight);
-        double bound_lrlon = Constants.ROOT_ULLON + ((xRight+1) * bucketRange);
-        //System.out.println("bound lrlon: " + bound_lrlon);
-        results.put("raster_lr_lon", bound_lrlon);
-
-        for (int i = xLeft; i <= xRight; i++) {
-            lons.add(i);
-        }
-
-        return lons;
-    }
-
-    private List<Integer> getY(double lrlat, double ullat, int depth, Map<String, Object> results) {
-        List<Integer> lats = new ArrayList<>();
-
-        double bucketRange = (Constants.ROOT_ULLAT - Constants.ROOT_LRLAT) / Math.pow(2, depth);
-        //System.out.println("bRange: " + bucketRange);
-
-        int xUp = (int) Math.abs((Constants.ROOT_ULLAT - ullat)/bucketRange);
-        //System.out.println("xup: " + xUp);
-        double bound_ullat = Constants.ROOT_ULLAT - (xUp * bucketRange);
-        //System.out.println("bound ullat: " + bound_ullat);
-        results.put("raster_ul_lat", bound_ullat);
-
-        int xDown = (int) Math.abs(Math.ceil((Constants.ROOT_ULLAT - lrlat)/bucketRange));
-        //System.out.println("xdown: " + xDown);
-        double bound_lrlat = Constants.ROOT_ULLAT - (xDown * bucketRange);
-        //System.out.println("bound lrlat: " + bound_lrlat);
-        results.put("raster_lr_lat", bound_lrlat);
-
-        for (int i = xUp; i < xDown; i++) {
-            lats.add(i);
-        }
-
-        return lats;
-    }
-
-    public String[][] getImages(List<Integer> lons, List<Integer> lats, int depth) {
-        String strDepth = Integer.toString(depth);
-        String[][] images = new String[lats.size()][lons.size()];
-
-        for (int i = 0; i < lats.size(); i++) {
-            for (int j = 0; j < lons.size(); j++) {
-                String lon = Integer.toString(lons.get(j));
-                String lat = Integer.toString(lats.get(i));
-                images[i][j] = "d" + strDepth + "_x" + lon + "_y" + lat + ".png";
-            }
+    /** Returns the results for the front end of WINDOW, as processRequest specifies. */
+    private static Map<String, Object> results(TilePyramid.Window window) {
+        Map<String, Object> results = new HashMap<>();
+        if (window == null) {
+            results.put("query_success", false);
+            return results;
         }
-
-        return images;
+        results.put("render_grid", window.names());
+        results.put("raster_ul_lon", window.ulLon());
+        results.put("raster_ul_lat", window.ulLat());
+        results.put("raster_lr_lon", window.lrLon());
+        results.put("raster_lr_lat", window.lrLat());
+        results.put("depth", window.depth());
+        results.put("query_success", true);
+        return results;
     }
 
 //    @Override
@@ -297,19 +242,152 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
 
 
 
+    /**
+     * Rasters the request and responds in the requested format. The raster is the base map
+     * only; the route of the client's session is served apart, by RouteOverlayAPIHandler,
+     * so that rasters do not depend on the session.
+     *
+     * A raster depends only on its window of tiles and the tiles themselves, so responses
+     * are tagged with both and may be cached for Constants.TILE_MAX_AGE_SECONDS. A client
+     * that already has the response is answered Not Modified without drawing anything.
+     */
     @Override
-    protected Object buildJsonResponse(Map<String, Object> result) {
+    public Object handle(Request request, Response response) throws Exception {
+        Map<String, Double> requestParams = parseRequestParams(request);
+        TilePyramid.Window window = window(requestParams);
+        String format = request.queryParams(FORMAT_PARAM);
+        if (format == null) {
+            format = FORMAT_JSON;
+        }
+        String etag = window == null ? null : EntityTags.of("raster", format, window,
+                TILES_STAMP);
+        if (notModified(request, response, etag)) {
+            if (!format.equals(FORMAT_META)) {
+                prefetch(request, requestParams, window);
+            }
+            return "";
+        }
+        Map<String, Object> result = results(window);
+        if (format.equals(FORMAT_JSON)) {
+            Object json = buildJsonResponse(result, window, response);
+            prefetch(request, requestParams, window);
+            return json;
+        } else if (format.equals(FORMAT_META)) {
+            return buildMetadataResponse(result, window);
+        } else if (format.equals(FORMAT_PNG)) {
+            Object png = writeImageResponse(window, response);
+            prefetch(request, requestParams, window);
+            return png;
+        }
+        halt(HALT_RESPONSE, "Request failed - unknown raster format.");
+        return null;
+    }
+
+    @Override
+    protected String cacheControl() {
+        return "public, max-age=" + Constants.TILE_MAX_AGE_SECONDS;
+    }
+
+    /**
+     * Tells the prefetcher that the client of REQUEST was sent the raster of WINDOW. Clients
+     * are told apart by session, or by address if they have none. Metadata responses are
+     * not counted, since the client fetches the image of the same view right after.
+     */
+    private static void prefetch(Request request, Map<String, Double> requestParams,
+                                 TilePyramid.Window window) {
+        if (window == null) {
+            return;
+        }
+        String client = getSession(request);
+        if (client == null) {
+            client = request.ip();
+        }
+        double lon = (requestParams.get("ullon") + requestParams.get("lrlon")) / 2;
+        double lat = (requestParams.get("ullat") + requestParams.get("lrlat")) / 2;
+        PREFETCHER.observe(client, window, lon, lat, System.currentTimeMillis());
+    }
+
+    /**
+     * Responds with the metadata of the raster only. The raster's size follows from the
+     * window, so nothing is drawn.
+     */
+    private Object buildMetadataResponse(Map<String, Object> result,
+                                         TilePyramid.Window window) {
+        if (validateRasteredImgParams(result)) {
+            putRasterSize(result, window);
+        }
+        return super.buildJsonResponse(result);
+    }
+
+    /** Writes the raster of WINDOW as binary PNG straight to the response. */
+    private Object writeImageResponse(TilePyramid.Window window, Response response)
+            throws IOException {
+        if (window == null) {
+            halt(HALT_RESPONSE, "Request failed - nothing to raster.");
+        }
+        byte[] png = getRaster(window, response);
+        if (png == null) {
+            halt(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Request failed - cannot encode raster.");
+        }
+        response.type("image/png");
+        HttpServletResponse raw = response.raw();
+        raw.setContentLength(png.length);
+        OutputStream out = raw.getOutputStream();
+        out.write(png);
+        out.flush();
+        return "";
+    }
+
+    private Object buildJsonResponse(Map<String, Object> result, TilePyramid.Window window,
+                                     Response response) {
         boolean rasterSuccess = validateRasteredImgParams(result);
 
         if (rasterSuccess) {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            writeImagesToOutputStream(result, os);
-            String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+            byte[] png = getRaster(window, response);
+            if (png == null) {
+                return super.buildJsonResponse(queryFail());
+            }
+            putRasterSize(result, window);
+            String encodedImage = Base64.getEncoder().encodeToString(png);
             result.put("b64_encoded_image_data", encodedImage);
         }
         return super.buildJsonResponse(result);
     }
 
+    /**
+     * Returns the raster of WINDOW, as PNG, from Constants.RASTER_CACHE, drawing and caching
+     * it if it has not been seen before. Returns null if it cannot be encoded, in which case
+     * nothing is cached and RESPONSE is marked not to be stored, and loses its ETag.
+     */
+    private byte[] getRaster(TilePyramid.Window window, Response response) {
+        try {
+            return Constants.RASTER_CACHE.get(window, () -> {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                try {
+                    writeImagesToOutputStream(window, png);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return png.toByteArray();
+            });
+        } catch (UncheckedIOException e) {
+            System.out.println("Could not encode raster " + window + ": "
+                    + e.getCause().getMessage());
+            /* Replace the headers that let the response be cached, rather than add to them;
+             * Jetty drops a header set to null. */
+            response.raw().setHeader("Cache-Control", "no-store");
+            response.raw().setHeader("ETag", null);
+            return null;
+        }
+    }
+
+    /** Puts the size of the raster of WINDOW in RESULT. */
+    private static void putRasterSize(Map<String, Object> result, TilePyramid.Window window) {
+        result.put("raster_width", window.width());
+        result.put("raster_height", window.height());
+    }
+
     private Map<String, Object> queryFail() {
         Map<String, Object> results = new HashMap<>();
         results.put("render_grid", null);
@@ -344,77 +422,66 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
+     * Writes the images of the tiles of WINDOW to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we made this into provided code since it was just a bit too low level.
      */
-    private  void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * Constants.TILE_SIZE,
-                numVertTiles * Constants.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(Constants.IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += Constants.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += Constants.TILE_SIZE;
-                }
-            }
-        }
+    private  void writeImagesToOutputStream(TilePyramid.Window window, OutputStream os)
+            throws IOException {
+        BufferedImage img = COMPOSITOR.compose(window.rows(), window.columns(),
+                (row, column) -> getTile(window, row, column));
+        PNG_ENCODER.write(img, os);
+    }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        AugmentedStreetMapGraph graph = SEMANTIC_STREET_GRAPH;
-        List<Long> route = ROUTE_LIST;
-
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(Constants.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(Constants.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                        (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
-        }
+    /**
+     * Returns the decoded tile at ROW and COLUMN of WINDOW from Constants.TILE_CACHE,
+     * decoding and caching it if it has not been seen before.
+     */
+    private BufferedImage getTile(TilePyramid.Window window, int row, int column) {
+        return Constants.TILE_CACHE.get(window.key(row, column), () -> loadTile(
+                window.depth(), window.minX() + column, window.minY() + row));
+    }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+    /**
+     * Decodes the tile X, Y at DEPTH from the tile archive if there is one, or else from
+     * IMG_ROOT, or returns null if there is no such tile.
+     */
+    private static BufferedImage loadTile(int depth, int x, int y) {
+        if (ARCHIVE != null) {
+            return ARCHIVE.tile(depth, x, y);
+        }
+        return getImage(Constants.IMG_ROOT + TilePyramid.name(depth, x, y));
+    }
 
+    /**
+     * Returns the tile archive at PATH, or null if there is none or it does not hold the
+     * tiles of Constants.TILE_PYRAMID, in which case tiles are read from IMG_ROOT.
+     */
+    private static TileArchive openArchive(String path) {
+        if (!new File(path).isFile()) {
+            return null;
+        }
         try {
-            ImageIO.write(img, "png", os);
+            TileArchive archive = TileArchive.open(path);
+            if (archive.tileSize() != Constants.TILE_SIZE
+                    || archive.maxDepth() != Constants.MAX_DEPTH) {
+                System.out.println("Tile archive " + path + " does not match the tiles; "
+                        + "reading tiles from " + Constants.IMG_ROOT);
+                return null;
+            }
+            return archive;
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Could not open tile archive: " + e.getMessage());
+            return null;
         }
-
     }
 
-    private BufferedImage getImage(String imgPath) {
+    private static BufferedImage getImage(String imgPath) {
         BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-//                File in = new File(imgPath);
-                tileImg = ImageIO.read(Thread.currentThread().getContextClassLoader().getResource(imgPath));
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
+        try {
+            tileImg = ImageIO.read(Thread.currentThread().getContextClassLoader().getResource(imgPath));
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
         }
         return tileImg;
     }
@@ -0,0 +1,127 @@
+package bearmaps.proj2d.server.handler.impl;
+
+import bearmaps.proj2d.AugmentedStreetMapGraph;
+import bearmaps.proj2d.server.EntityTags;
+import bearmaps.proj2d.server.RouteOverlay;
+import bearmaps.proj2d.server.RouteStore;
+import bearmaps.proj2d.server.handler.APIRouteHandler;
+import bearmaps.proj2d.utils.Constants;
+import spark.Request;
+import spark.Response;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static bearmaps.proj2d.utils.Constants.ROUTES;
+import static bearmaps.proj2d.utils.Constants.SEMANTIC_STREET_GRAPH;
+import static spark.Spark.halt;
+
+/**
+ * Handles requests from the web browser for the route of its session, as polylines to draw
+ * over a raster. Rasters are drawn without the route, so every session shares them, and
+ * the client draws this overlay on top.
+ */
+public class RouteOverlayAPIHandler extends
+        APIRouteHandler<RouteOverlayAPIHandler.OverlayRequest, Map<String, Object>> {
+
+    /**
+     * Each overlay request to the server will have the following parameters as keys in the
+     * params map: the bounds and size of the raster to draw on.<br>
+     * ullat : upper left corner latitude, <br> ullon : upper left corner longitude, <br>
+     * lrlat : lower right corner latitude,<br> lrlon : lower right corner longitude <br>
+     * w : raster width in pixels,<br> h : raster height in pixels.
+     **/
+    private static final String[] REQUIRED_OVERLAY_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
+            "lrlon", "w", "h"};
+
+    /** Vertices that move the route by less than this many pixels are not sent. */
+    private static final double TOLERANCE_PX = 0.5;
+
+    /**
+     * Route versions start over when the server does, so overlays are also tagged with this
+     * token, made up at start.
+     */
+    private static final String SERVER_TOKEN = newSession(null);
+
+    /** The parsed parameters of an overlay request. */
+    static class OverlayRequest {
+        private final Map<String, Double> params;
+        /** The route of the client's session when the request came in. */
+        private final RouteStore.Route route;
+
+        OverlayRequest(Map<String, Double> params, RouteStore.Route route) {
+            this.params = params;
+            this.route = route;
+        }
+    }
+
+    @Override
+    protected OverlayRequest parseRequestParams(Request request) {
+        Map<String, Double> params = getRequestParams(request, REQUIRED_OVERLAY_REQUEST_PARAMS);
+        if (!(params.get("w") > 0 && params.get("h") > 0
+                && params.get("lrlon") > params.get("ullon")
+                && params.get("ullat") > params.get("lrlat"))) {
+            halt(HALT_RESPONSE, "Request failed - empty raster.");
+        }
+        return new OverlayRequest(params, ROUTES.route(getSession(request)));
+    }
+
+    /**
+     * An overlay depends only on the route and the raster, so it is tagged with the route's
+     * version and the raster's bounds and size. It depends on the session too, so only the
+     * client may keep it, and must check with the server before each use.
+     */
+    @Override
+    protected String etag(OverlayRequest request) {
+        Map<String, Double> params = request.params;
+        return EntityTags.of("route_overlay", SERVER_TOKEN, request.route.version(),
+                params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                params.get("lrlat"), params.get("w"), params.get("h"));
+    }
+
+    @Override
+    protected String cacheControl() {
+        return "private, " + REVALIDATE;
+    }
+
+    /**
+     * Projects the route of the client's session onto the raster and clips and simplifies
+     * it there.
+     * @return A map of results for the front end as specified: <br>
+     * "polylines"    : int[][], the stretches of the route over the raster, each flattened
+     *                   as x0, y0, x1, y1, ... in raster pixels; empty if there is no route.
+     *                   <br>
+     * "stroke_color" : String, the CSS color to draw the route in. <br>
+     * "stroke_width" : Number, the width to draw the route at, in pixels.
+     */
+    @Override
+    protected Map<String, Object> processRequest(OverlayRequest request, Response response) {
+        Map<String, Double> params = request.params;
+        double ullon = params.get("ullon");
+        double ullat = params.get("ullat");
+        double width = params.get("w");
+        double height = params.get("h");
+        double wdpp = (params.get("lrlon") - ullon) / width;
+        double hdpp = (ullat - params.get("lrlat")) / height;
+
+        long[] route = request.route.vertices();
+        AugmentedStreetMapGraph graph = SEMANTIC_STREET_GRAPH;
+        double[] x = new double[route.length];
+        double[] y = new double[route.length];
+        for (int i = 0; i < route.length; i++) {
+            x[i] = (graph.lon(route[i]) - ullon) / wdpp;
+            y[i] = (ullat - graph.lat(route[i])) / hdpp;
+        }
+
+        Map<String, Object> results = new HashMap<>();
+        results.put("polylines", RouteOverlay.polylines(x, y, width, height,
+                Constants.ROUTE_STROKE_WIDTH_PX, TOLERANCE_PX));
+        Color color = Constants.ROUTE_STROKE_COLOR;
+        results.put("stroke_color", String.format(Locale.ROOT, "rgba(%d, %d, %d, %.3f)",
+                color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha() / 255.0));
+        results.put("stroke_width", Constants.ROUTE_STROKE_WIDTH_PX);
+        return results;
+    }
+}
@@ -10,14 +10,16 @@ import java.util.List;
 import java.util.Map;
 
 import static bearmaps.proj2d.utils.Constants.SEMANTIC_STREET_GRAPH;
-import static bearmaps.proj2d.utils.Constants.ROUTE_LIST;
+import static bearmaps.proj2d.utils.Constants.ROUTES;
+import static spark.Spark.halt;
 
 /**
  * Handles requests from the web browser for routes between locations. The
  * route will be returned as image data, as well as (optionally) driving directions. *
  * Created by rahul
  */
-public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<String, Object>> {
+public class RoutingAPIHandler extends
+        APIRouteHandler<RoutingAPIHandler.RouteRequest, Map<String, Object>> {
 
     /**
      * Each route request to the server will have the following parameters
@@ -28,9 +30,68 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
             "end_lat", "end_lon"};
 
+    /**
+     * A route request may also set timeout : seconds the search may run for. It is capped
+     * at Router.DEFAULT_TIMEOUT, which is also used in place of values that are not
+     * positive or not finite.
+     */
+    private static final String TIMEOUT_PARAM = "timeout";
+
+    /**
+     * A route request may also set mode : the search algorithm, one of the names of
+     * Router.Mode: "astar" (the default), "bidirectional" or "ch".
+     */
+    private static final String MODE_PARAM = "mode";
+
+    /**
+     * A route request may also set snap : how the locations are placed on the roads, one
+     * of the names of Router.Snapping: "edge" (the default), onto the nearest road, or
+     * "node", at the nearest vertex.
+     */
+    private static final String SNAP_PARAM = "snap";
+
+    /** The parsed parameters of a route request. */
+    static class RouteRequest {
+        private final Map<String, Double> params;
+        private final Router.Mode mode;
+        private final Router.Snapping snapping;
+        /** The session token of the client, or null if it has none yet. */
+        private final String session;
+
+        RouteRequest(Map<String, Double> params, Router.Mode mode, Router.Snapping snapping,
+                     String session) {
+            this.params = params;
+            this.mode = mode;
+            this.snapping = snapping;
+            this.session = session;
+        }
+    }
+
     @Override
-    protected Map<String, Double> parseRequestParams(Request request) {
-        return getRequestParams(request, REQUIRED_ROUTE_REQUEST_PARAMS);
+    protected RouteRequest parseRequestParams(Request request) {
+        Map<String, Double> params = getRequestParams(request, REQUIRED_ROUTE_REQUEST_PARAMS);
+        double timeout = getOptionalRequestParam(request, TIMEOUT_PARAM, Router.DEFAULT_TIMEOUT);
+        if (!(timeout > 0) || Double.isInfinite(timeout)) {
+            /* A negative timeout would end every search at once, and NaN none. */
+            timeout = Router.DEFAULT_TIMEOUT;
+        }
+        params.put(TIMEOUT_PARAM, Math.min(timeout, Router.DEFAULT_TIMEOUT));
+
+        Router.Mode mode = Router.Mode.ASTAR;
+        if (request.queryParams(MODE_PARAM) != null) {
+            mode = Router.Mode.fromString(request.queryParams(MODE_PARAM));
+            if (mode == null) {
+                halt(HALT_RESPONSE, "Request failed - unknown routing mode.");
+            }
+        }
+        Router.Snapping snapping = Router.Snapping.EDGE;
+        if (request.queryParams(SNAP_PARAM) != null) {
+            snapping = Router.Snapping.fromString(request.queryParams(SNAP_PARAM));
+            if (snapping == null) {
+                halt(HALT_RESPONSE, "Request failed - unknown snapping.");
+            }
+        }
+        return new RouteRequest(params, mode, snapping, getSession(request));
     }
 
     /**
@@ -38,17 +99,18 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
      * street directions between the given points. THis method has been
      * completed for you.
      *
-     * The route to draw on the map should be added to the end of
-     * bearmaps.proj2d.utils.Constants.ROUTE_LIST. This is a LinkedList of longs,
-     * where each long corresponds to one point on the map.
+     * The route to draw on the map replaces the route of the client's session in
+     * bearmaps.proj2d.utils.Constants.ROUTES, as an array of the vertex ids along it. A
+     * client without a session is given one, through a cookie.
      *
      * Street directions can also be provided in the form of text as a return
      * value to this function.
      *
      * @param requestParams Map of the HTTP GET request's query parameters - the starting lat/long
-     *                      and the destination lat/lon.
+     *                      and the destination lat/lon - the search mode and snapping to
+     *                      use and the client's session.
      *
-     * @param response : Not used by this function. You may ignore.
+     * @param response : Where a new session's cookie is set.
      * @return A map of results for the front end as specified: <br>
      * "routing_success" : Boolean, whether the route list should be drawn (i.e. if not empty).
      *
@@ -57,13 +119,20 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
      * "directions"      : String. The text directions you want to display, in HTML format.
      */
     @Override
-    protected Map<String, Object> processRequest(Map<String, Double> requestParams, Response response) {
+    protected Map<String, Object> processRequest(RouteRequest requestParams,
+                                                 Response response) {
+        Map<String, Double> params = requestParams.params;
         List<Long> route = Router.shortestPath(
                 SEMANTIC_STREET_GRAPH,
-                requestParams.get("start_lon"), requestParams.get("start_lat"),
-                requestParams.get("end_lon"), requestParams.get("end_lat"));
-        ROUTE_LIST.addAll(route);
-        String directions = getDirectionsText();
+                params.get("start_lon"), params.get("start_lat"),
+                params.get("end_lon"), params.get("end_lat"),
+                requestParams.mode, requestParams.snapping, params.get(TIMEOUT_PARAM));
+        String session = requestParams.session;
+        if (session == null) {
+            session = newSession(response);
+        }
+        ROUTES.put(session, route.stream().mapToLong(Long::longValue).toArray());
+        String directions = getDirectionsText(route);
 
         Map<String, Object> routeParams = new HashMap<>();
         routeParams.put("routing_success", !route.isEmpty());
@@ -73,12 +142,12 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route and converts its directions into an HTML friendly
      * String to be passed to the frontend.
      */
-    private String getDirectionsText() {
+    private String getDirectionsText(List<Long> route) {
 
-        List<Router.NavigationDirection> directions = Router.routeDirections(SEMANTIC_STREET_GRAPH, ROUTE_LIST);
+        List<Router.NavigationDirection> directions = Router.routeDirections(SEMANTIC_STREET_GRAPH, route);
         if (directions == null || directions.isEmpty()) {
             return "";
         }
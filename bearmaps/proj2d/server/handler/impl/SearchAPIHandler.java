@@ -1,6 +1,8 @@
 package bearmaps.proj2d.server.handler.impl;
 
+import bearmaps.proj2d.server.EntityTags;
 import bearmaps.proj2d.server.handler.APIRouteHandler;
+import bearmaps.proj2d.utils.Constants;
 import spark.Request;
 import spark.Response;
 import bearmaps.proj2d.utils.Tuple;
@@ -22,6 +24,21 @@ public class SearchAPIHandler extends APIRouteHandler<Tuple<Set<String>, String>
         return new Tuple<>(request.queryParams(), request.queryParams("term"));
     }
 
+    /**
+     * Search results depend only on the query and the graph's name index, so they are tagged
+     * with the query and the stamp of the graph's OSM file.
+     */
+    @Override
+    protected String etag(Tuple<Set<String>, String> requestParams) {
+        return EntityTags.of("search", requestParams.getFirst().contains("full"),
+                requestParams.getSecond(), SEMANTIC_STREET_GRAPH.sourceStamp());
+    }
+
+    @Override
+    protected String cacheControl() {
+        return "public, max-age=" + Constants.SEARCH_MAX_AGE_SECONDS;
+    }
+
     @Override
     protected Object processRequest(Tuple<Set<String>, String> requestParams, Response response) {
         Set<String> reqParams = requestParams.getFirst();
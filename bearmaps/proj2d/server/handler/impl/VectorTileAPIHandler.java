@@ -0,0 +1,96 @@
+package bearmaps.proj2d.server.handler.impl;
+
+import bearmaps.proj2d.server.EntityTags;
+import bearmaps.proj2d.server.VectorTiles;
+import bearmaps.proj2d.server.handler.APIRouteHandler;
+import bearmaps.proj2d.utils.Constants;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.util.Map;
+
+import static spark.Spark.halt;
+
+/**
+ * Handles requests from clients that draw the map themselves for the vector tile of the
+ * roads at a depth, x and y of the tile pyramid; see VectorTiles for the encoding.
+ */
+public class VectorTileAPIHandler extends APIRouteHandler<Map<String, Double>, byte[]> {
+
+    /**
+     * Each vector tile request to the server will have the following parameters as keys in
+     * the params map:<br>
+     * z : depth of the tile, <br> x : column of the tile, <br> y : row of the tile.
+     **/
+    private static final String[] REQUIRED_VECTOR_TILE_REQUEST_PARAMS = {"z", "x", "y"};
+
+    @Override
+    protected Map<String, Double> parseRequestParams(Request request) {
+        Map<String, Double> params = getRequestParams(request,
+                REQUIRED_VECTOR_TILE_REQUEST_PARAMS);
+        for (double value : params.values()) {
+            if (value != Math.floor(value)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide whole numbers.");
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Returns the encoded tile, built on the first request for it and cached after that.
+     */
+    @Override
+    protected byte[] processRequest(Map<String, Double> requestParams, Response response) {
+        VectorTiles tiles = Constants.VECTOR_TILES;
+        if (tiles == null) {
+            halt(HALT_RESPONSE, "Request failed - vector tiles are not ready.");
+        }
+        byte[] tile = tiles.tile(requestParams.get("z").intValue(),
+                requestParams.get("x").intValue(), requestParams.get("y").intValue());
+        if (tile == null) {
+            halt(HALT_RESPONSE, "Request failed - no such tile.");
+        }
+        return tile;
+    }
+
+    /**
+     * A tile depends only on the graph and the encoding, so it is tagged with the stamp of
+     * the graph's OSM file and the encoding version.
+     */
+    @Override
+    protected String etag(Map<String, Double> requestParams) {
+        if (Constants.VECTOR_TILES == null) {
+            return null;
+        }
+        return EntityTags.of("vector_tile", requestParams.get("z"), requestParams.get("x"),
+                requestParams.get("y"), VectorTiles.VERSION,
+                Constants.SEMANTIC_STREET_GRAPH.sourceStamp());
+    }
+
+    @Override
+    protected String cacheControl() {
+        return "public, max-age=" + Constants.TILE_MAX_AGE_SECONDS;
+    }
+
+    /**
+     * Writes the tile as binary straight to the response, or answers Not Modified if the
+     * client already has it.
+     */
+    @Override
+    public Object handle(Request request, Response response) throws Exception {
+        Map<String, Double> requestParams = parseRequestParams(request);
+        if (notModified(request, response, etag(requestParams))) {
+            return "";
+        }
+        byte[] tile = processRequest(requestParams, response);
+        response.type("application/octet-stream");
+        HttpServletResponse raw = response.raw();
+        raw.setContentLength(tile.length);
+        OutputStream out = raw.getOutputStream();
+        out.write(tile);
+        out.flush();
+        return "";
+    }
+}
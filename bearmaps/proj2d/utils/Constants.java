@@ -1,10 +1,13 @@
 package bearmaps.proj2d.utils;
 
 import bearmaps.proj2d.AugmentedStreetMapGraph;
+import bearmaps.proj2d.server.RouteStore;
+import bearmaps.proj2d.server.TileCache;
+import bearmaps.proj2d.server.TilePyramid;
+import bearmaps.proj2d.server.VectorTiles;
+import bearmaps.proj2d.server.WeightedCache;
 
 import java.awt.*;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * A class holding all the constant values used throughout the project
@@ -27,9 +30,47 @@ public class Constants {
      **/
     public static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
 
+    /**
+     * The parsed OSM_DB_PATH graph and its search indexes are cached in this snapshot; it
+     * is rewritten whenever it is missing or older than the OSM file.
+     */
+    public static final String SNAPSHOT_PATH = "cache/berkeley-2019.snapshot";
+
+    /**
+     * Whether the server keeps the CSR arrays of the street graph (coordinates, edges and
+     * names) in the memory-mapped SNAPSHOT_PATH instead of on the heap. This shrinks the
+     * heap and shares the page cache between server processes, at some cost in search
+     * speed. The point index, landmark tables, contraction hierarchy and name search stay
+     * on the heap, and snapshots are limited to 2 GB (GraphSnapshot.MAX_BYTES).
+     */
+    public static final boolean GRAPH_OFF_HEAP = false;
+
+    /**
+     * The spatial index the server snaps locations to vertices with. A grid builds faster
+     * and answers about as fast on dense city data; a KD-tree copes with any spread of
+     * points and is saved in the snapshot.
+     */
+    public static final AugmentedStreetMapGraph.PointIndex POINT_INDEX =
+            AugmentedStreetMapGraph.PointIndex.KD_TREE;
+
+    /**
+     * The contraction hierarchy of the OSM_DB_PATH graph is cached in this file; it is
+     * rebuilt whenever it is missing or no longer matches the graph.
+     */
+    public static final String CH_CACHE_PATH = "cache/berkeley-2019.ch";
+
+    /** The number of landmarks of the ALT heuristic the A* routing modes use. */
+    public static final int LANDMARK_COUNT = 16;
+
     /** The tile images are in the IMG_ROOT folder. */
     public static final String IMG_ROOT = "data//proj2d_imgs/";
 
+    /**
+     * The tiles of IMG_ROOT are read from this archive, memory-mapped, when it exists. Build
+     * it with TileArchive's main; it is not rebuilt when the tiles change.
+     */
+    public static final String TILE_ARCHIVE_PATH = "cache/tiles.archive";
+
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
 
@@ -39,11 +80,79 @@ public class Constants {
     /** Each tile is 256x256 pixels. */
     public static final int TILE_SIZE = 256;
 
-    public static AugmentedStreetMapGraph SEMANTIC_STREET_GRAPH;
+    /** Tiles are quartered down to this depth; IMG_ROOT has tiles for every depth to it. */
+    public static final int MAX_DEPTH = 7;
+
+    /**
+     * Decoded tiles are cached up to this many bytes of pixels. A 256x256 tile takes 256 KB,
+     * so the default holds the 256 tiles of a full-screen raster several times over.
+     */
+    public static final long TILE_CACHE_BYTES = 256L * 1024 * 1024;
+
+    /** The number of threads that compose and encode rasters, shared by all requests. */
+    public static final int RASTER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** The deflate level of raster PNGs; 4 is the level ImageIO uses. */
+    public static final int PNG_COMPRESSION_LEVEL = 4;
 
     /**
-     * This is used to maintain a single List of route so that the same instance(object) is accessed
-     * from everywhere in the code. Enum is a cleaner way to achieve such a singleton pattern.
+     * The number of low priority threads that decode tiles ahead of raster requests; at
+     * most PREFETCH_QUEUE tiles wait for them, and the oldest are dropped first.
      */
-    public static final List<Long> ROUTE_LIST = new LinkedList<>();
+    public static final int PREFETCH_THREADS = Math.max(1, RASTER_THREADS / 2);
+    public static final int PREFETCH_QUEUE = 512;
+
+    /** The most tiles queued to prefetch after one raster, and clients followed at a time. */
+    public static final int PREFETCH_TILES = 64;
+    public static final int PREFETCH_CLIENTS = 1024;
+
+    /** The decoded tiles of IMG_ROOT, shared by every raster request. */
+    public static final TileCache TILE_CACHE = new TileCache(TILE_CACHE_BYTES);
+
+    /** The depths and ranges of the tiles of IMG_ROOT. */
+    public static final TilePyramid TILE_PYRAMID = new TilePyramid(ROOT_ULLON, ROOT_ULLAT,
+            ROOT_LRLON, ROOT_LRLAT, TILE_SIZE, MAX_DEPTH);
+
+    /**
+     * Rasters and vector tiles depend only on the map data, so browsers and proxies may
+     * keep them this long before checking with the server again.
+     */
+    public static final int TILE_MAX_AGE_SECONDS = 24 * 60 * 60;
+
+    /** Search results may be kept this long before checking with the server again. */
+    public static final int SEARCH_MAX_AGE_SECONDS = 60 * 60;
+
+    /**
+     * Encoded raster PNGs are cached up to this many bytes. A full-screen raster encodes to
+     * a few hundred KB, so the default holds a couple of hundred of them.
+     */
+    public static final long RASTER_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The encoded rasters of recent requests, keyed by their window of tiles. Rasters are
+     * drawn without routes, so every session shares them.
+     */
+    public static final WeightedCache<TilePyramid.Window, byte[]> RASTER_CACHE = new WeightedCache<>(
+            RASTER_CACHE_BYTES, png -> png.length);
+
+    public static AugmentedStreetMapGraph SEMANTIC_STREET_GRAPH;
+
+    /** Vector tiles are built down to this depth, which may be deeper than MAX_DEPTH. */
+    public static final int VECTOR_TILE_MAX_DEPTH = 12;
+
+    /** Encoded vector tiles are cached up to this many bytes. */
+    public static final long VECTOR_TILE_CACHE_BYTES = 32L * 1024 * 1024;
+
+    /** The vector tiles of SEMANTIC_STREET_GRAPH, set up along with it. */
+    public static VectorTiles VECTOR_TILES;
+
+    /** At most this many client sessions keep a route at a time. */
+    public static final int ROUTE_SESSION_CAPACITY = 10000;
+
+    /** The route of a session that has made no request for this long is forgotten. */
+    public static final long ROUTE_SESSION_IDLE_MILLIS = 30 * 60 * 1000;
+
+    /** The current route of each client session, shared by the routing and raster handlers. */
+    public static final RouteStore ROUTES = new RouteStore(ROUTE_SESSION_CAPACITY,
+            ROUTE_SESSION_IDLE_MILLIS);
 }
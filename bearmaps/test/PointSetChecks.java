@@ -0,0 +1,49 @@
+package bearmaps.test;
+
+import bearmaps.proj2ab.NaivePointSet;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.PointSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks of point sets against NaivePointSet, shared by the point set tests. */
+final class PointSetChecks {
+    private PointSetChecks() {
+    }
+
+    /**
+     * Builds a point set of random points with BUILD, seeding the points and queries with
+     * SEED, and checks that its nearest and within-radius queries answer as NaivePointSet's.
+     */
+    static void assertMatchesNaive(Function<List<Point>, PointSet> build, long seed) {
+        Random random = new Random(seed);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            /* Coarse coordinates, so that some points coincide and ties are exercised. */
+            points.add(new Point(-122.30 + random.nextInt(400) * 0.00025,
+                    37.82 + random.nextInt(300) * 0.00025));
+        }
+        /* Some point sets, like WeirdPointSet, shuffle the list they are given. */
+        PointSet set = build.apply(new ArrayList<>(points));
+        NaivePointSet naive = new NaivePointSet(points);
+        for (int q = 0; q < 300; q++) {
+            double x = -122.32 + random.nextDouble() * 0.14;
+            double y = 37.80 + random.nextDouble() * 0.11;
+            int k = 1 + random.nextInt(40);
+            assertEquals(naive.kNearest(x, y, k), set.kNearest(x, y, k));
+            double miles = random.nextDouble() * 0.5;
+            List<Point> within = set.withinRadius(x, y, miles);
+            assertEquals(naive.withinRadius(x, y, miles), within);
+            for (Point p : within) {
+                assertTrue(Point.distance(p, new Point(x, y)) <= miles);
+            }
+        }
+        assertEquals(naive.kNearest(-122.2, 37.9, 5000), set.kNearest(-122.2, 37.9, 5000));
+    }
+}
@@ -0,0 +1,71 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.AugmentedStreetMapGraph;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/** Checks that closestBatch answers every query as closest does. */
+public class TestClosestBatch {
+    private static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
+    private static AugmentedStreetMapGraph graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (!initialized) {
+            graph = new AugmentedStreetMapGraph(OSM_DB_PATH);
+            initialized = true;
+        }
+    }
+
+    @Test
+    public void testBatchMatchesClosest() {
+        Random random = new Random(25);
+        /* Enough queries to be split across tasks, some of them off the map. */
+        int n = 50000;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        long[] expected = new long[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = -122.32 + random.nextDouble() * 0.14;
+            lats[i] = 37.80 + random.nextDouble() * 0.11;
+            expected[i] = graph.closest(lons[i], lats[i]);
+        }
+        long[] out = new long[n];
+        graph.closestBatch(lons, lats, out);
+        assertArrayEquals(expected, out);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            long[] pooled = new long[n];
+            graph.closestBatch(lons, lats, pooled, pool);
+            assertArrayEquals(expected, pooled);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallAndDegenerateBatches() {
+        long[] out = new long[0];
+        graph.closestBatch(new double[0], new double[0], out);
+
+        /* Every query at the same place. */
+        double[] lons = {-122.26, -122.26, -122.26};
+        double[] lats = {37.87, 37.87, 37.87};
+        out = new long[3];
+        graph.closestBatch(lons, lats, out);
+        long closest = graph.closest(-122.26, 37.87);
+        assertArrayEquals(new long[] {closest, closest, closest}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedArrays() {
+        graph.closestBatch(new double[2], new double[3], new long[2]);
+    }
+}
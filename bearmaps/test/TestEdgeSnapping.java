@@ -0,0 +1,129 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AStarSolver;
+import bearmaps.proj2c.EdgeSnap;
+import bearmaps.proj2c.SolverOutcome;
+import bearmaps.proj2d.AugmentedStreetMapGraph;
+import bearmaps.proj2d.Router;
+import bearmaps.proj2d.server.SegmentGrid;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks snapping onto the nearest road and routing between snapped points. */
+public class TestEdgeSnapping {
+    private static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
+    private static AugmentedStreetMapGraph graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (!initialized) {
+            graph = new AugmentedStreetMapGraph(OSM_DB_PATH);
+            initialized = true;
+        }
+    }
+
+    @Test
+    public void testNearestSegmentMatchesLinearScan() {
+        SegmentGrid grid = graph.segmentGrid();
+        Random random = new Random(23);
+        for (int i = 0; i < 300; i++) {
+            /* Some points fall outside the map, to exercise the edges of the grid. */
+            double lon = -122.32 + random.nextDouble() * 0.14;
+            double lat = 37.80 + random.nextDouble() * 0.11;
+            double scale = Math.cos(Math.toRadians(lat));
+            double best = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < grid.size(); s++) {
+                best = Math.min(best, squaredDistance(grid, s, lon, lat, scale));
+            }
+            int found = grid.nearest(lon, lat);
+            assertEquals(best, squaredDistance(grid, found, lon, lat, scale), 1e-18);
+        }
+    }
+
+    @Test
+    public void testSnappedRoutesAreShortest() {
+        Random random = new Random(5);
+        for (int i = 0; i < 40; i++) {
+            EdgeSnap start = graph.snap(-122.29 + random.nextDouble() * 0.07,
+                    37.84 + random.nextDouble() * 0.04);
+            EdgeSnap end = graph.snap(-122.29 + random.nextDouble() * 0.07,
+                    37.84 + random.nextDouble() * 0.04);
+            AStarSolver solver = new AStarSolver(graph, start, end, Router.DEFAULT_TIMEOUT);
+
+            /* The best of leaving and entering the two roads by each of their ends. */
+            double expected = Double.POSITIVE_INFINITY;
+            int[] froms = {start.source(), start.target()};
+            double[] fromOffsets = {start.backward() ? start.toSource() : Double.NaN,
+                    start.forward() ? start.toTarget() : Double.NaN};
+            int[] tos = {end.source(), end.target()};
+            double[] toOffsets = {end.forward() ? end.toSource() : Double.NaN,
+                    end.backward() ? end.toTarget() : Double.NaN};
+            for (int a = 0; a < 2; a++) {
+                for (int b = 0; b < 2; b++) {
+                    if (Double.isNaN(fromOffsets[a]) || Double.isNaN(toOffsets[b])) {
+                        continue;
+                    }
+                    AStarSolver between = new AStarSolver(graph, graph.idAt(froms[a]),
+                            graph.idAt(tos[b]), Router.DEFAULT_TIMEOUT);
+                    if (between.outcome() == SolverOutcome.SOLVED) {
+                        expected = Math.min(expected, fromOffsets[a]
+                                + between.solutionWeight() + toOffsets[b]);
+                    }
+                }
+            }
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertEquals(SolverOutcome.UNSOLVABLE, solver.outcome());
+                continue;
+            }
+            assertEquals(SolverOutcome.SOLVED, solver.outcome());
+            assertEquals(expected, solver.solutionWeight(), 1e-9);
+            List<Long> route = solver.solution();
+            for (int j = 1; j < route.size(); j++) {
+                assertTrue(graph.findEdge(graph.indexOf(route.get(j - 1)),
+                        graph.indexOf(route.get(j))) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSameSegmentFollowsTheRoad() {
+        SegmentGrid grid = graph.segmentGrid();
+        int s = grid.nearest(-122.26, 37.87);
+        int v = grid.source(s);
+        int w = grid.target(s);
+        double lon = graph.lonAt(v) + 0.2 * (graph.lonAt(w) - graph.lonAt(v));
+        double lat = graph.latAt(v) + 0.2 * (graph.latAt(w) - graph.latAt(v));
+        double destLon = graph.lonAt(v) + 0.7 * (graph.lonAt(w) - graph.lonAt(v));
+        double destLat = graph.latAt(v) + 0.7 * (graph.latAt(w) - graph.latAt(v));
+        EdgeSnap start = graph.snap(lon, lat);
+        EdgeSnap end = graph.snap(destLon, destLat);
+        assertTrue(start.sameSegment(end));
+        assertEquals(lon, start.lon(), 1e-9);
+        assertEquals(lat, start.lat(), 1e-9);
+
+        AStarSolver solver = new AStarSolver(graph, start, end, Router.DEFAULT_TIMEOUT);
+        assertEquals(SolverOutcome.SOLVED, solver.outcome());
+        assertEquals(end.toSource() - start.toSource(), solver.solutionWeight(), 1e-9);
+        assertEquals(1, solver.solution().size());
+        assertEquals(graph.idAt(v), (long) solver.solution().get(0));
+        assertEquals(solver.solution(), Router.shortestPath(graph, lon, lat, destLon, destLat,
+                Router.Mode.ASTAR, Router.Snapping.EDGE, Router.DEFAULT_TIMEOUT));
+    }
+
+    private static double squaredDistance(SegmentGrid grid, int s, double lon, double lat,
+                                          double scale) {
+        int v = grid.source(s);
+        int w = grid.target(s);
+        double t = grid.project(s, lon, lat);
+        double x = (graph.lonAt(v) + t * (graph.lonAt(w) - graph.lonAt(v)) - lon) * scale;
+        double y = graph.latAt(v) + t * (graph.latAt(w) - graph.latAt(v)) - lat;
+        return x * x + y * y;
+    }
+}
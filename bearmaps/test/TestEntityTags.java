@@ -0,0 +1,35 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.EntityTags;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that entity tags are stable and that If-None-Match headers are matched. */
+public class TestEntityTags {
+    @Test
+    public void testTagsDependOnEveryPart() {
+        String tag = EntityTags.of("search", true, "berkeley", 42L);
+        assertEquals(tag, EntityTags.of("search", true, "berkeley", 42L));
+        assertNotEquals(tag, EntityTags.of("search", false, "berkeley", 42L));
+        assertNotEquals(tag, EntityTags.of("search", true, "berkeley", 43L));
+        /* Parts are kept apart, so moving text between them changes the tag. */
+        assertNotEquals(EntityTags.of("ab", "c"), EntityTags.of("a", "bc"));
+        assertTrue(tag.matches("\"[0-9a-f]{32}\""));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String tag = EntityTags.of("raster", "d3_x2-4_y1-3");
+        assertTrue(EntityTags.matches(tag, tag));
+        assertTrue(EntityTags.matches("\"other\", " + tag, tag));
+        assertTrue(EntityTags.matches("W/" + tag, tag));
+        assertTrue(EntityTags.matches("*", tag));
+        assertFalse(EntityTags.matches(null, tag));
+        assertFalse(EntityTags.matches("\"other\"", tag));
+        assertFalse(EntityTags.matches(tag.substring(1, tag.length() - 1), tag));
+    }
+}
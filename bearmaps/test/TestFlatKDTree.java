@@ -0,0 +1,115 @@
+package bearmaps.test;
+
+import bearmaps.proj2ab.FlatKDTree;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.WeirdPointSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Checks the flat KD-tree against a linear scan of its points and NaivePointSet. */
+public class TestFlatKDTree {
+    @Test
+    public void testNearestMatchesLinearScan() {
+        Random random = new Random(21);
+        double[] xs = new double[5000];
+        double[] ys = new double[5000];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = -122.30 + random.nextDouble() * 0.1;
+            ys[i] = 37.82 + random.nextDouble() * 0.08;
+        }
+        FlatKDTree tree = new FlatKDTree(xs, ys);
+        assertEquals(xs.length, tree.size());
+        for (int q = 0; q < 2000; q++) {
+            /* Some queries fall outside the points, to exercise the far sides. */
+            double x = -122.35 + random.nextDouble() * 0.2;
+            double y = 37.78 + random.nextDouble() * 0.16;
+            assertEquals(linearScan(xs, ys, x, y), tree.nearestIndex(x, y));
+        }
+    }
+
+    @Test
+    public void testDuplicatesReturnTheLast() {
+        double[] xs = {-122.25, -122.26, -122.25, -122.24, -122.25};
+        double[] ys = {37.85, 37.86, 37.85, 37.84, 37.85};
+        FlatKDTree tree = new FlatKDTree(xs, ys);
+        assertEquals(4, tree.nearestIndex(-122.25, 37.85));
+        assertEquals(4, tree.nearestIndex(-122.2501, 37.8501));
+        assertEquals(1, tree.nearestIndex(-122.27, 37.87));
+    }
+
+    @Test
+    public void testRestoreGivesTheSameTree() {
+        Random random = new Random(7);
+        List<Point> points = new ArrayList<>();
+        double[] xs = new double[1000];
+        double[] ys = new double[1000];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextDouble() * 10;
+            ys[i] = random.nextDouble() * 10;
+            points.add(new Point(xs[i], ys[i]));
+        }
+        FlatKDTree tree = new FlatKDTree(points);
+        FlatKDTree restored = FlatKDTree.restore(xs, ys, tree.order());
+        for (int q = 0; q < 500; q++) {
+            double x = random.nextDouble() * 12 - 1;
+            double y = random.nextDouble() * 12 - 1;
+            assertEquals(tree.nearestIndex(x, y), restored.nearestIndex(x, y));
+            Point nearest = tree.nearest(x, y);
+            int expected = linearScan(xs, ys, x, y);
+            assertEquals(xs[expected], nearest.getX(), 0);
+            assertEquals(ys[expected], nearest.getY(), 0);
+        }
+    }
+
+    @Test
+    public void testKNearestAndRadiusMatchNaive() {
+        PointSetChecks.assertMatchesNaive(FlatKDTree::new, 22);
+    }
+
+    @Test
+    public void testWeirdPointSetAgrees() {
+        PointSetChecks.assertMatchesNaive(WeirdPointSet::new, 23);
+    }
+
+    @Test
+    public void testIndicesFollowInputOrder() {
+        double[] xs = {-122.25, -122.26, -122.25, -122.24, -122.30};
+        double[] ys = {37.85, 37.86, 37.85, 37.84, 37.90};
+        FlatKDTree tree = new FlatKDTree(xs, ys);
+        assertArrayEquals(new int[] {2, 0, 1, 3}, tree.kNearestIndices(-122.25, 37.85, 4));
+        assertArrayEquals(new int[] {2, 0, 1, 3, 4}, tree.kNearestIndices(-122.25, 37.85, 9));
+        assertArrayEquals(new int[0], tree.kNearestIndices(-122.25, 37.85, 0));
+        assertArrayEquals(new int[] {2, 0}, tree.withinRadiusIndices(-122.25, 37.85, 0));
+        assertEquals(Collections.emptyList(), tree.withinRadius(0, 0, 1));
+    }
+
+    @Test
+    public void testEmpty() {
+        FlatKDTree tree = new FlatKDTree(new double[0], new double[0]);
+        assertEquals(-1, tree.nearestIndex(0, 0));
+        assertNull(tree.nearest(0, 0));
+    }
+
+    /** Returns the index of the point nearest to X, Y, the last of any at the same distance. */
+    private static int linearScan(double[] xs, double[] ys, double x, double y) {
+        Point goal = new Point(x, y);
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < xs.length; i++) {
+            double distance = Point.distance(new Point(xs[i], ys[i]), goal);
+            if (distance <= bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,120 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.streetmap.GraphSnapshot;
+import bearmaps.proj2d.AugmentedStreetMapGraph;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a graph restored from a snapshot, on or off the heap, is the graph that
+ * was saved.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
+    private static AugmentedStreetMapGraph graph;
+    private static boolean initialized = false;
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        if (!initialized) {
+            graph = new AugmentedStreetMapGraph(OSM_DB_PATH);
+            initialized = true;
+        }
+        snapshotFile = File.createTempFile("graph", ".snapshot");
+        snapshotFile.deleteOnExit();
+        GraphSnapshot.Writer writer = new GraphSnapshot.Writer(
+                GraphSnapshot.sourceStamp(OSM_DB_PATH));
+        graph.writeSnapshot(writer);
+        writer.write(snapshotFile.getPath());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        checkRestored(AugmentedStreetMapGraph.load(OSM_DB_PATH, snapshotFile.getPath(), false));
+    }
+
+    @Test
+    public void testOffHeapRoundTrip() {
+        checkRestored(AugmentedStreetMapGraph.load(OSM_DB_PATH, snapshotFile.getPath(), true));
+    }
+
+    /** Checks that RESTORED has the vertices, edges and snapping of the parsed graph. */
+    private void checkRestored(AugmentedStreetMapGraph restored) {
+        assertEquals(graph.vertexCount(), restored.vertexCount());
+        assertEquals(graph.edgeCount(), restored.edgeCount());
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            assertEquals(graph.idAt(v), restored.idAt(v));
+            assertEquals(graph.lonAt(v), restored.lonAt(v), 0);
+            assertEquals(graph.latAt(v), restored.latAt(v), 0);
+            assertEquals(graph.name(graph.idAt(v)), restored.name(restored.idAt(v)));
+            assertEquals(graph.edgeStart(v), restored.edgeStart(v));
+            assertEquals(graph.inEdgeStart(v), restored.inEdgeStart(v));
+            assertEquals(graph.indexOf(graph.idAt(v)), restored.indexOf(graph.idAt(v)));
+        }
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            assertEquals(graph.edgeTarget(e), restored.edgeTarget(e));
+            assertEquals(graph.edgeWeight(e), restored.edgeWeight(e), 0);
+            assertEquals(graph.wayName(graph.edgeWayId(e)), restored.wayName(restored.edgeWayId(e)));
+            assertEquals(graph.edgeHighway(e), restored.edgeHighway(e));
+            assertEquals(graph.inEdgeSource(e), restored.inEdgeSource(e));
+            assertEquals(graph.inEdge(e), restored.inEdge(e));
+        }
+
+        Random random = new Random(61);
+        for (int i = 0; i < 100; i++) {
+            double lon = -122.30 + random.nextDouble() * 0.09;
+            double lat = 37.82 + random.nextDouble() * 0.07;
+            assertEquals(graph.closest(lon, lat), restored.closest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testStaleSnapshotIsRejected() throws Exception {
+        try {
+            GraphSnapshot.open(snapshotFile.getPath(), GraphSnapshot.sourceStamp(OSM_DB_PATH) + 1);
+            fail("A snapshot of a different source was opened.");
+        } catch (IOException expected) {
+            // The caller falls back to parsing the XML.
+        }
+    }
+
+    @Test
+    public void testOversizedSnapshotIsRejected() throws Exception {
+        /* A sparse file, so this takes no disk space. */
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.setLength(GraphSnapshot.MAX_BYTES + 1);
+        }
+        try {
+            GraphSnapshot.open(snapshotFile.getPath(), GraphSnapshot.sourceStamp(OSM_DB_PATH));
+            fail("A snapshot larger than one mapping was opened.");
+        } catch (IOException expected) {
+            // The caller falls back to parsing the XML.
+        }
+        checkRestored(AugmentedStreetMapGraph.load(OSM_DB_PATH, snapshotFile.getPath(), true));
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRejected() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.seek(file.length() / 2);
+            int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 1);
+        }
+        try {
+            GraphSnapshot.open(snapshotFile.getPath(), GraphSnapshot.sourceStamp(OSM_DB_PATH));
+            fail("A corrupt snapshot was opened.");
+        } catch (IOException expected) {
+            // The caller falls back to parsing the XML.
+        }
+    }
+}
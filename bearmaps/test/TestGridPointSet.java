@@ -0,0 +1,71 @@
+package bearmaps.test;
+
+import bearmaps.proj2ab.FlatKDTree;
+import bearmaps.proj2ab.GridPointSet;
+import bearmaps.proj2d.AugmentedStreetMapGraph;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Checks the grid point set against the KD-tree and NaivePointSet. */
+public class TestGridPointSet {
+    private static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
+
+    @Test
+    public void testNearestMatchesKDTree() {
+        Random random = new Random(24);
+        double[] xs = new double[20000];
+        double[] ys = new double[20000];
+        for (int i = 0; i < xs.length; i++) {
+            /* Dense clusters in an empty box, so that searches cross empty cells. */
+            double cx = -122.30 + random.nextInt(5) * 0.02;
+            double cy = 37.82 + random.nextInt(4) * 0.02;
+            xs[i] = cx + random.nextGaussian() * 0.002;
+            ys[i] = cy + random.nextGaussian() * 0.002;
+        }
+        GridPointSet grid = new GridPointSet(xs, ys);
+        FlatKDTree tree = new FlatKDTree(xs, ys);
+        assertEquals(xs.length, grid.size());
+        for (int q = 0; q < 3000; q++) {
+            double x = -122.35 + random.nextDouble() * 0.2;
+            double y = 37.78 + random.nextDouble() * 0.16;
+            assertEquals(tree.nearestIndex(x, y), grid.nearestIndex(x, y));
+        }
+    }
+
+    @Test
+    public void testKNearestAndRadiusMatchNaive() {
+        PointSetChecks.assertMatchesNaive(GridPointSet::new, 42);
+    }
+
+    @Test
+    public void testDegenerateSets() {
+        GridPointSet empty = new GridPointSet(new double[0], new double[0]);
+        assertEquals(-1, empty.nearestIndex(0, 0));
+        assertNull(empty.nearest(0, 0));
+        assertEquals(0, empty.kNearest(0, 0, 3).size());
+
+        /* Points on one meridian, and duplicates, where the latest wins. */
+        double[] xs = {-122.25, -122.25, -122.25, -122.25};
+        double[] ys = {37.85, 37.86, 37.87, 37.86};
+        GridPointSet line = new GridPointSet(xs, ys);
+        assertEquals(3, line.nearestIndex(-122.2, 37.861));
+        assertEquals(0, line.nearestIndex(-123, 30));
+    }
+
+    @Test
+    public void testGraphClosestWithGrid() {
+        AugmentedStreetMapGraph tree = new AugmentedStreetMapGraph(OSM_DB_PATH);
+        AugmentedStreetMapGraph grid = new AugmentedStreetMapGraph(OSM_DB_PATH,
+                AugmentedStreetMapGraph.PointIndex.GRID);
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            double lon = -122.30 + random.nextDouble() * 0.09;
+            double lat = 37.82 + random.nextDouble() * 0.07;
+            assertEquals(tree.closest(lon, lat), grid.closest(lon, lat));
+        }
+    }
+}
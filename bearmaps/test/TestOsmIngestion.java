@@ -0,0 +1,85 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a malformed OSM XML file fails to load rather than yielding the part of the
+ * graph read before the error, and that the parser thread does not outlive the failure.
+ * Each file has many well-formed ways after the bad one, more than the parser may queue.
+ */
+public class TestOsmIngestion {
+    private static final int WAYS = 50000;
+
+    @Test
+    public void testWellFormedFileLoads() throws IOException {
+        StreetMapGraph graph = new StreetMapGraph(write(null).getPath());
+        assertEquals(3, graph.vertexCount());
+        assertEquals(4 * WAYS, graph.edgeCount());
+    }
+
+    @Test
+    public void testMalformedWayFailsTheParse() throws IOException {
+        /* A tag with no key fails the SAX handler on the parser thread. */
+        assertFails(write("    <tag v=\"residential\"/>"));
+    }
+
+    @Test
+    public void testMalformedRefFailsTheDecoder() throws IOException {
+        /* A ref that is not a number fails the decoder on the calling thread. */
+        assertFails(write("    <nd ref=\"two\"/>\n    <tag k=\"highway\" v=\"residential\"/>"));
+    }
+
+    private static void assertFails(File file) {
+        try {
+            new StreetMapGraph(file.getPath());
+            fail("Loaded a malformed file.");
+        } catch (UncheckedIOException e) {
+            // Expected.
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("osm-parser") && thread.isAlive());
+        }
+    }
+
+    /**
+     * Writes three nodes and WAYS copies of a residential way through them, with a way
+     * holding BAD_WAY_BODY first if that is not null.
+     */
+    private static File write(String badWayBody) throws IOException {
+        File file = File.createTempFile("malformed", ".osm.xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            out.println("  <node id=\"1\" lat=\"37.87\" lon=\"-122.26\"/>");
+            out.println("  <node id=\"2\" lat=\"37.88\" lon=\"-122.26\"/>");
+            out.println("  <node id=\"3\" lat=\"37.88\" lon=\"-122.25\"/>");
+            if (badWayBody != null) {
+                out.println("  <way id=\"1\">");
+                out.println("    <nd ref=\"1\"/>");
+                out.println(badWayBody);
+                out.println("  </way>");
+            }
+            for (int w = 0; w < WAYS; w++) {
+                out.println("  <way id=\"" + (w + 2) + "\">");
+                out.println("    <nd ref=\"1\"/>");
+                out.println("    <nd ref=\"2\"/>");
+                out.println("    <nd ref=\"3\"/>");
+                out.println("    <tag k=\"highway\" v=\"residential\"/>");
+                out.println("  </way>");
+            }
+            out.println("</osm>");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,290 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a PBF file loads to the same graph as the equivalent XML file. Both files
+ * are written by the test: a handful of nodes, a named node on no way, an unused node,
+ * two allowed ways (one referring to a missing node) and a footway.
+ */
+public class TestPbfLoader {
+    /* Node ids and coordinates, in units of 1e-7 degrees. */
+    private static final long[] IDS = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final long[] LATS = {378712345, 378715000, 378709876, 378720001,
+        378701234, 378698765, 378730000, 378650000};
+    private static final long[] LONS = {-1222581234, -1222575000, -1222569999, -1222560000,
+        -1222555555, -1222549876, -1222600000, -1222500000};
+    /** The index into IDS of the node stored as a plain node rather than a dense one. */
+    private static final int PLAIN_NODE = 5;
+    private static final int NAMED_NODE = 6;
+    private static final String NODE_NAME = "Caf\u00e9 Strada";
+
+    private File xmlFile;
+    private File pbfFile;
+
+    @Before
+    public void setUp() throws Exception {
+        xmlFile = File.createTempFile("sample", ".osm.xml");
+        xmlFile.deleteOnExit();
+        pbfFile = File.createTempFile("sample", ".osm.pbf");
+        pbfFile.deleteOnExit();
+        writeXml(xmlFile);
+        writePbf(pbfFile);
+    }
+
+    @Test
+    public void testPbfMatchesXml() {
+        StreetMapGraph xml = new StreetMapGraph(xmlFile.getPath());
+        StreetMapGraph pbf = new StreetMapGraph(pbfFile.getPath());
+
+        /* Nodes 4 and 8 are on no allowed way and unnamed; way 102 loses its last edge. */
+        assertEquals(6, xml.vertexCount());
+        assertEquals(8, xml.edgeCount());
+        assertEquals(xml.vertexCount(), pbf.vertexCount());
+        assertEquals(xml.edgeCount(), pbf.edgeCount());
+        for (int v = 0; v < xml.vertexCount(); v++) {
+            assertEquals(xml.idAt(v), pbf.idAt(v));
+            assertEquals(xml.lonAt(v), pbf.lonAt(v), 0);
+            assertEquals(xml.latAt(v), pbf.latAt(v), 0);
+            assertEquals(xml.name(xml.idAt(v)), pbf.name(pbf.idAt(v)));
+            assertEquals(xml.edgeStart(v), pbf.edgeStart(v));
+        }
+        for (int e = 0; e < xml.edgeCount(); e++) {
+            assertEquals(xml.edgeTarget(e), pbf.edgeTarget(e));
+            assertEquals(xml.edgeWeight(e), pbf.edgeWeight(e), 0);
+            assertEquals(xml.wayName(xml.edgeWayId(e)), pbf.wayName(pbf.edgeWayId(e)));
+            assertEquals(xml.edgeHighway(e), pbf.edgeHighway(e));
+        }
+        assertEquals(NODE_NAME, pbf.name(IDS[NAMED_NODE]));
+    }
+
+    /* The sample as XML. */
+
+    private static void writeXml(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            for (int i = 0; i < IDS.length; i++) {
+                out.print("  <node id=\"" + IDS[i] + "\" lat=\"" + degrees(LATS[i])
+                        + "\" lon=\"" + degrees(LONS[i]) + "\"");
+                if (i == NAMED_NODE) {
+                    out.println(">");
+                    out.println("    <tag k=\"name\" v=\"" + NODE_NAME + "\"/>");
+                    out.println("  </node>");
+                } else {
+                    out.println("/>");
+                }
+            }
+            writeXmlWay(out, 100, new long[]{1, 2, 3}, "residential", "Oak Street");
+            writeXmlWay(out, 101, new long[]{3, 4}, "footway", "Oak Path");
+            writeXmlWay(out, 102, new long[]{3, 5, 6, 9}, "primary", null);
+            out.println("</osm>");
+        }
+    }
+
+    private static void writeXmlWay(PrintWriter out, long id, long[] refs, String highway,
+                                    String name) {
+        out.println("  <way id=\"" + id + "\">");
+        for (long ref : refs) {
+            out.println("    <nd ref=\"" + ref + "\"/>");
+        }
+        out.println("    <tag k=\"highway\" v=\"" + highway + "\"/>");
+        if (name != null) {
+            out.println("    <tag k=\"name\" v=\"" + name + "\"/>");
+        }
+        out.println("  </way>");
+    }
+
+    private static String degrees(long value) {
+        return BigDecimal.valueOf(value, 7).toPlainString();
+    }
+
+    /* The sample as PBF: a header, a block of dense nodes, a block holding one plain node
+     * and a block of ways, with the data blocks alternately compressed and not. */
+
+    private static void writePbf(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            Proto header = new Proto();
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "DenseNodes");
+            writeBlob(out, "OSMHeader", header.toByteArray(), false);
+
+            /* String table: 0 is always empty, 1 = "name", 2 = the node name. */
+            Proto dense = new Proto();
+            Proto ids = new Proto();
+            Proto lats = new Proto();
+            Proto lons = new Proto();
+            Proto keysValues = new Proto();
+            long lastId = 0;
+            long lastLat = 0;
+            long lastLon = 0;
+            for (int i = 0; i < IDS.length; i++) {
+                if (i == PLAIN_NODE) {
+                    continue;
+                }
+                ids.signedVarint(IDS[i] - lastId);
+                lats.signedVarint(LATS[i] - lastLat);
+                lons.signedVarint(LONS[i] - lastLon);
+                lastId = IDS[i];
+                lastLat = LATS[i];
+                lastLon = LONS[i];
+                if (i == NAMED_NODE) {
+                    keysValues.varint(1);
+                    keysValues.varint(2);
+                }
+                keysValues.varint(0);
+            }
+            dense.message(1, ids);
+            dense.message(8, lats);
+            dense.message(9, lons);
+            dense.message(10, keysValues);
+            Proto denseGroup = new Proto();
+            denseGroup.message(2, dense);
+            writeBlock(out, new String[]{"", "name", NODE_NAME}, denseGroup, true);
+
+            Proto node = new Proto();
+            node.field(1, 0);
+            node.signedVarint(IDS[PLAIN_NODE]);
+            node.field(8, 0);
+            node.signedVarint(LATS[PLAIN_NODE]);
+            node.field(9, 0);
+            node.signedVarint(LONS[PLAIN_NODE]);
+            Proto nodeGroup = new Proto();
+            nodeGroup.message(1, node);
+            writeBlock(out, new String[]{""}, nodeGroup, false);
+
+            /* String table: 1 = "highway", 2 = "name", then the values. */
+            String[] strings = {"", "highway", "name", "residential", "Oak Street", "footway",
+                "Oak Path", "primary"};
+            Proto ways = new Proto();
+            ways.message(3, way(100, new long[]{1, 2, 3}, new int[]{1, 2}, new int[]{3, 4}));
+            ways.message(3, way(101, new long[]{3, 4}, new int[]{1, 2}, new int[]{5, 6}));
+            ways.message(3, way(102, new long[]{3, 5, 6, 9}, new int[]{1}, new int[]{7}));
+            writeBlock(out, strings, ways, true);
+        }
+    }
+
+    private static Proto way(long id, long[] refs, int[] keys, int[] values) {
+        Proto way = new Proto();
+        way.field(1, 0);
+        way.varint(id);
+        Proto packedKeys = new Proto();
+        Proto packedValues = new Proto();
+        for (int i = 0; i < keys.length; i++) {
+            packedKeys.varint(keys[i]);
+            packedValues.varint(values[i]);
+        }
+        way.message(2, packedKeys);
+        way.message(3, packedValues);
+        Proto packedRefs = new Proto();
+        long last = 0;
+        for (long ref : refs) {
+            packedRefs.signedVarint(ref - last);
+            last = ref;
+        }
+        way.message(8, packedRefs);
+        return way;
+    }
+
+    private static void writeBlock(OutputStream out, String[] strings, Proto group,
+                                   boolean compress) throws IOException {
+        Proto table = new Proto();
+        for (String s : strings) {
+            table.string(1, s);
+        }
+        Proto block = new Proto();
+        block.message(1, table);
+        block.message(2, group);
+        block.field(17, 0);
+        block.varint(100);
+        writeBlob(out, "OSMData", block.toByteArray(), compress);
+    }
+
+    private static void writeBlob(OutputStream out, String type, byte[] data, boolean compress)
+            throws IOException {
+        Proto blob = new Proto();
+        if (compress) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[data.length + 64];
+            int length = deflater.deflate(buffer);
+            deflater.end();
+            blob.field(2, 0);
+            blob.varint(data.length);
+            blob.field(3, 2);
+            blob.varint(length);
+            blob.out.write(buffer, 0, length);
+        } else {
+            blob.field(1, 2);
+            blob.varint(data.length);
+            blob.out.write(data, 0, data.length);
+        }
+        byte[] blobBytes = blob.toByteArray();
+
+        Proto header = new Proto();
+        header.string(1, type);
+        header.field(3, 0);
+        header.varint(blobBytes.length);
+        byte[] headerBytes = header.toByteArray();
+
+        DataOutputStream framed = new DataOutputStream(out);
+        framed.writeInt(headerBytes.length);
+        framed.write(headerBytes);
+        framed.write(blobBytes);
+    }
+
+    /** A minimal protobuf encoder. */
+    private static class Proto {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void field(int number, int wireType) {
+            varint(number << 3 | wireType);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void signedVarint(long value) {
+            varint(value << 1 ^ value >> 63);
+        }
+
+        void string(int number, String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            field(number, 2);
+            varint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void message(int number, Proto message) {
+            byte[] bytes = message.toByteArray();
+            field(number, 2);
+            varint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
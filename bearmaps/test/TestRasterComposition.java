@@ -0,0 +1,108 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.PngEncoder;
+import bearmaps.proj2d.server.TileCompositor;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that rasters composed and encoded in parallel are pixel for pixel the rasters
+ * the sequential drawImage and ImageIO path produces.
+ */
+public class TestRasterComposition {
+    private static final int TILE_SIZE = 64;
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /** Returns a tile of random rectangles, with transparency if ALPHA is true. */
+    private static BufferedImage tile(Random random, boolean alpha) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = tile.createGraphics();
+        for (int i = 0; i < 20; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    alpha ? 255 * (i % 2) : 255));
+            g.fillRect(random.nextInt(TILE_SIZE), random.nextInt(TILE_SIZE),
+                    random.nextInt(TILE_SIZE), random.nextInt(TILE_SIZE));
+        }
+        g.dispose();
+        return tile;
+    }
+
+    @Test
+    public void testComposeMatchesDrawImage() {
+        Random random = new Random(61);
+        String[][] grid = new String[3][5];
+        Map<String, BufferedImage> tiles = new HashMap<>();
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                grid[r][c] = "d2_x" + c + "_y" + r + ".png";
+                if (r != 1 || c != 3) {
+                    tiles.put(grid[r][c], tile(random, (r + c) % 4 == 0));
+                }
+            }
+        }
+
+        BufferedImage expected = new BufferedImage(5 * TILE_SIZE, 3 * TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = expected.createGraphics();
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                g.drawImage(tiles.get(grid[r][c]), c * TILE_SIZE, r * TILE_SIZE, null);
+            }
+        }
+        g.dispose();
+
+        BufferedImage actual = new TileCompositor(pool, TILE_SIZE).compose(grid, tiles::get);
+        assertSamePixels(expected, actual);
+    }
+
+    @Test
+    public void testEncodedImageDecodes() throws Exception {
+        Random random = new Random(61);
+        BufferedImage image = new BufferedImage(300, 230, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(tile(random, false), 0, 0, 300, 230, null);
+        g.dispose();
+        for (int i = 0; i < 2000; i++) {
+            image.setRGB(random.nextInt(300), random.nextInt(230), random.nextInt());
+        }
+
+        for (int stripes : new int[]{1, 3, 16}) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            new PngEncoder(pool, Deflater.DEFAULT_COMPRESSION, stripes).write(image, png);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+            assertSamePixels(image, decoded);
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("Pixel (" + x + ", " + y + ")",
+                        expected.getRGB(x, y) & 0xffffff, actual.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.RouteOverlay;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Checks that routes are clipped to the raster and simplified before being sent. */
+public class TestRouteOverlay {
+    @Test
+    public void testStraightRunsCollapse() {
+        double[] x = new double[101];
+        double[] y = new double[101];
+        for (int i = 0; i <= 100; i++) {
+            x[i] = i;
+            y[i] = i <= 50 ? 10 + (i % 2) * 0.2 : 10 + (i - 50);
+        }
+        List<int[]> polylines = RouteOverlay.polylines(x, y, 200, 200, 0, 0.5);
+        assertEquals(1, polylines.size());
+        assertArrayEquals(new int[]{0, 10, 50, 10, 100, 60}, polylines.get(0));
+    }
+
+    @Test
+    public void testRouteIsClippedToTheRaster() {
+        /* In, out past the right edge, back in, then out through the bottom. */
+        double[] x = {10, 200, 50, 50};
+        double[] y = {50, 50, 80, 300};
+        List<int[]> polylines = RouteOverlay.polylines(x, y, 100, 100, 5, 0.5);
+        assertEquals(2, polylines.size());
+        assertArrayEquals(new int[]{10, 50, 105, 50}, polylines.get(0));
+        assertArrayEquals(new int[]{105, 69, 50, 80, 50, 105}, polylines.get(1));
+    }
+
+    @Test
+    public void testRoutesOutsideTheRasterAreDropped() {
+        double[] x = {-50, -10, 150};
+        double[] y = {-50, -10, -10};
+        assertEquals(0, RouteOverlay.polylines(x, y, 100, 100, 5, 0.5).size());
+        assertEquals(0, RouteOverlay.polylines(new double[]{1}, new double[]{1},
+                100, 100, 5, 0.5).size());
+    }
+}
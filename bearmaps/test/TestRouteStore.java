@@ -0,0 +1,84 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.RouteStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+/** Checks that sessions keep their own routes, and that idle and excess sessions are dropped. */
+public class TestRouteStore {
+    private long now = 0;
+
+    @Test
+    public void testSessionsAreSeparate() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        store.put("a", new long[]{1, 2, 3});
+        store.put("b", new long[]{4, 5});
+        assertArrayEquals(new long[]{1, 2, 3}, store.get("a"));
+        assertArrayEquals(new long[]{4, 5}, store.get("b"));
+
+        store.put("a", new long[]{6});
+        store.clear("b");
+        assertArrayEquals(new long[]{6}, store.get("a"));
+        assertSame(RouteStore.EMPTY, store.get("b"));
+        assertSame(RouteStore.EMPTY, store.get(null));
+    }
+
+    @Test
+    public void testIdleSessionsAreDropped() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        store.put("a", new long[]{1});
+        store.put("b", new long[]{2});
+        now = 900;
+        store.get("a");
+        now = 1500;
+        assertSame(RouteStore.EMPTY, store.get("b"));
+        assertArrayEquals(new long[]{1}, store.get("a"));
+
+        now = 3000;
+        store.put("c", new long[]{3});
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSessionsAreDropped() {
+        RouteStore store = new RouteStore(10, 1000000, () -> now);
+        for (int i = 0; i < 10; i++) {
+            now = i;
+            store.put("s" + i, new long[]{i});
+        }
+        now = 10;
+        store.get("s0");
+        now = 11;
+        store.put("s10", new long[]{10});
+
+        /* Over capacity, the store drops the least recently used down to 90%. */
+        assertEquals(9, store.size());
+        assertArrayEquals(new long[]{0}, store.get("s0"));
+        assertArrayEquals(new long[]{10}, store.get("s10"));
+        assertSame(RouteStore.EMPTY, store.get("s1"));
+        assertSame(RouteStore.EMPTY, store.get("s2"));
+        assertArrayEquals(new long[]{3}, store.get("s3"));
+    }
+
+    @Test
+    public void testEveryPutHasANewVersion() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        assertSame(RouteStore.Route.NONE, store.route("a"));
+        assertEquals(0, RouteStore.Route.NONE.version());
+
+        store.put("a", new long[]{1, 2});
+        long first = store.route("a").version();
+        assertEquals(first, store.route("a").version());
+        store.put("b", new long[]{1, 2});
+        store.put("a", new long[]{1, 2});
+        long second = store.route("a").version();
+        assertNotEquals(0, first);
+        assertNotEquals(first, second);
+        assertNotEquals(second, store.route("b").version());
+        assertArrayEquals(new long[]{1, 2}, store.route("a").vertices());
+    }
+}
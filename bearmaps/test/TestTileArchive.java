@@ -0,0 +1,143 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.TileArchive;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks that tiles read from an archive are the tiles that were packed into it. */
+public class TestTileArchive {
+    private static final int SIZE = 8;
+    private static final int MAX_DEPTH = 2;
+    private File archiveFile;
+
+    @Before
+    public void setUp() throws Exception {
+        archiveFile = File.createTempFile("tiles", ".archive");
+        archiveFile.deleteOnExit();
+    }
+
+    /** Returns the color of pixel PX, PY of the tile X, Y at DEPTH, half transparent at 0, 0. */
+    private static int color(int depth, int x, int y, int px, int py) {
+        int alpha = px == 0 && py == 0 ? 0x80 : 0xff;
+        return alpha << 24 | (depth * 60 + px) << 16 | (x * 60 + py) << 8 | y * 60;
+    }
+
+    /** Returns the PNG of the tile X, Y at DEPTH, or null for the last tile of MAX_DEPTH. */
+    private static byte[] png(int depth, int x, int y) throws IOException {
+        int last = (1 << MAX_DEPTH) - 1;
+        if (depth == MAX_DEPTH && x == last && y == last) {
+            return null;
+        }
+        BufferedImage tile = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        for (int py = 0; py < SIZE; py++) {
+            for (int px = 0; px < SIZE; px++) {
+                tile.setRGB(px, py, color(depth, x, y, px, py));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    private TileArchive write(TileArchive.Format format) throws IOException {
+        TileArchive.write(archiveFile.getPath(), format, SIZE, MAX_DEPTH,
+                TestTileArchive::png);
+        return TileArchive.open(archiveFile.getPath());
+    }
+
+    @Test
+    public void testPngRoundTrip() throws Exception {
+        checkTiles(write(TileArchive.Format.PNG));
+    }
+
+    @Test
+    public void testRgbRoundTrip() throws Exception {
+        checkTiles(write(TileArchive.Format.RGB));
+    }
+
+    /** Checks every tile of ARCHIVE, with transparency drawn over black. */
+    private void checkTiles(TileArchive archive) {
+        assertEquals(SIZE, archive.tileSize());
+        assertEquals(MAX_DEPTH, archive.maxDepth());
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            for (int y = 0; y < 1 << depth; y++) {
+                for (int x = 0; x < 1 << depth; x++) {
+                    BufferedImage tile = archive.tile(depth, x, y);
+                    if (depth == MAX_DEPTH && x == 3 && y == 3) {
+                        assertFalse(archive.contains(depth, x, y));
+                        assertNull(tile);
+                        continue;
+                    }
+                    assertTrue(archive.contains(depth, x, y));
+                    for (int py = 0; py < SIZE; py++) {
+                        for (int px = 0; px < SIZE; px++) {
+                            int expected = color(depth, x, y, px, py);
+                            if (px == 0 && py == 0) {
+                                expected = blendOverBlack(expected);
+                            }
+                            assertEquals(expected | 0xff000000, tile.getRGB(px, py));
+                        }
+                    }
+                }
+            }
+        }
+        assertNull(archive.tile(MAX_DEPTH + 1, 0, 0));
+        assertNull(archive.tile(1, 2, 0));
+    }
+
+    /** Returns ARGB drawn over black, rounding as the compositor does. */
+    private static int blendOverBlack(int argb) {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        image.createGraphics().drawImage(single(argb), 0, 0, null);
+        return image.getRGB(0, 0);
+    }
+
+    private static BufferedImage single(int argb) {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, argb);
+        return image;
+    }
+
+    @Test
+    public void testCorruptTableIsRejected() throws Exception {
+        write(TileArchive.Format.PNG);
+        try (RandomAccessFile file = new RandomAccessFile(archiveFile, "rw")) {
+            file.seek(40);
+            int b = file.read();
+            file.seek(40);
+            file.write(b ^ 1);
+        }
+        try {
+            TileArchive.open(archiveFile.getPath());
+            fail("A corrupt archive was opened.");
+        } catch (IOException expected) {
+            // The server falls back to reading tiles one by one.
+        }
+    }
+
+    @Test
+    public void testOtherFilesAreRejected() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(archiveFile, "rw")) {
+            file.write(png(0, 0, 0));
+        }
+        try {
+            TileArchive.open(archiveFile.getPath());
+            fail("A PNG was opened as an archive.");
+        } catch (IOException expected) {
+            // The server falls back to reading tiles one by one.
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.TileCache;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/** Checks that the tile cache reuses decoded tiles and stays within its byte budget. */
+public class TestTileCache {
+    /** A 16x16 RGB tile weighs 1 KB. */
+    private static final int TILE_BYTES = 16 * 16 * 4;
+
+    private int decodes = 0;
+
+    private BufferedImage decode() {
+        decodes += 1;
+        return new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void testHitsReuseTheDecodedTile() {
+        TileCache cache = new TileCache(10 * TILE_BYTES);
+        BufferedImage first = cache.get(TileCache.key(3, 1, 2), this::decode);
+        assertSame(first, cache.get(TileCache.key(3, 1, 2), this::decode));
+        assertNotSame(first, cache.get(TileCache.key(3, 2, 1), this::decode));
+        assertEquals(2, decodes);
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(2 * TILE_BYTES, cache.weight());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTilesAreEvicted() {
+        TileCache cache = new TileCache(3 * TILE_BYTES);
+        for (int x = 0; x < 3; x++) {
+            cache.get(TileCache.key(1, x, 0), this::decode);
+        }
+        cache.get(TileCache.key(1, 0, 0), this::decode);
+        cache.get(TileCache.key(1, 3, 0), this::decode);
+
+        /* Tile 1 was the least recently used; tile 0 survives. */
+        assertEquals(1, cache.evictions());
+        assertEquals(3, cache.size());
+        assertEquals(3 * TILE_BYTES, cache.weight());
+        cache.get(TileCache.key(1, 0, 0), this::decode);
+        assertEquals(4, decodes);
+        cache.get(TileCache.key(1, 1, 0), this::decode);
+        assertEquals(5, decodes);
+    }
+
+    @Test
+    public void testFailedDecodesAreNotCached() {
+        TileCache cache = new TileCache(10 * TILE_BYTES);
+        cache.get(TileCache.key(0, 0, 0), () -> null);
+        assertEquals(0, cache.size());
+        cache.get(TileCache.key(0, 0, 0), this::decode);
+        assertEquals(1, cache.size());
+    }
+}
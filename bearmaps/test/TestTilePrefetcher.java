@@ -0,0 +1,92 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.TileCache;
+import bearmaps.proj2d.server.TilePrefetcher;
+import bearmaps.proj2d.server.TilePyramid;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks which tiles the prefetcher warms, and in what order. */
+public class TestTilePrefetcher {
+    /** A 1 by 1 degree root of 16 pixel tiles, down to depth 5. */
+    private final TilePyramid pyramid = new TilePyramid(0, 1, 1, 0, 16, 5);
+    private final TileCache cache = new TileCache(1L << 30);
+    /** The tiles loaded, in order, as {depth, x, y}. */
+    private final List<int[]> loads = new ArrayList<>();
+
+    private TilePrefetcher prefetcher(int maxTiles) {
+        return new TilePrefetcher(pyramid, cache, (depth, x, y) -> {
+            loads.add(new int[]{depth, x, y});
+            return new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        }, Runnable::run, maxTiles, 10);
+    }
+
+    /** Has CLIENT view the 3 by 3 tiles at DEPTH whose top left tile is X, Y. */
+    private void view(TilePrefetcher prefetcher, String client, int depth, int x, int y,
+                      long now) {
+        TilePyramid.Window window = pyramid.windowAt(depth, x, x + 2, y, y + 2);
+        double tiles = Math.scalb(1.0, depth);
+        prefetcher.observe(client, window, (x + 1.5) / tiles, 1 - (y + 1.5) / tiles, now);
+    }
+
+    @Test
+    public void testRingThenNextDepth() {
+        view(prefetcher(1000), "a", 3, 2, 2, 0);
+        /* The 16 tiles around the view, then the 36 of the view one depth deeper. */
+        assertEquals(52, loads.size());
+        for (int i = 0; i < 16; i++) {
+            int[] tile = loads.get(i);
+            assertEquals(3, tile[0]);
+            assertTrue(tile[1] == 1 || tile[1] == 5 || tile[2] == 1 || tile[2] == 5);
+        }
+        for (int i = 16; i < 52; i++) {
+            assertEquals(4, loads.get(i)[0]);
+        }
+        assertEquals(52, cache.size());
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void testPanDirectionComesFirst() {
+        TilePrefetcher prefetcher = prefetcher(1000);
+        view(prefetcher, "a", 3, 1, 2, 0);
+        loads.clear();
+        view(prefetcher, "a", 3, 2, 2, 100);
+
+        /* Panning right by a tile a request: the ring reaches two columns to the right,
+         * and the farthest of those comes first. Cached tiles are not loaded again. */
+        for (int i = 0; i < 5; i++) {
+            assertEquals(3, loads.get(i)[0]);
+            assertEquals(6, loads.get(i)[1]);
+        }
+        for (int[] tile : loads) {
+            assertTrue(tile[0] != 3 || tile[1] != 0);
+        }
+    }
+
+    @Test
+    public void testZoomingOutPrefetchesShallower() {
+        TilePrefetcher prefetcher = prefetcher(1000);
+        view(prefetcher, "a", 3, 2, 2, 0);
+        loads.clear();
+        view(prefetcher, "a", 2, 0, 0, 100);
+        boolean shallower = false;
+        for (int[] tile : loads) {
+            assertTrue(tile[0] <= 2);
+            shallower |= tile[0] == 1;
+        }
+        assertTrue(shallower);
+    }
+
+    @Test
+    public void testTilesPerRequestAreCapped() {
+        view(prefetcher(5), "a", 3, 2, 2, 0);
+        assertEquals(5, loads.size());
+    }
+}
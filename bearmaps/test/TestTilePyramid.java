@@ -0,0 +1,85 @@
+package bearmaps.test;
+
+import bearmaps.proj2d.server.TilePyramid;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Checks the depths and tile ranges the pyramid picks for queries. */
+public class TestTilePyramid {
+    /** A 1 by 1 degree root of 100 pixel tiles, so depth d has LonDPP 0.01 / 2^d. */
+    private final TilePyramid pyramid = new TilePyramid(0, 1, 1, 0, 100, 5);
+
+    @Test
+    public void testDepthIsTheShallowestFineEnough() {
+        assertEquals(0, pyramid.depth(1));
+        assertEquals(0, pyramid.depth(0.01));
+        assertEquals(1, pyramid.depth(0.0099));
+        assertEquals(1, pyramid.depth(0.005));
+        assertEquals(2, pyramid.depth(0.0049));
+        assertEquals(4, pyramid.depth(0.01 / 16));
+        assertEquals(5, pyramid.depth(0.01 / 17));
+        assertEquals(5, pyramid.depth(1e-12));
+    }
+
+    @Test
+    public void testWindowCoversTheQuery() {
+        /* 200 pixels over 0.3 degrees needs depth 3, whose tiles are 0.125 degrees. */
+        TilePyramid.Window window = pyramid.window(0.3, 0.8, 0.6, 0.55, 200);
+        assertEquals(3, window.depth());
+        assertEquals(2, window.minX());
+        assertEquals(4, window.maxX());
+        assertEquals(1, window.minY());
+        assertEquals(3, window.maxY());
+        assertEquals(0.25, window.ulLon(), 1e-12);
+        assertEquals(0.875, window.ulLat(), 1e-12);
+        assertEquals(0.625, window.lrLon(), 1e-12);
+        assertEquals(0.5, window.lrLat(), 1e-12);
+        assertEquals(300, window.width());
+        assertEquals("d3_x2_y1.png", window.names()[0][0]);
+        assertEquals("d3_x4_y3.png", window.names()[2][2]);
+    }
+
+    @Test
+    public void testWindowIsClampedToTheRoot() {
+        TilePyramid.Window window = pyramid.window(-0.5, 1.5, 0.2, 0.9, 280);
+        assertEquals(2, window.depth());
+        assertArrayEquals(new String[][]{{"d2_x0_y0.png"}}, window.names());
+        assertEquals(0, window.ulLon(), 1e-12);
+        assertEquals(1, window.ulLat(), 1e-12);
+
+        window = pyramid.window(-1, 2, 2, -1, 10000);
+        assertEquals(5, window.depth());
+        assertEquals(32, window.columns());
+        assertEquals(32, window.rows());
+    }
+
+    @Test
+    public void testQueriesOutsideTheRootAreRejected() {
+        assertNull(pyramid.window(1.5, 0.5, 2, 0.2, 100));
+        assertNull(pyramid.window(0.5, 0.5, 0.4, 0.2, 100));
+        assertNull(pyramid.window(0.2, 0.5, 0.4, 0.6, 100));
+    }
+
+    @Test
+    public void testBadWidthsAndCoordinatesAreRejected() {
+        assertNull(pyramid.window(0.3, 0.8, 0.6, 0.55, -200));
+        assertNull(pyramid.window(0.3, 0.8, 0.6, 0.55, 0));
+        assertNull(pyramid.window(0.3, 0.8, 0.6, 0.55, Double.NaN));
+        assertNull(pyramid.window(0.3, 0.8, 0.6, 0.55, Double.POSITIVE_INFINITY));
+        assertNull(pyramid.window(0.3, 0.8, 0.6, 0.55, Double.NEGATIVE_INFINITY));
+        assertNull(pyramid.window(Double.NEGATIVE_INFINITY, 0.8, 0.6, 0.55, 200));
+        assertNull(pyramid.window(0.3, Double.NaN, 0.6, 0.55, 200));
+    }
+
+    @Test
+    public void testDepthOfDegenerateResolutions() {
+        assertEquals(5, pyramid.depth(0));
+        assertEquals(5, pyramid.depth(-0.01));
+        assertEquals(5, pyramid.depth(Double.NaN));
+        assertEquals(5, pyramid.depth(Double.MIN_VALUE));
+        assertEquals(0, pyramid.depth(Double.POSITIVE_INFINITY));
+    }
+}
@@ -0,0 +1,143 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.streetmap.StreetMapGraph;
+import bearmaps.proj2d.server.SegmentGrid;
+import bearmaps.proj2d.server.VectorTiles;
+import bearmaps.proj2d.utils.Constants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the segment index and that vector tiles decode to the roads of their tile. */
+public class TestVectorTiles {
+    private static final String OSM_DB_PATH = "data//proj2d_xml/berkeley-2019.osm.xml";
+    private static StreetMapGraph graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() {
+        if (!initialized) {
+            graph = new StreetMapGraph(OSM_DB_PATH);
+            initialized = true;
+        }
+    }
+
+    @Test
+    public void testGridFindsEverySegmentInABox() {
+        SegmentGrid grid = new SegmentGrid(graph);
+        assertEquals(graph.edgeCount() / 2, grid.size());
+        Random random = new Random(19);
+        for (int i = 0; i < 50; i++) {
+            double minLon = -122.30 + random.nextDouble() * 0.09;
+            double minLat = 37.82 + random.nextDouble() * 0.07;
+            double maxLon = minLon + random.nextDouble() * 0.01;
+            double maxLat = minLat + random.nextDouble() * 0.01;
+            List<Integer> expected = new ArrayList<>();
+            for (int s = 0; s < grid.size(); s++) {
+                int v = grid.source(s);
+                int w = grid.target(s);
+                if (Math.max(graph.lonAt(v), graph.lonAt(w)) >= minLon
+                        && Math.min(graph.lonAt(v), graph.lonAt(w)) <= maxLon
+                        && Math.max(graph.latAt(v), graph.latAt(w)) >= minLat
+                        && Math.min(graph.latAt(v), graph.latAt(w)) <= maxLat) {
+                    expected.add(s);
+                }
+            }
+            int[] found = grid.segments(minLon, minLat, maxLon, maxLat);
+            assertArrayEquals(expected.stream().mapToInt(s -> s).toArray(), found);
+        }
+    }
+
+    @Test
+    public void testTilesDecode() {
+        VectorTiles tiles = new VectorTiles(graph, Constants.TILE_PYRAMID, 12, 1 << 20);
+        int root = checkTile(tiles.tile(0, 0, 0));
+        assertTrue(root > 100);
+        int deep = checkTile(tiles.tile(7, 60, 70));
+        assertTrue(deep > 0 && deep < root);
+    }
+
+    @Test
+    public void testTilesAreCachedAndBounded() {
+        VectorTiles tiles = new VectorTiles(graph, Constants.TILE_PYRAMID, 3, 1 << 20);
+        assertSame(tiles.tile(2, 1, 2), tiles.tile(2, 1, 2));
+        assertNull(tiles.tile(4, 0, 0));
+        assertNull(tiles.tile(2, 4, 0));
+        assertNull(tiles.tile(2, 0, -1));
+    }
+
+    /** Decodes TILE, checks that its points lie in the tile or its buffer, and returns
+     *  its number of polylines. */
+    private static int checkTile(byte[] tile) {
+        ByteArrayInputStream in = new ByteArrayInputStream(tile);
+        assertEquals(1, in.read());
+        int extent = varint(in);
+        assertEquals(VectorTiles.EXTENT, extent);
+        String[] classes = strings(in);
+        String[] names = strings(in);
+        for (String type : classes) {
+            boolean known = false;
+            for (int c = 0; c < StreetMapGraph.highwayClassCount(); c++) {
+                known |= StreetMapGraph.highwayType(c).equals(type);
+            }
+            assertTrue(type, known);
+        }
+
+        int polylines = varint(in);
+        int x = 0;
+        int y = 0;
+        for (int p = 0; p < polylines; p++) {
+            assertTrue(varint(in) < classes.length);
+            assertTrue(varint(in) < names.length);
+            int points = varint(in);
+            assertTrue(points >= 2);
+            for (int i = 0; i < points; i++) {
+                x += signedVarint(in);
+                y += signedVarint(in);
+                assertTrue(x >= -64 && x <= extent + 64);
+                assertTrue(y >= -64 && y <= extent + 64);
+            }
+        }
+        assertEquals(0, in.available());
+        return polylines;
+    }
+
+    private static String[] strings(ByteArrayInputStream in) {
+        String[] strings = new String[varint(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[varint(in)];
+            assertEquals(bytes.length, in.read(bytes, 0, bytes.length));
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        assertEquals(strings.length, Arrays.stream(strings).distinct().count());
+        return strings;
+    }
+
+    private static int varint(ByteArrayInputStream in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int signedVarint(ByteArrayInputStream in) {
+        int value = varint(in);
+        return value >>> 1 ^ -(value & 1);
+    }
+}
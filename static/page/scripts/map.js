@@ -30,6 +30,7 @@ $(function() {
     var getInProgress = false;
     var route_params = {};
     var map;
+    var routeLayer;
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -57,6 +58,7 @@ $(function() {
     const raster_server = host + '/raster';
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
+    const route_overlay = host + '/route_overlay';
     const search = host + '/search';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
@@ -111,35 +113,30 @@ $(function() {
         $.get({
             async: true,
             url: raster_server,
-            data: params,
+            data: $.extend({}, params, {format: 'meta'}),
             success: function(data) {
                 console.log(data);
                 if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
+                    /* Fetch the image itself as binary PNG, and only swap it in, together
+                       with the new bounds, once it has loaded. The image is the same for
+                       everyone; the route is drawn over it by updateOverlay. */
+                    const image = new Image();
+                    image.onload = function() {
+                        map.src = image.src;
+                        applyRaster(data, successCallback);
+                    };
+                    image.onerror = function() {
+                        getInProgress = false;
+                        $loadingStatus.hide();
+                        $errorStatus.show();
+                        setTimeout(function() {
+                            $errorStatus.fadeOut();
+                        }, 4000);
+                    };
+                    image.src = raster_server + '?' + $.param($.extend({}, params,
+                        {format: 'png'}));
                 } else {
-                    $loadingstatus.hide();
+                    $loadingStatus.hide();
                 }
             },
             error: function() {
@@ -153,8 +150,77 @@ $(function() {
         });
     }
 
+    /* Takes the bounds of a raster whose image has just been shown */
+    function applyRaster(data, successCallback) {
+        $loadingStatus.hide();
+        ullon_bound = data.raster_ul_lon;
+        ullat_bound = data.raster_ul_lat;
+        lrlon_bound = data.raster_lr_lon;
+        lrlat_bound = data.raster_lr_lat;
+        current_level = data.depth;
+        img_w = data.raster_width;
+        img_h = data.raster_height;
+        wdpp = (lrlon_bound - ullon_bound) / img_w;
+        hdpp = (ullat_bound - lrlat_bound) / img_h;
+        // Compute initial transform
+        tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+        ty = (params.ullat - ullat_bound) * (1 / hdpp);
+        rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+        rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+        updateMarkers();
+        updateOverlay();
+        getInProgress = false;
+        if (successCallback) {
+            successCallback();
+        }
+    }
+
+    /* Fetches the route, clipped to the raster now shown, and draws it over the raster */
+    function updateOverlay() {
+        const bounds = {ullon: ullon_bound, ullat: ullat_bound, lrlon: lrlon_bound,
+                        lrlat: lrlat_bound, w: img_w, h: img_h};
+        $.get({
+            async: true,
+            url: route_overlay,
+            data: bounds,
+            success: function(data) {
+                // drop overlays of a raster that has since been replaced
+                if (bounds.ullon === ullon_bound && bounds.ullat === ullat_bound &&
+                    bounds.lrlon === lrlon_bound && bounds.lrlat === lrlat_bound) {
+                    drawOverlay(data);
+                }
+            },
+            dataType: 'json'
+        });
+    }
+
+    function drawOverlay(data) {
+        const svg = 'http://www.w3.org/2000/svg';
+        while (routeLayer.firstChild) {
+            routeLayer.removeChild(routeLayer.firstChild);
+        }
+        routeLayer.setAttribute('width', img_w);
+        routeLayer.setAttribute('height', img_h);
+        for (var i = 0; i < data.polylines.length; i++) {
+            const coords = data.polylines[i];
+            var points = [];
+            for (var j = 0; j + 1 < coords.length; j += 2) {
+                points.push(coords[j] + ',' + coords[j + 1]);
+            }
+            const line = document.createElementNS(svg, 'polyline');
+            line.setAttribute('points', points.join(' '));
+            line.setAttribute('fill', 'none');
+            line.setAttribute('stroke', data.stroke_color);
+            line.setAttribute('stroke-width', data.stroke_width);
+            line.setAttribute('stroke-linecap', 'round');
+            line.setAttribute('stroke-linejoin', 'round');
+            routeLayer.appendChild(line);
+        }
+    }
+
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        routeLayer.style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -173,7 +239,7 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                updateOverlay();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -313,6 +379,7 @@ $(function() {
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
     map = document.getElementById('map');
+    routeLayer = document.getElementById('route');
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
@@ -410,7 +477,7 @@ $(function() {
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
-                update();
+                updateOverlay();
             },
         });
     });